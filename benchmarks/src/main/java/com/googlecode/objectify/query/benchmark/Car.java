@@ -0,0 +1,22 @@
+package com.googlecode.objectify.query.benchmark;
+
+import javax.persistence.Id;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Parent;
+import com.googlecode.objectify.query.annotation.List;
+
+@Entity
+public class Car {
+  public @Id Long id;
+  public @Parent Key<Dealer> dealer;
+  public String colour;
+  public int doors;
+  public Key<Manufacturer> madeBy;
+
+  @List(singularName = "MadeBy", pluralName = "Manufacturers", property = "madeBy")
+  public Key<Manufacturer> getManufacturer() {
+    return this.madeBy;
+  }
+}
@@ -0,0 +1,89 @@
+package com.googlecode.objectify.query.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.ObjectifyService;
+
+/**
+ * Seeds the local datastore stub with <code>cars</code> cars, spread over
+ * 20 manufacturers and one dealer (their <code>@Parent</code>) per 50 cars.
+ * <p/>
+ * The stub's API environment is bound to the thread that runs the setup, so
+ * the state is per benchmark thread.
+ */
+@State(Scope.Thread)
+public class Dataset {
+
+  static final int MANUFACTURERS = 20;
+  static final int CARS_PER_DEALER = 50;
+  static final String[] COLOURS = {"red", "green", "blue", "black"};
+
+  static {
+    ObjectifyService.register(Car.class);
+    ObjectifyService.register(Dealer.class);
+    ObjectifyService.register(Manufacturer.class);
+  }
+
+  @Param({"1000", "10000"})
+  public int cars;
+
+  private LocalServiceTestHelper helper;
+
+  @Setup(Level.Trial)
+  public void seed() {
+    this.helper = new LocalServiceTestHelper(
+        new LocalDatastoreServiceTestConfig());
+    this.helper.setUp();
+    Objectify ofy = ObjectifyService.begin();
+
+    List<Key<Manufacturer>> manufacturers = new ArrayList<Key<Manufacturer>>();
+    for (int i = 0; i < MANUFACTURERS; i++) {
+      Manufacturer manufacturer = new Manufacturer();
+      manufacturer.name = "manufacturer" + i;
+      manufacturers.add(ofy.put(manufacturer));
+    }
+
+    Key<Dealer> dealer = null;
+    List<Car> batch = new ArrayList<Car>();
+    for (int i = 0; i < this.cars; i++) {
+      if (i % CARS_PER_DEALER == 0) {
+        Dealer newDealer = new Dealer();
+        newDealer.name = "dealer" + i / CARS_PER_DEALER;
+        dealer = ofy.put(newDealer);
+      }
+
+      Car car = new Car();
+      car.dealer = dealer;
+      car.colour = COLOURS[i % COLOURS.length];
+      car.doors = i % 3 == 0 ? 4 : 2;
+      car.madeBy = manufacturers.get(i % MANUFACTURERS);
+      batch.add(car);
+      if (batch.size() == 500) {
+        ofy.put(batch);
+        batch.clear();
+      }
+    }
+    ofy.put(batch);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    this.helper.tearDown();
+  }
+
+  CarQuery query() {
+    return new CarQuery(ObjectifyService.begin().query(Car.class));
+  }
+}
@@ -0,0 +1,11 @@
+package com.googlecode.objectify.query.benchmark;
+
+import javax.persistence.Id;
+
+import com.googlecode.objectify.annotation.Entity;
+
+@Entity
+public class Dealer {
+  public @Id Long id;
+  public String name;
+}
@@ -0,0 +1,82 @@
+package com.googlecode.objectify.query.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.query.shared.ListPage;
+import com.googlecode.objectify.query.util.BatchCallback;
+
+/**
+ * Throughput of the generated <code>CarQuery</code> methods, one page per
+ * operation.  Run with <code>-prof gc</code> for the allocation rate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GeneratedQueryBenchmark {
+
+  @Param({"20", "200"})
+  public int pageSize;
+
+  @Benchmark
+  public CarQuery filterBy(Dataset dataset) {
+    return dataset.query().filterByColour("red").filterByDoors("<", 4);
+  }
+
+  @Benchmark
+  public ListPage<Car> list(Dataset dataset) {
+    return dataset.query().filterByDoors(2).list(null, this.pageSize);
+  }
+
+  @Benchmark
+  public ListPage<Key<Car>> listKeys(Dataset dataset) {
+    return dataset.query().filterByDoors(2).listKeys(null, this.pageSize);
+  }
+
+  @Benchmark
+  public ListPage<Dealer> listParents(Dataset dataset) {
+    return dataset.query().filterByDoors(2).listParents(null, this.pageSize);
+  }
+
+  @Benchmark
+  public ListPage<Key<Dealer>> listParentKeys(Dataset dataset) {
+    return dataset.query().filterByDoors(2).listParentKeys(null, this.pageSize);
+  }
+
+  @Benchmark
+  public ListPage<Manufacturer> listManufacturers(Dataset dataset) {
+    return dataset.query().filterByDoors(2).listManufacturers(null,
+        this.pageSize);
+  }
+
+  @Benchmark
+  public ListPage<Key<Manufacturer>> listMadeByKeys(Dataset dataset) {
+    return dataset.query().filterByDoors(2).listMadeByKeys(null, this.pageSize);
+  }
+
+  @Benchmark
+  public void forEachKey(Dataset dataset, final Blackhole blackhole) {
+    dataset.query().filterByDoors(2).forEachKey(null, this.pageSize,
+        new BatchCallback<Key<Car>>() {
+          public boolean batch(java.util.List<Key<Car>> batch, String cursor) {
+            blackhole.consume(batch);
+            return true;
+          }
+        });
+  }
+}
@@ -0,0 +1,66 @@
+package com.googlecode.objectify.query.benchmark;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.query.shared.ListPage;
+
+/**
+ * Cost of building and reading a <code>ListPage</code> of keys, without the
+ * datastore.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ListPageBenchmark {
+
+  @Param({"20", "1000"})
+  public int size;
+
+  private ListPage<Key<Car>> page;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    this.page = build();
+  }
+
+  @Benchmark
+  public ListPage<Key<Car>> build() {
+    ArrayList<Key<Car>> list = new ArrayList<Key<Car>>(this.size);
+    for (int i = 1; i <= this.size; i++) {
+      list.add(new Key<Car>(Car.class, i));
+    }
+    return new ListPage<Key<Car>>(list, "cursor", true);
+  }
+
+  @Benchmark
+  public long iterate() {
+    long sum = 0;
+    for (Key<Car> key : this.page) {
+      sum += key.getId();
+    }
+    return sum;
+  }
+
+  @Benchmark
+  public int hash() {
+    return this.page.hashCode();
+  }
+}
@@ -0,0 +1,28 @@
+package com.googlecode.objectify.query.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Generates streaming aggregations of an indexed field on the generated
+ * query.  <code>countBy&lt;Field&gt;</code> counts the rows per value of a
+ * numeric, boolean, string, date or <code>Key</code> field, and a numeric
+ * field also gets <code>aggregate&lt;Field&gt;</code>, its count, sum,
+ * minimum and maximum.  Each has an overload that scans shards
+ * concurrently.
+ * <p/>
+ * Aggregations read every row of the query, so they are only generated for
+ * the fields that ask for them.
+ *
+ * @param groupBy
+ *   the <code>Key</code> fields to also get the stats of a numeric field per
+ *   key of, as <code>aggregate&lt;Field&gt;By&lt;GroupField&gt;</code>.
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target({ElementType.FIELD})
+public @interface Aggregate
+{
+	String[] groupBy() default {};
+}
@@ -0,0 +1,26 @@
+package com.googlecode.objectify.query.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Overrides the datastore batch sizes used by the generated query's paging
+ * methods.
+ * <p/>
+ * By default each page is fetched with a limit, prefetch size and chunk size
+ * of <code>pageSize + 1</code>, so a page (plus the row that tells whether
+ * there are <code>more</code>) is retrieved in a single round trip.  A value
+ * of <code>0</code> keeps that default.
+ *
+ * @param prefetchSize
+ * @param chunkSize
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target({ElementType.TYPE})
+public @interface Fetch
+{
+	int prefetchSize() default 0;
+	int chunkSize() default 0;
+}
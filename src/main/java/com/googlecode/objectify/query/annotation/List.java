@@ -8,17 +8,33 @@ import java.lang.annotation.Target;
 /**
  * @param singularName
  * @param pluralName
+ * @param property
+ *   the field the getter returns.  When set, the generated query reads the
+ *   key straight from the raw datastore entity instead of loading each row as
+ *   a POJO and calling the getter.  This fast path only runs for generated
+ *   queries that wrap a query with nothing applied yet, see the generated
+ *   constructor.
  */
 @Retention(RetentionPolicy.SOURCE)
 @Target({ElementType.METHOD})
 public @interface List
 {
+	/** @deprecated the related entities are loaded by their whole key */
+	@Deprecated
 	public enum KeyType {
 		Id,
 		Name
 	}
 	
+	/**
+	 * Ignored: the related entities are loaded by the <code>Key</code> the
+	 * getter returns, whether it has an id or a name.
+	 *
+	 * @deprecated
+	 */
+	@Deprecated
 	KeyType keyType() default KeyType.Id;
 	String singularName();
 	String pluralName();
+	String property() default "";
 }
\ No newline at end of file
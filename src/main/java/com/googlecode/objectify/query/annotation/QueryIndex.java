@@ -0,0 +1,30 @@
+package com.googlecode.objectify.query.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares a query the application runs through the generated query, so the
+ * processor can check it and derive the composite index it needs.  Use
+ * <code>@QueryIndexes</code> to declare several queries of one entity.
+ * <p/>
+ * The indexes are written when the processor option
+ * <code>objectifyQuery.indexes</code> names the output file, e.g.
+ * <code>-AobjectifyQuery.indexes=datastore-indexes.xml</code>.
+ *
+ * @param filter
+ *   the filtered fields, each optionally followed by its operator, e.g.
+ *   <code>"colour"</code> or <code>"doors &gt;="</code>.  The
+ *   <code>@Parent</code> field stands for an ancestor filter.
+ * @param order
+ *   the sort orders, a <code>-</code> prefix sorts descending.
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target({ElementType.TYPE})
+public @interface QueryIndex
+{
+	String[] filter() default {};
+	String[] order() default {};
+}
@@ -0,0 +1,16 @@
+package com.googlecode.objectify.query.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares several <code>@QueryIndex</code> queries of one entity.
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target({ElementType.TYPE})
+public @interface QueryIndexes
+{
+	QueryIndex[] value();
+}
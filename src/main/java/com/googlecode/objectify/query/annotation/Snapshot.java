@@ -0,0 +1,28 @@
+package com.googlecode.objectify.query.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Answers <code>list</code>, <code>listKeys</code> and <code>count</code> of
+ * the generated query from an in-memory snapshot of every entity of the kind,
+ * with a hash index on each indexed field, instead of the datastore.  Suits
+ * small kinds that are read on most requests and seldom written.
+ * <p/>
+ * The generated query gets a static <code>snapshotStore()</code>, see
+ * <code>SnapshotStore</code>, and uses it unless
+ * <code>useSnapshot(null)</code> is called.  A query filtered, limited or
+ * offset outside of the generated query is read from the datastore.
+ *
+ * @param refreshSeconds
+ *   the age at which the snapshot is reloaded, <code>0</code> to only reload
+ *   it once invalidated.
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target({ElementType.TYPE})
+public @interface Snapshot
+{
+	int refreshSeconds() default 300;
+}
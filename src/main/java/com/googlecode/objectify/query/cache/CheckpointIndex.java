@@ -0,0 +1,120 @@
+package com.googlecode.objectify.query.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records the cursor of every <code>interval</code>-th row of generated
+ * queries, so that <code>listAtOffset</code> on the generated query starts
+ * from the nearest checkpoint instead of the first row, see
+ * <code>useCheckpoints</code>.
+ * <p/>
+ * Checkpoints are recorded by <code>seek</code> and
+ * <code>listAtOffset</code> of the generated query as they read past them,
+ * by query shape, so they serve every query with the same filters, ancestor
+ * and sort orders.  Call <code>seek</code> in the background to prepare deep
+ * pages before they are listed.
+ */
+public class CheckpointIndex {
+
+  public static final int DEFAULT_INTERVAL = 1000;
+
+  /** An index without a store: every seek starts from the first row. */
+  public static final CheckpointIndex NONE = new CheckpointIndex(null,
+      DEFAULT_INTERVAL);
+
+  /** earlier checkpoints looked up when the nearest one is missing */
+  private static final int MAX_PROBES = 16;
+
+  /** A row offset and the cursor of the rows from there. */
+  public static final class Checkpoint {
+    public static final Checkpoint START = new Checkpoint(0, null);
+
+    private final int offset;
+    private final String cursor;
+
+    public Checkpoint(int offset, String cursor) {
+      this.offset = offset;
+      this.cursor = cursor;
+    }
+
+    public int getOffset() {
+      return this.offset;
+    }
+
+    /** @return the cursor, <code>null</code> at the first row. */
+    public String getCursor() {
+      return this.cursor;
+    }
+
+    @Override
+    public String toString() {
+      return this.offset + "@" + this.cursor;
+    }
+  }
+
+  private final CheckpointStore store;
+  private final int interval;
+
+  public CheckpointIndex(CheckpointStore store) {
+    this(store, DEFAULT_INTERVAL);
+  }
+
+  public CheckpointIndex(CheckpointStore store, int interval) {
+    assert interval > 0;
+    this.store = store;
+    this.interval = interval;
+  }
+
+  public int getInterval() {
+    return this.interval;
+  }
+
+  /**
+   * @return the stored checkpoint nearest before or at <code>offset</code>,
+   *   or <code>Checkpoint.START</code>.
+   */
+  public Checkpoint nearest(String kind, String shape, int offset) {
+    List<Integer> offsets = new ArrayList<Integer>();
+    for (int at = offset - offset % this.interval; at > 0
+        && offsets.size() < MAX_PROBES; at -= this.interval) {
+      offsets.add(at);
+    }
+    if (this.store == null || offsets.isEmpty()) {
+      return Checkpoint.START;
+    }
+    Map<Integer, String> cursors = this.store.get(kind, shape, offsets);
+    for (Integer at : offsets) {
+      String cursor = cursors.get(at);
+      if (cursor != null) {
+        return new Checkpoint(at, cursor);
+      }
+    }
+    return Checkpoint.START;
+  }
+
+  /**
+   * @return the number of rows to read from <code>offset</code> towards
+   *   <code>target</code> without passing the next checkpoint.
+   */
+  public int step(int offset, int target) {
+    return Math.min(target - offset, this.interval - offset % this.interval);
+  }
+
+  /** Stores <code>checkpoint</code> if it is at a multiple of the interval. */
+  public void record(String kind, String shape, Checkpoint checkpoint) {
+    if (this.store != null && checkpoint.getOffset() > 0
+        && checkpoint.getOffset() % this.interval == 0
+        && checkpoint.getCursor() != null) {
+      this.store.put(kind, shape, checkpoint.getOffset(),
+          checkpoint.getCursor());
+    }
+  }
+
+  public void invalidate(String kind) {
+    if (this.store != null) {
+      this.store.invalidate(kind);
+    }
+  }
+}
@@ -0,0 +1,30 @@
+package com.googlecode.objectify.query.cache;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Stores the cursors recorded by a <code>CheckpointIndex</code>, by entity
+ * kind, query shape and row offset.
+ * <p/>
+ * A stored cursor stays valid when entities change, but the offset it was
+ * recorded at drifts as rows before it are added or removed: call
+ * <code>invalidate</code> after writing entities of a kind, or rely on the
+ * expiry of the backend.
+ * <p/>
+ * Implementations must be thread-safe.
+ */
+public interface CheckpointStore {
+
+  /**
+   * @return the cursors stored at <code>offsets</code>, by offset.  Offsets
+   *   without a cursor are left out.
+   */
+  Map<Integer, String> get(String kind, String shape,
+      Collection<Integer> offsets);
+
+  void put(String kind, String shape, int offset, String cursor);
+
+  /** Drops every checkpoint of queries of <code>kind</code>. */
+  void invalidate(String kind);
+}
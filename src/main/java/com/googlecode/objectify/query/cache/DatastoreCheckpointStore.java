@@ -0,0 +1,117 @@
+package com.googlecode.objectify.query.cache;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Text;
+
+/**
+ * A <code>CheckpointStore</code> in the datastore, which keeps checkpoints
+ * until they are invalidated.
+ * <p/>
+ * Every checkpoint is a root entity of kind <code>KIND</code> named
+ * <code>kind|offset|shape</code>, so checkpoints do not share an entity group,
+ * the checkpoints of one lookup are read with a single batch get and
+ * <code>invalidate</code> is a key range query, which needs no index.
+ */
+public class DatastoreCheckpointStore implements CheckpointStore {
+
+  public static final String KIND = "ObjectifyQueryCheckpoint";
+
+  /** longer key names are replaced by a digest */
+  private static final int MAX_NAME_LENGTH = 500;
+  private static final int DELETE_BATCH_SIZE = 500;
+
+  private final DatastoreService datastore;
+
+  public DatastoreCheckpointStore() {
+    this(DatastoreServiceFactory.getDatastoreService());
+  }
+
+  public DatastoreCheckpointStore(DatastoreService datastore) {
+    this.datastore = datastore;
+  }
+
+  public Map<Integer, String> get(String kind, String shape,
+      Collection<Integer> offsets) {
+    Map<Key, Integer> keys = new HashMap<Key, Integer>();
+    for (Integer offset : offsets) {
+      keys.put(key(kind, shape, offset), offset);
+    }
+    Map<Integer, String> cursors = new HashMap<Integer, String>();
+    for (Map.Entry<Key, Entity> found : this.datastore.get(keys.keySet()).entrySet()) {
+      Object cursor = found.getValue().getProperty("cursor");
+      if (cursor instanceof Text) {
+        cursors.put(keys.get(found.getKey()), ((Text) cursor).getValue());
+      }
+    }
+    return cursors;
+  }
+
+  public void put(String kind, String shape, int offset, String cursor) {
+    Entity entity = new Entity(key(kind, shape, offset));
+    entity.setUnindexedProperty("cursor", new Text(cursor));
+    this.datastore.put(null, entity);
+  }
+
+  public void invalidate(String kind) {
+    // the names starting with "kind|" sort below "kind}"
+    Query query = new Query(KIND).setKeysOnly();
+    query.addFilter(Entity.KEY_RESERVED_PROPERTY,
+        FilterOperator.GREATER_THAN_OR_EQUAL, KeyFactory.createKey(KIND, kind
+            + "|"));
+    query.addFilter(Entity.KEY_RESERVED_PROPERTY, FilterOperator.LESS_THAN,
+        KeyFactory.createKey(KIND, kind + "}"));
+    List<Key> batch = new ArrayList<Key>(DELETE_BATCH_SIZE);
+    for (Entity entity : this.datastore.prepare(null, query).asIterable(
+        FetchOptions.Builder.withChunkSize(DELETE_BATCH_SIZE))) {
+      batch.add(entity.getKey());
+      if (batch.size() == DELETE_BATCH_SIZE) {
+        this.datastore.delete(null, batch);
+        batch.clear();
+      }
+    }
+    if (!batch.isEmpty()) {
+      this.datastore.delete(null, batch);
+    }
+  }
+
+  private static Key key(String kind, String shape, int offset) {
+    String name = kind + "|" + offset + "|" + shape;
+    if (name.length() > MAX_NAME_LENGTH) {
+      name = kind + "|" + offset + "|" + digest(shape);
+    }
+    return KeyFactory.createKey(KIND, name);
+  }
+
+  private static String digest(String shape) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(
+          shape.getBytes("UTF-8"));
+      StringBuilder hex = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(
+            Character.forDigit(b & 0xf, 16));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
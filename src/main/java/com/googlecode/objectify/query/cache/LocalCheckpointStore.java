@@ -0,0 +1,79 @@
+package com.googlecode.objectify.query.cache;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An in-process <code>CheckpointStore</code> holding up to
+ * <code>maxEntries</code> checkpoints, evicting the least recently used one
+ * first.  Checkpoints expire <code>ttlMillis</code> after they were stored.
+ */
+public class LocalCheckpointStore implements CheckpointStore {
+
+  private static class Entry {
+    final String kind;
+    final String cursor;
+    final long expires;
+
+    Entry(String kind, String cursor, long expires) {
+      this.kind = kind;
+      this.cursor = cursor;
+      this.expires = expires;
+    }
+  }
+
+  private final long ttlMillis;
+  private final LinkedHashMap<String, Entry> entries;
+
+  public LocalCheckpointStore(final int maxEntries, long ttlMillis) {
+    assert maxEntries > 0;
+    this.ttlMillis = ttlMillis;
+    this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  public Map<Integer, String> get(String kind, String shape,
+      Collection<Integer> offsets) {
+    Map<Integer, String> cursors = new HashMap<Integer, String>();
+    long now = System.currentTimeMillis();
+    synchronized (this.entries) {
+      for (Integer offset : offsets) {
+        String key = kind + "|" + shape + "|" + offset;
+        Entry entry = this.entries.get(key);
+        if (entry != null && entry.expires <= now) {
+          this.entries.remove(key);
+        } else if (entry != null) {
+          cursors.put(offset, entry.cursor);
+        }
+      }
+    }
+    return cursors;
+  }
+
+  public void put(String kind, String shape, int offset, String cursor) {
+    Entry entry = new Entry(kind, cursor, System.currentTimeMillis()
+        + this.ttlMillis);
+    synchronized (this.entries) {
+      this.entries.put(kind + "|" + shape + "|" + offset, entry);
+    }
+  }
+
+  public void invalidate(String kind) {
+    synchronized (this.entries) {
+      for (Iterator<Entry> i = this.entries.values().iterator(); i.hasNext();) {
+        if (i.next().kind.equals(kind)) {
+          i.remove();
+        }
+      }
+    }
+  }
+}
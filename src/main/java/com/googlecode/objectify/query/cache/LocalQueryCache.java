@@ -0,0 +1,92 @@
+package com.googlecode.objectify.query.cache;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.query.shared.KeyPage;
+import com.googlecode.objectify.query.shared.ListPage;
+
+/**
+ * An in-process <code>QueryCache</code> holding up to
+ * <code>maxEntries</code> pages, evicting the least recently used page first.
+ * Pages expire <code>ttlMillis</code> after they were stored.
+ * <p/>
+ * Each instance is only visible to its own JVM; use a
+ * <code>MemcacheQueryCache</code> to share pages between instances.
+ */
+public class LocalQueryCache implements QueryCache {
+
+  private static class Entry {
+    final String kind;
+    final ListPage<?> page;
+    final long expires;
+
+    Entry(String kind, ListPage<?> page, long expires) {
+      this.kind = kind;
+      this.page = page;
+      this.expires = expires;
+    }
+  }
+
+  private final long ttlMillis;
+  private final LinkedHashMap<String, Entry> entries;
+
+  public LocalQueryCache(final int maxEntries, long ttlMillis) {
+    assert maxEntries > 0;
+    this.ttlMillis = ttlMillis;
+    this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  @SuppressWarnings("unchecked")
+  public <T> ListPage<Key<T>> get(String kind, String key) {
+    Entry entry;
+    synchronized (this.entries) {
+      entry = this.entries.get(kind + "|" + key);
+      if (entry != null && entry.expires <= System.currentTimeMillis()) {
+        this.entries.remove(kind + "|" + key);
+        entry = null;
+      }
+    }
+    return entry == null ? null : copy((ListPage<Key<T>>) entry.page);
+  }
+
+  public <T> void put(String kind, String key, ListPage<Key<T>> page) {
+    Entry entry = new Entry(kind, copy(page), System.currentTimeMillis()
+        + this.ttlMillis);
+    synchronized (this.entries) {
+      this.entries.put(kind + "|" + key, entry);
+    }
+  }
+
+  public void invalidate(String kind) {
+    synchronized (this.entries) {
+      for (Iterator<Entry> i = this.entries.values().iterator(); i.hasNext();) {
+        if (i.next().kind.equals(kind)) {
+          i.remove();
+        }
+      }
+    }
+  }
+
+  /**
+   * pages are mutable through their iterators, so callers get their own;
+   * a <code>KeyPage</code> cannot be modified and is shared
+   */
+  private static <T> ListPage<Key<T>> copy(ListPage<Key<T>> page) {
+    if (page instanceof KeyPage<?>) {
+      return page;
+    }
+    return new ListPage<Key<T>>(new ArrayList<Key<T>>(page.subList(0,
+        page.size())), page.getCursor(), page.more());
+  }
+}
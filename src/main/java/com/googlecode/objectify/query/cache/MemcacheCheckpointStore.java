@@ -0,0 +1,94 @@
+package com.googlecode.objectify.query.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+/**
+ * A <code>CheckpointStore</code> in App Engine memcache, shared by all
+ * instances of the application.  Checkpoints expire <code>ttlMillis</code>
+ * after they were stored, and the checkpoints of one lookup are read with a
+ * single batch get.
+ * <p/>
+ * Like <code>MemcacheQueryCache</code>, every kind has a generation number
+ * that is part of the entry keys and is incremented by
+ * <code>invalidate</code>.
+ */
+public class MemcacheCheckpointStore implements CheckpointStore {
+
+  private final MemcacheService memcache;
+  private final int ttlMillis;
+
+  public MemcacheCheckpointStore(int ttlMillis) {
+    this(MemcacheServiceFactory.getMemcacheService(MemcacheQueryCache.NAMESPACE),
+        ttlMillis);
+  }
+
+  public MemcacheCheckpointStore(MemcacheService memcache, int ttlMillis) {
+    this.memcache = memcache;
+    this.ttlMillis = ttlMillis;
+  }
+
+  public Map<Integer, String> get(String kind, String shape,
+      Collection<Integer> offsets) {
+    Map<Integer, String> cursors = new HashMap<Integer, String>();
+    Object generation = generation(kind);
+    if (generation == null) {
+      return cursors;
+    }
+    List<String> keys = new ArrayList<String>(offsets.size());
+    for (Integer offset : offsets) {
+      keys.add(entryKey(kind, generation, shape, offset));
+    }
+    Map<String, Object> values = this.memcache.getAll(keys);
+    for (Integer offset : offsets) {
+      Object value = values.get(entryKey(kind, generation, shape, offset));
+      if (value instanceof String) {
+        cursors.put(offset, (String) value);
+      }
+    }
+    return cursors;
+  }
+
+  public void put(String kind, String shape, int offset, String cursor) {
+    Object generation = generation(kind);
+    if (generation != null) {
+      this.memcache.put(entryKey(kind, generation, shape, offset), cursor,
+          Expiration.byDeltaMillis(this.ttlMillis));
+    }
+  }
+
+  public void invalidate(String kind) {
+    this.memcache.increment(generationKey(kind), 1,
+        System.currentTimeMillis());
+  }
+
+  /** starts a missing generation at the current time, see MemcacheQueryCache */
+  private Object generation(String kind) {
+    String generationKey = generationKey(kind);
+    Object generation = this.memcache.get(generationKey);
+    if (generation == null) {
+      this.memcache.put(generationKey, System.currentTimeMillis(), null,
+          SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+      generation = this.memcache.get(generationKey);
+    }
+    return generation;
+  }
+
+  private static String generationKey(String kind) {
+    return "checkpoint-generation|" + kind;
+  }
+
+  private static String entryKey(String kind, Object generation,
+      String shape, int offset) {
+    return "checkpoint|" + kind + "|" + generation + "|" + offset + "|"
+        + shape;
+  }
+}
@@ -0,0 +1,104 @@
+package com.googlecode.objectify.query.cache;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.query.shared.ListPage;
+
+/**
+ * A <code>QueryCache</code> in App Engine memcache, shared by all instances
+ * of the application.  Pages expire <code>ttlMillis</code> after they were
+ * stored, memcache evicts the least recently used pages under memory
+ * pressure.
+ * <p/>
+ * Memcache cannot delete by prefix, so every kind has a generation number
+ * that is part of the entry keys.  <code>invalidate</code> increments the
+ * generation, which orphans the pages stored under the previous one.
+ */
+public class MemcacheQueryCache implements QueryCache {
+
+  /** The memcache namespace used by the default constructor. */
+  public static final String NAMESPACE = "objectify-query";
+
+  private static class CachedPage implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    final ArrayList<Key<?>> keys;
+    final String cursor;
+    final boolean more;
+
+    CachedPage(ListPage<? extends Key<?>> page) {
+      this.keys = new ArrayList<Key<?>>(page.subList(0, page.size()));
+      this.cursor = page.getCursor();
+      this.more = page.more();
+    }
+  }
+
+  private final MemcacheService memcache;
+  private final int ttlMillis;
+
+  public MemcacheQueryCache(int ttlMillis) {
+    this(MemcacheServiceFactory.getMemcacheService(NAMESPACE), ttlMillis);
+  }
+
+  public MemcacheQueryCache(MemcacheService memcache, int ttlMillis) {
+    this.memcache = memcache;
+    this.ttlMillis = ttlMillis;
+  }
+
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  public <T> ListPage<Key<T>> get(String kind, String key) {
+    Object generation = generation(kind);
+    if (generation == null) {
+      return null;
+    }
+    Object value = this.memcache.get(entryKey(kind, generation, key));
+    if (!(value instanceof CachedPage)) {
+      return null;
+    }
+    CachedPage cached = (CachedPage) value;
+    return new ListPage<Key<T>>((ArrayList) cached.keys, cached.cursor,
+        cached.more);
+  }
+
+  public <T> void put(String kind, String key, ListPage<Key<T>> page) {
+    Object generation = generation(kind);
+    if (generation != null) {
+      this.memcache.put(entryKey(kind, generation, key), new CachedPage(page),
+          Expiration.byDeltaMillis(this.ttlMillis));
+    }
+  }
+
+  public void invalidate(String kind) {
+    this.memcache.increment(generationKey(kind), 1,
+        System.currentTimeMillis());
+  }
+
+  /**
+   * Starts a missing generation at the current time rather than at zero, so
+   * pages of a generation that was evicted from memcache are not reused.
+   */
+  private Object generation(String kind) {
+    String generationKey = generationKey(kind);
+    Object generation = this.memcache.get(generationKey);
+    if (generation == null) {
+      this.memcache.put(generationKey, System.currentTimeMillis(), null,
+          SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+      generation = this.memcache.get(generationKey);
+    }
+    return generation;
+  }
+
+  private static String generationKey(String kind) {
+    return "generation|" + kind;
+  }
+
+  private static String entryKey(String kind, Object generation, String key) {
+    return "page|" + kind + "|" + generation + "|" + key;
+  }
+}
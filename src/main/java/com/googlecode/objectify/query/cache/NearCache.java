@@ -0,0 +1,159 @@
+package com.googlecode.objectify.query.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.googlecode.objectify.Key;
+
+/**
+ * An in-process cache of the related entities loaded by generated queries,
+ * see <code>useNearCache</code> on the generated query.  Only the entity
+ * types registered with <code>cache</code> are kept, each in its own region
+ * holding up to <code>maxEntries</code> entities, evicting the least recently
+ * used entity first.  Entities expire <code>ttlMillis</code> after they were
+ * loaded.
+ * <p/>
+ * Cached entities are shared by every query and thread using the cache, so
+ * this suits reference entities that are not modified in place.  Entities
+ * are not updated when they change in the datastore: call
+ * <code>invalidate</code> after writing them, or rely on the expiry.
+ */
+public class NearCache {
+
+  /** The hit and miss counters of one entity type. */
+  public static class Stats {
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public long getHits() {
+      return this.hits.get();
+    }
+
+    public long getMisses() {
+      return this.misses.get();
+    }
+
+    @Override
+    public String toString() {
+      return "hits=" + getHits() + ", misses=" + getMisses();
+    }
+  }
+
+  private static class Entry {
+    final Object entity;
+    final long expires;
+
+    Entry(Object entity, long expires) {
+      this.entity = entity;
+      this.expires = expires;
+    }
+  }
+
+  private static class Region {
+    final long ttlMillis;
+    final LinkedHashMap<Key<?>, Entry> entries;
+    final Stats stats = new Stats();
+
+    Region(final int maxEntries, long ttlMillis) {
+      this.ttlMillis = ttlMillis;
+      this.entries = new LinkedHashMap<Key<?>, Entry>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key<?>, Entry> eldest) {
+          return size() > maxEntries;
+        }
+      };
+    }
+  }
+
+  /** regions by kind */
+  private final ConcurrentHashMap<String, Region> regions = new ConcurrentHashMap<String, Region>();
+
+  /**
+   * Caches the entities of <code>type</code>, replacing a previous region of
+   * the type and the entities it held.
+   */
+  public NearCache cache(Class<?> type, int maxEntries, long ttlMillis) {
+    assert maxEntries > 0;
+    this.regions.put(Key.getKind(type), new Region(maxEntries, ttlMillis));
+    return this;
+  }
+
+  /** @return whether entities of the kind of <code>key</code> are cached. */
+  public boolean isCached(Key<?> key) {
+    return this.regions.containsKey(key.getKind());
+  }
+
+  /**
+   * @return the cached entity, or <code>null</code>.  Only lookups of
+   *   cached types are counted.
+   */
+  @SuppressWarnings("unchecked")
+  public <T> T get(Key<? extends T> key) {
+    Region region = this.regions.get(key.getKind());
+    if (region == null) {
+      return null;
+    }
+    Entry entry;
+    synchronized (region.entries) {
+      entry = region.entries.get(key);
+      if (entry != null && entry.expires <= System.currentTimeMillis()) {
+        region.entries.remove(key);
+        entry = null;
+      }
+    }
+    (entry == null ? region.stats.misses : region.stats.hits).incrementAndGet();
+    return entry == null ? null : (T) entry.entity;
+  }
+
+  /** Stores <code>entity</code> if its type is cached. */
+  public <T> void put(Key<? extends T> key, T entity) {
+    Region region = this.regions.get(key.getKind());
+    if (region != null && entity != null) {
+      Entry entry = new Entry(entity, System.currentTimeMillis()
+          + region.ttlMillis);
+      synchronized (region.entries) {
+        region.entries.put(key, entry);
+      }
+    }
+  }
+
+  public void invalidate(Key<?> key) {
+    Region region = this.regions.get(key.getKind());
+    if (region != null) {
+      synchronized (region.entries) {
+        region.entries.remove(key);
+      }
+    }
+  }
+
+  /** Drops every cached entity of <code>type</code>. */
+  public void invalidate(Class<?> type) {
+    Region region = this.regions.get(Key.getKind(type));
+    if (region != null) {
+      synchronized (region.entries) {
+        region.entries.clear();
+      }
+    }
+  }
+
+  /** @return the counters of <code>type</code>, or <code>null</code>. */
+  public Stats getStats(Class<?> type) {
+    Region region = this.regions.get(Key.getKind(type));
+    return region == null ? null : region.stats;
+  }
+
+  /** @return the number of entities of <code>type</code> held. */
+  public int size(Class<?> type) {
+    Region region = this.regions.get(Key.getKind(type));
+    if (region == null) {
+      return 0;
+    }
+    synchronized (region.entries) {
+      return region.entries.size();
+    }
+  }
+}
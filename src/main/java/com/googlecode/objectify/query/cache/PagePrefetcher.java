@@ -0,0 +1,238 @@
+package com.googlecode.objectify.query.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.apphosting.api.ApiProxy;
+import com.googlecode.objectify.query.shared.ListPage;
+
+/**
+ * Fetches the next page of generated queries in the background, see
+ * <code>usePrefetch</code> on the generated query.
+ * <p/>
+ * Once <code>list</code> returned a page with more rows, the next page is
+ * fetched on <code>executor</code> and held under the query shape, the
+ * cursor and the page size, like the entries of a <code>QueryCache</code>.
+ * A following <code>list</code> from that cursor takes the page, waiting for
+ * it if it is still being fetched, and starts prefetching the page after it.
+ * A prefetched page is only taken once.
+ * <p/>
+ * At most <code>maxRows</code> rows are held, counting every page at its
+ * page size and evicting the oldest page first, and at most
+ * <code>maxRunning</code> prefetches run at a time; further prefetches are
+ * skipped.  Held pages are not updated when entities change: call
+ * <code>invalidate</code> after writing entities of a kind.
+ * <p/>
+ * A prefetch runs with the API environment of the request that started it
+ * when the executor's thread has none of its own.
+ */
+public class PagePrefetcher {
+
+  /** The counters of a prefetcher. */
+  public static class Stats {
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /** @return the number of pages served by a prefetch. */
+    public long getHits() {
+      return this.hits.get();
+    }
+
+    /** @return the number of pages that had to be queried. */
+    public long getMisses() {
+      return this.misses.get();
+    }
+
+    /** @return the share of pages served by a prefetch, 0 before any page. */
+    public double getHitRate() {
+      long hits = getHits();
+      long total = hits + getMisses();
+      return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public long getStarted() {
+      return this.started.get();
+    }
+
+    /** @return the number of prefetches not started because of the limits. */
+    public long getSkipped() {
+      return this.skipped.get();
+    }
+
+    /** @return the number of pages dropped before they were taken. */
+    public long getEvicted() {
+      return this.evicted.get();
+    }
+
+    public long getFailed() {
+      return this.failed.get();
+    }
+
+    @Override
+    public String toString() {
+      return "hits=" + getHits() + ", misses=" + getMisses() + ", started="
+          + getStarted() + ", skipped=" + getSkipped() + ", evicted="
+          + getEvicted() + ", failed=" + getFailed();
+    }
+  }
+
+  private static class Entry {
+    final String kind;
+    final int rows;
+    final FutureTask<ListPage<?>> task;
+
+    Entry(String kind, int rows, FutureTask<ListPage<?>> task) {
+      this.kind = kind;
+      this.rows = rows;
+      this.task = task;
+    }
+  }
+
+  private final Executor executor;
+  private final int maxRows;
+  private final int maxRunning;
+  private final AtomicInteger running = new AtomicInteger();
+  private final Stats stats = new Stats();
+
+  /** pages by kind and key, oldest first */
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+  private int rows;
+
+  public PagePrefetcher(Executor executor, int maxRows, int maxRunning) {
+    assert maxRows > 0 && maxRunning > 0;
+    this.executor = executor;
+    this.maxRows = maxRows;
+    this.maxRunning = maxRunning;
+  }
+
+  /**
+   * Starts fetching a page of <code>pageSize</code> rows with
+   * <code>loader</code>, unless the page is already held or a limit is
+   * reached.
+   */
+  @SuppressWarnings("unchecked")
+  public <T> void prefetch(String kind, String key, int pageSize,
+      Callable<ListPage<T>> loader) {
+    final FutureTask<ListPage<?>> task = new FutureTask<ListPage<?>>(
+        (Callable<ListPage<?>>) (Callable<?>) loader);
+    synchronized (this.entries) {
+      if (this.entries.containsKey(kind + "|" + key)) {
+        return;
+      }
+      if (pageSize > this.maxRows || this.running.get() >= this.maxRunning) {
+        this.stats.skipped.incrementAndGet();
+        return;
+      }
+      this.running.incrementAndGet();
+      this.entries.put(kind + "|" + key, new Entry(kind, pageSize, task));
+      this.rows += pageSize;
+      for (Iterator<Entry> i = this.entries.values().iterator(); this.rows > this.maxRows;) {
+        Entry eldest = i.next();
+        i.remove();
+        this.rows -= eldest.rows;
+        eldest.task.cancel(false);
+        this.stats.evicted.incrementAndGet();
+      }
+    }
+    final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+    try {
+      this.executor.execute(new Runnable() {
+        public void run() {
+          boolean inherit = ApiProxy.getCurrentEnvironment() == null
+              && environment != null;
+          if (inherit) {
+            ApiProxy.setEnvironmentForCurrentThread(environment);
+          }
+          // an evicted task returns at once
+          try {
+            task.run();
+          } finally {
+            if (inherit) {
+              ApiProxy.clearEnvironmentForCurrentThread();
+            }
+            PagePrefetcher.this.running.decrementAndGet();
+          }
+        }
+      });
+      this.stats.started.incrementAndGet();
+    } catch (RejectedExecutionException e) {
+      remove(kind + "|" + key);
+      task.cancel(false);
+      this.running.decrementAndGet();
+      this.stats.skipped.incrementAndGet();
+    }
+  }
+
+  /**
+   * Takes the page prefetched under <code>key</code>, waiting for it if
+   * needed.
+   *
+   * @return the page, or <code>null</code> if none was prefetched or the
+   *   prefetch failed.
+   */
+  @SuppressWarnings("unchecked")
+  public <T> ListPage<T> take(String kind, String key) {
+    Entry entry = remove(kind + "|" + key);
+    if (entry == null) {
+      this.stats.misses.incrementAndGet();
+      return null;
+    }
+    try {
+      ListPage<T> page = (ListPage<T>) entry.task.get();
+      this.stats.hits.incrementAndGet();
+      return page;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      this.stats.failed.incrementAndGet();
+    }
+    this.stats.misses.incrementAndGet();
+    return null;
+  }
+
+  /** Drops every page held for queries of <code>kind</code>. */
+  public void invalidate(String kind) {
+    synchronized (this.entries) {
+      for (Iterator<Entry> i = this.entries.values().iterator(); i.hasNext();) {
+        Entry entry = i.next();
+        if (entry.kind.equals(kind)) {
+          i.remove();
+          this.rows -= entry.rows;
+          entry.task.cancel(false);
+        }
+      }
+    }
+  }
+
+  public Stats getStats() {
+    return this.stats;
+  }
+
+  /** @return the number of pages held, including those being fetched. */
+  public int size() {
+    synchronized (this.entries) {
+      return this.entries.size();
+    }
+  }
+
+  private Entry remove(String key) {
+    synchronized (this.entries) {
+      Entry entry = this.entries.remove(key);
+      if (entry != null) {
+        this.rows -= entry.rows;
+      }
+      return entry;
+    }
+  }
+}
@@ -0,0 +1,27 @@
+package com.googlecode.objectify.query.cache;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.query.shared.ListPage;
+
+/**
+ * Stores the pages of keys returned by generated queries, see
+ * <code>useCache</code> on the generated query.
+ * <p/>
+ * Entries are grouped by entity kind.  The entry key is made of the query
+ * shape, the start cursor and the page size, so a page is only reused for a
+ * query with the same filters, ancestor and sort orders.  Cached pages are
+ * not updated when entities change: call <code>invalidate</code> after
+ * writing entities of a kind, or rely on the expiry of the backend.
+ * <p/>
+ * Implementations must be thread-safe.
+ */
+public interface QueryCache {
+
+  /** @return the cached page, or <code>null</code>. */
+  <T> ListPage<Key<T>> get(String kind, String key);
+
+  <T> void put(String kind, String key, ListPage<Key<T>> page);
+
+  /** Drops every page cached for queries of <code>kind</code>. */
+  void invalidate(String kind);
+}
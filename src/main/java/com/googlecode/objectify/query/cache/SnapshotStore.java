@@ -0,0 +1,241 @@
+package com.googlecode.objectify.query.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.NamespaceManager;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import com.googlecode.objectify.ObjectifyFactory;
+import com.googlecode.objectify.query.util.IndexedSnapshot;
+import com.googlecode.objectify.query.util.RawQuery;
+
+/**
+ * Holds an <code>IndexedSnapshot</code> of every entity of one kind, which
+ * answers the generated queries of an entity annotated with
+ * <code>@Snapshot</code>, see <code>useSnapshot</code> on the generated
+ * query.
+ * <p/>
+ * The first read loads the snapshot and waits for it.  A read that finds the
+ * snapshot older than <code>refreshMillis</code>, or invalidated, loads the
+ * next one, on the executor given to <code>refreshOn</code> or else on its
+ * own thread, while every other read keeps getting the current snapshot.  A
+ * loaded snapshot replaces the current one atomically, so readers never wait
+ * for a refresh.  A failed refresh keeps the current snapshot, and the next
+ * read tries again.
+ * <p/>
+ * Writes are only seen once the snapshot is refreshed: call
+ * <code>invalidate</code> after writing entities of the kind.  A store holds
+ * the namespace that was current when it was made.
+ */
+public class SnapshotStore {
+
+  /** Entities read per datastore round trip while loading. */
+  public static final int LOAD_BATCH_SIZE = 500;
+
+  private static final Logger log = Logger.getLogger(SnapshotStore.class.getName());
+
+  /** The counters of a store. */
+  public static class Stats {
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /** @return the number of snapshots loaded. */
+    public long getLoads() {
+      return this.loads.get();
+    }
+
+    public long getFailed() {
+      return this.failed.get();
+    }
+
+    @Override
+    public String toString() {
+      return "loads=" + getLoads() + ", failed=" + getFailed();
+    }
+  }
+
+  private static class Entry {
+    final IndexedSnapshot snapshot;
+    /** the invalidations before the load started */
+    final long generation;
+
+    Entry(IndexedSnapshot snapshot, long generation) {
+      this.snapshot = snapshot;
+      this.generation = generation;
+    }
+  }
+
+  private final ObjectifyFactory factory;
+  private final String kind;
+  private final String namespace;
+  private final List<String> indexedProperties;
+  private final long refreshMillis;
+  private volatile Executor executor;
+
+  private final AtomicReference<Entry> current = new AtomicReference<Entry>();
+  private final AtomicBoolean refreshing = new AtomicBoolean();
+  private final AtomicLong generation = new AtomicLong();
+  private final Stats stats = new Stats();
+
+  /**
+   * @param refreshMillis
+   *   the age at which a snapshot is reloaded, <code>0</code> to only reload
+   *   it once invalidated.
+   * @param indexedProperties
+   *   the properties to keep a hash index of, besides the key.
+   */
+  public SnapshotStore(ObjectifyFactory factory, Class<?> entityClass,
+      long refreshMillis, String... indexedProperties) {
+    this.factory = factory;
+    this.kind = factory.getKind(entityClass);
+    String namespace = NamespaceManager.get();
+    this.namespace = namespace == null ? "" : namespace;
+    this.indexedProperties = Arrays.asList(indexedProperties);
+    this.refreshMillis = refreshMillis;
+  }
+
+  /**
+   * Loads the next snapshots on <code>executor</code>, which must run its
+   * tasks where datastore calls are allowed.  Until one is loaded, every
+   * read gets the current snapshot.
+   */
+  public SnapshotStore refreshOn(Executor executor) {
+    this.executor = executor;
+    return this;
+  }
+
+  /**
+   * @return <code>true</code> if the snapshot answers <code>query</code>
+   *   from <code>cursor</code>: the query is in the namespace of the store
+   *   and the cursor is a snapshot cursor or <code>null</code>.
+   */
+  public boolean answers(RawQuery query, String cursor) {
+    String namespace = query.getNamespace();
+    return IndexedSnapshot.isCursor(cursor)
+        && this.namespace.equals(namespace == null ? "" : namespace);
+  }
+
+  /**
+   * @return the current snapshot, loading the first one, or the next one if
+   *   it is stale and no other read is loading it.
+   */
+  public IndexedSnapshot get() {
+    final Entry entry = this.current.get();
+    if (entry == null) {
+      return first();
+    }
+    if (isStale(entry) && this.refreshing.compareAndSet(false, true)) {
+      Executor executor = this.executor;
+      if (executor == null) {
+        return refresh(entry);
+      }
+      try {
+        executor.execute(new Runnable() {
+          public void run() {
+            refresh(entry);
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        this.refreshing.set(false);
+      }
+    }
+    return entry.snapshot;
+  }
+
+  /** Loads a new snapshot now and replaces the current one with it. */
+  public IndexedSnapshot refresh() {
+    return install(load()).snapshot;
+  }
+
+  /** Makes the next read load a new snapshot. */
+  public void invalidate() {
+    this.generation.incrementAndGet();
+  }
+
+  public Stats getStats() {
+    return this.stats;
+  }
+
+  private synchronized IndexedSnapshot first() {
+    Entry entry = this.current.get();
+    if (entry == null) {
+      entry = install(load());
+    }
+    return entry.snapshot;
+  }
+
+  /** @return the new snapshot, or the stale one if loading failed. */
+  private IndexedSnapshot refresh(Entry stale) {
+    try {
+      return install(load()).snapshot;
+    } catch (RuntimeException e) {
+      log.log(Level.WARNING, "Snapshot refresh of " + this.kind + " failed", e);
+      return stale.snapshot;
+    } finally {
+      this.refreshing.set(false);
+    }
+  }
+
+  private boolean isStale(Entry entry) {
+    return entry.generation < this.generation.get()
+        || (this.refreshMillis > 0 && System.currentTimeMillis()
+            - entry.snapshot.getLoadedAt() >= this.refreshMillis);
+  }
+
+  /** Keeps the newer of the current and the loaded snapshot. */
+  private Entry install(Entry loaded) {
+    while (true) {
+      Entry entry = this.current.get();
+      if (entry != null
+          && entry.snapshot.getLoadedAt() > loaded.snapshot.getLoadedAt()) {
+        return entry;
+      }
+      if (this.current.compareAndSet(entry, loaded)) {
+        return loaded;
+      }
+    }
+  }
+
+  private Entry load() {
+    long generation = this.generation.get();
+    long loadedAt = System.currentTimeMillis();
+    try {
+      String previous = NamespaceManager.get();
+      NamespaceManager.set(this.namespace);
+      try {
+        Entry entry = new Entry(new IndexedSnapshot(this.factory, read(),
+            this.indexedProperties, loadedAt), generation);
+        this.stats.loads.incrementAndGet();
+        return entry;
+      } finally {
+        NamespaceManager.set(previous);
+      }
+    } catch (RuntimeException e) {
+      this.stats.failed.incrementAndGet();
+      throw e;
+    }
+  }
+
+  private List<Entity> read() {
+    DatastoreService datastore = this.factory.begin().getDatastore();
+    Query query = new Query(this.kind).addSort(Entity.KEY_RESERVED_PROPERTY);
+    ArrayList<Entity> entities = new ArrayList<Entity>();
+    for (Entity entity : datastore.prepare(query).asIterable(
+        FetchOptions.Builder.withChunkSize(LOAD_BATCH_SIZE).prefetchSize(
+            LOAD_BATCH_SIZE))) {
+      entities.add(entity);
+    }
+    return entities;
+  }
+}
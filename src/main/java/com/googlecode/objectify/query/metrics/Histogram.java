@@ -0,0 +1,77 @@
+package com.googlecode.objectify.query.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative values in power-of-two buckets.
+ * <p/>
+ * Bucket <code>i</code> counts the values that need <code>i</code> bits, so
+ * percentiles are accurate to a factor of two.  Count, sum and maximum are
+ * exact.
+ */
+public class Histogram {
+
+  private final AtomicLongArray buckets = new AtomicLongArray(65);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  public void add(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    this.buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+    this.count.incrementAndGet();
+    this.sum.addAndGet(value);
+    long current;
+    while (value > (current = this.max.get())
+        && !this.max.compareAndSet(current, value)) {
+    }
+  }
+
+  public long getCount() {
+    return this.count.get();
+  }
+
+  public long getSum() {
+    return this.sum.get();
+  }
+
+  public long getMax() {
+    return this.max.get();
+  }
+
+  public double getMean() {
+    long count = this.count.get();
+    return count == 0 ? 0 : (double) this.sum.get() / count;
+  }
+
+  /**
+   * @param fraction
+   *   between 0 and 1, e.g. <code>0.99</code>.
+   * @return the upper bound of the bucket holding that fraction of the values.
+   */
+  public long getPercentile(double fraction) {
+    long count = this.count.get();
+    if (count == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(fraction * count);
+    long seen = 0;
+    for (int i = 0; i < 65; i++) {
+      seen += this.buckets.get(i);
+      if (seen >= rank) {
+        return Math.min(i == 64 ? Long.MAX_VALUE : (1L << i) - 1, getMax());
+      }
+    }
+    return getMax();
+  }
+
+  @Override
+  public String toString() {
+    return "count=" + getCount() + " mean=" + Math.round(getMean())
+        + " p50=" + getPercentile(0.5) + " p99=" + getPercentile(0.99)
+        + " max=" + getMax();
+  }
+}
@@ -0,0 +1,81 @@
+package com.googlecode.objectify.query.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps in-memory histograms of every <code>QueryExecution</code>, per
+ * generated method and query pattern.  Recording takes no locks.
+ */
+public class HistogramQueryMetrics implements QueryMetrics {
+
+  /** The histograms of one method and query pattern. */
+  public static class Stats {
+    public final Histogram roundTrips = new Histogram();
+    public final Histogram entities = new Histogram();
+    public final Histogram keys = new Histogram();
+    public final Histogram batchGetKeys = new Histogram();
+    public final Histogram discarded = new Histogram();
+    public final Histogram scanNanos = new Histogram();
+    public final Histogram batchGetNanos = new Histogram();
+    public final Histogram totalNanos = new Histogram();
+
+    void add(QueryExecution execution) {
+      this.roundTrips.add(execution.getRoundTrips());
+      this.entities.add(execution.getEntities());
+      this.keys.add(execution.getKeys());
+      this.batchGetKeys.add(execution.getBatchGetKeys());
+      this.discarded.add(execution.getDiscarded());
+      this.scanNanos.add(execution.getScanNanos());
+      this.batchGetNanos.add(execution.getBatchGetNanos());
+      this.totalNanos.add(execution.getTotalNanos());
+    }
+
+    @Override
+    public String toString() {
+      return "roundTrips: " + this.roundTrips + "\n"
+          + "entities: " + this.entities + "\n"
+          + "keys: " + this.keys + "\n"
+          + "batchGetKeys: " + this.batchGetKeys + "\n"
+          + "discarded: " + this.discarded + "\n"
+          + "scanNanos: " + this.scanNanos + "\n"
+          + "batchGetNanos: " + this.batchGetNanos + "\n"
+          + "totalNanos: " + this.totalNanos + "\n";
+    }
+  }
+
+  private final ConcurrentMap<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+
+  public void record(QueryExecution execution) {
+    String key = key(execution.getMethod(), execution.getShape());
+    Stats stats = this.stats.get(key);
+    if (stats == null) {
+      Stats created = new Stats();
+      stats = this.stats.putIfAbsent(key, created);
+      if (stats == null) {
+        stats = created;
+      }
+    }
+    stats.add(execution);
+  }
+
+  /** @return the histograms, or <code>null</code> if nothing was recorded. */
+  public Stats getStats(String method, String shape) {
+    return this.stats.get(key(method, shape));
+  }
+
+  /** @return all histograms, keyed by <code>"method shape"</code>. */
+  public Map<String, Stats> getStats() {
+    return Collections.unmodifiableMap(this.stats);
+  }
+
+  public void clear() {
+    this.stats.clear();
+  }
+
+  private static String key(String method, String shape) {
+    return method + " " + shape;
+  }
+}
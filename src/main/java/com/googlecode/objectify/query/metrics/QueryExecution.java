@@ -0,0 +1,137 @@
+package com.googlecode.objectify.query.metrics;
+
+/**
+ * What one call of a generated query method did and where its time went.
+ * <p/>
+ * Objectify translates entities while the query iterator is read, so for
+ * entity pages the translation time is part of the scan phase.  Datastore
+ * round trips are derived from the rows read and the fetch sizes of the
+ * query, plus one per related-entity batch get.
+ */
+public class QueryExecution {
+
+  private final String shape;
+  private final String method;
+  private final long start = System.nanoTime();
+  private long phaseStart = this.start;
+
+  private int roundTrips;
+  private int entities;
+  private int keys;
+  private int batchGetKeys;
+  private int discarded;
+  private long scanNanos;
+  private long batchGetNanos;
+  private long totalNanos;
+
+  /**
+   * @param shape
+   *   the query pattern, without filter values.
+   * @param method
+   *   the generated method, e.g. <code>"listParents"</code>.
+   */
+  public QueryExecution(String shape, String method) {
+    this.shape = shape;
+    this.method = method;
+  }
+
+  /**
+   * Ends the scan phase.
+   *
+   * @param rows
+   *   the rows read from the query iterator.
+   * @param keysOnly
+   *   <code>true</code> if the rows were keys.
+   * @param discarded
+   *   rows read beyond <code>pageSize</code> and not returned.
+   * @param prefetchSize
+   *   the rows fetched by the first round trip, <code>0</code> or less if
+   *   unbounded.
+   * @param chunkSize
+   *   the rows fetched by every following round trip.
+   */
+  public void scanned(int rows, boolean keysOnly, int discarded,
+      int prefetchSize, int chunkSize) {
+    long now = System.nanoTime();
+    this.scanNanos += now - this.phaseStart;
+    this.phaseStart = now;
+
+    if (keysOnly) {
+      this.keys += rows;
+    } else {
+      this.entities += rows;
+    }
+    this.discarded += discarded;
+    this.roundTrips++;
+    if (prefetchSize > 0 && rows > prefetchSize && chunkSize > 0) {
+      this.roundTrips += (rows - prefetchSize + chunkSize - 1) / chunkSize;
+    }
+  }
+
+  /** Ends the batch-get phase of related entities. */
+  public void fetched(int keys, int batches) {
+    long now = System.nanoTime();
+    this.batchGetNanos += now - this.phaseStart;
+    this.phaseStart = now;
+
+    this.batchGetKeys += keys;
+    this.roundTrips += batches;
+  }
+
+  /** Ends the execution, before it is recorded. */
+  public QueryExecution finish() {
+    this.totalNanos = System.nanoTime() - this.start;
+    return this;
+  }
+
+  public String getShape() {
+    return this.shape;
+  }
+
+  public String getMethod() {
+    return this.method;
+  }
+
+  public int getRoundTrips() {
+    return this.roundTrips;
+  }
+
+  /** @return entities read by the scan. */
+  public int getEntities() {
+    return this.entities;
+  }
+
+  /** @return keys read by a keys-only scan. */
+  public int getKeys() {
+    return this.keys;
+  }
+
+  /** @return distinct related keys requested by batch gets. */
+  public int getBatchGetKeys() {
+    return this.batchGetKeys;
+  }
+
+  public int getDiscarded() {
+    return this.discarded;
+  }
+
+  public long getScanNanos() {
+    return this.scanNanos;
+  }
+
+  public long getBatchGetNanos() {
+    return this.batchGetNanos;
+  }
+
+  public long getTotalNanos() {
+    return this.totalNanos;
+  }
+
+  @Override
+  public String toString() {
+    return "QueryExecution[" + this.method + "," + this.shape + ","
+        + this.roundTrips + "," + this.entities + "," + this.keys + ","
+        + this.batchGetKeys + "," + this.discarded + "," + this.scanNanos
+        + "," + this.batchGetNanos + "," + this.totalNanos + "]";
+  }
+}
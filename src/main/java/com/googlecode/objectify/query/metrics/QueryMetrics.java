@@ -0,0 +1,13 @@
+package com.googlecode.objectify.query.metrics;
+
+/**
+ * Receives a <code>QueryExecution</code> for every page or count computed by
+ * a generated query, see <code>useMetrics</code> on the generated query.
+ * <p/>
+ * Called on the thread that ran the query, so implementations must be
+ * thread-safe and should return quickly.
+ */
+public interface QueryMetrics {
+
+  void record(QueryExecution execution);
+}
@@ -0,0 +1,252 @@
+package com.googlecode.objectify.query.processor;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.tools.StandardLocation;
+import javax.tools.Diagnostic.Kind;
+
+import com.googlecode.objectify.query.annotation.QueryIndex;
+import com.googlecode.objectify.query.annotation.QueryIndexes;
+
+/**
+ * Derives the composite indexes of the queries declared with
+ * <code>@QueryIndex</code>, and writes them as a
+ * <code>datastore-indexes.xml</code> file once every entity was processed.
+ * <p/>
+ * An index holds the equality filtered properties in name order, which
+ * makes equivalent declarations share their index, then the inequality
+ * filtered property, then the remaining sort orders.  Queries served by the
+ * built-in single property indexes need none.  Queries with several equality
+ * filters get an index too, although the datastore can answer them with a
+ * zig-zag merge join of the built-in indexes, which is much slower.
+ */
+class DatastoreIndexes {
+
+  private static final String KEY = "__key__";
+
+  /** index xml by kind and xml, so duplicates are written once, in order */
+  private final TreeMap<String, Element> indexes = new TreeMap<String, Element>();
+
+  /**
+   * Checks the declared queries of <code>model</code> and collects their
+   * indexes.  Queries the datastore rejects are reported as errors, queries
+   * the datastore or <code>MergedQuery</code> merge in memory as warnings.
+   */
+  void add(EntityModel model, Messager messager) {
+    List<AnnotationMirror> mirrors = mirrors(model.element);
+    for (int i = 0; i < model.queryIndexes.size(); i++) {
+      String index = plan(model, model.queryIndexes.get(i), mirrors.get(i),
+          messager);
+      if (index != null) {
+        this.indexes.put(index, model.element);
+      }
+    }
+  }
+
+  /**
+   * @return the <code>@QueryIndex</code> annotations of <code>element</code>,
+   *   in the order of <code>EntityModel.queryIndexes</code>, so each message
+   *   points at its own declaration; javac drops further errors reported at
+   *   one position.
+   */
+  private static List<AnnotationMirror> mirrors(Element element) {
+    List<AnnotationMirror> listed = new ArrayList<AnnotationMirror>();
+    List<AnnotationMirror> single = new ArrayList<AnnotationMirror>();
+    for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+      String type = ((TypeElement) mirror.getAnnotationType().asElement())
+          .getQualifiedName().toString();
+      if (type.equals(QueryIndex.class.getName())) {
+        single.add(mirror);
+      } else if (type.equals(QueryIndexes.class.getName())) {
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry
+            : mirror.getElementValues().entrySet()) {
+          for (Object value : (List<?>) entry.getValue().getValue()) {
+            listed.add((AnnotationMirror) ((AnnotationValue) value).getValue());
+          }
+        }
+      }
+    }
+    listed.addAll(single);
+    return listed;
+  }
+
+  boolean isEmpty() {
+    return this.indexes.isEmpty();
+  }
+
+  /**
+   * Writes the collected indexes to <code>path</code> under the class output,
+   * with every entity that contributed an index as originating element.
+   */
+  void write(ProcessingEnvironment env, String path) throws IOException {
+    LinkedHashSet<Element> elements = new LinkedHashSet<Element>(
+        this.indexes.values());
+    PrintWriter out = new PrintWriter(new BufferedWriter(
+        env.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", path,
+            elements.toArray(new Element[elements.size()])).openWriter()));
+    try {
+      out.println("<?xml version=\"1.0\" encoding=\"utf-8\"?>");
+      out.println("<!-- generated by objectify-query from @QueryIndex declarations -->");
+      out.println("<datastore-indexes autoGenerate=\"true\">");
+      for (String index : this.indexes.keySet()) {
+        out.print(index);
+      }
+      out.println("</datastore-indexes>");
+    } finally {
+      out.close();
+    }
+  }
+
+  /** @return the index xml, or <code>null</code> if none is needed. */
+  private String plan(EntityModel model, QueryIndex query,
+      AnnotationMirror declaration, Messager messager) {
+    String description = model.name + " @QueryIndex(filter="
+        + Arrays.toString(query.filter()) + ", order="
+        + Arrays.toString(query.order()) + ")";
+
+    boolean ancestor = false;
+    List<String> equalities = new ArrayList<String>();
+    String inequality = null;
+    for (String term : query.filter()) {
+      String[] parts = term.trim().split("\\s+");
+      String operator = parts.length > 1 ? parts[1].toLowerCase() : "=";
+      EntityModel.Filter filter = filter(model, parts[0]);
+      if (filter == null || parts.length > 2) {
+        messager.printMessage(Kind.ERROR, description + ": '" + term
+            + "' is not an indexed field with an optional operator.",
+            model.element, declaration);
+        return null;
+      }
+      if (filter.parent) {
+        ancestor = true;
+        continue;
+      }
+
+      String property = property(model, filter.name);
+      if (operator.equals("=") || operator.equals("==")) {
+        equalities.add(property);
+        continue;
+      } else if (operator.equals("in")) {
+        messager.printMessage(Kind.WARNING, description + ": '" + term
+            + "' runs one sub-query per value and merges them in memory.",
+            model.element, declaration);
+        equalities.add(property);
+        continue;
+      } else if (operator.equals("!=")) {
+        messager.printMessage(Kind.WARNING, description + ": '" + term
+            + "' runs two sub-queries and merges them in memory.",
+            model.element, declaration);
+      } else if (!operator.equals("<") && !operator.equals("<=")
+          && !operator.equals(">") && !operator.equals(">=")) {
+        messager.printMessage(Kind.ERROR, description + ": unknown operator '"
+            + operator + "'.", model.element, declaration);
+        return null;
+      }
+      if (inequality != null && !inequality.equals(property)) {
+        messager.printMessage(Kind.ERROR, description
+            + ": the datastore only allows inequality filters on one property, not on both "
+            + inequality + " and " + property + ".", model.element, declaration);
+        return null;
+      }
+      inequality = property;
+    }
+
+    // property -> ascending, in index order
+    LinkedHashMap<String, Boolean> properties = new LinkedHashMap<String, Boolean>();
+    Collections.sort(equalities);
+    for (String property : equalities) {
+      properties.put(property, Boolean.TRUE);
+    }
+    List<String> orders = new ArrayList<String>();
+    List<Boolean> directions = new ArrayList<Boolean>();
+    for (String term : query.order()) {
+      String name = term.trim();
+      boolean ascending = !name.startsWith("-");
+      EntityModel.Filter filter = filter(model, ascending ? name
+          : name.substring(1));
+      if (filter == null || filter.parent) {
+        messager.printMessage(Kind.ERROR, description + ": '" + term
+            + "' is not an indexed field.", model.element, declaration);
+        return null;
+      }
+      orders.add(property(model, filter.name));
+      directions.add(ascending);
+    }
+    if (inequality != null) {
+      if (!orders.isEmpty() && !orders.get(0).equals(inequality)) {
+        messager.printMessage(Kind.ERROR, description
+            + ": the first sort order must be on the inequality filtered property "
+            + inequality + ".", model.element, declaration);
+        return null;
+      }
+      properties.remove(inequality);
+      properties.put(inequality, orders.isEmpty() || directions.get(0));
+    }
+    for (int i = 0; i < orders.size(); i++) {
+      // a sort order on an equality filtered property has no effect
+      if (!properties.containsKey(orders.get(i))) {
+        properties.put(orders.get(i), directions.get(i));
+      }
+    }
+
+    // every index ends with the key ascending implicitly
+    if (Boolean.TRUE.equals(properties.get(KEY))
+        && last(properties).equals(KEY)) {
+      properties.remove(KEY);
+    }
+    boolean descendingKey = Boolean.FALSE.equals(properties.get(KEY));
+    if (properties.isEmpty()
+        || (!ancestor && properties.size() == 1 && !descendingKey)) {
+      return null;
+    }
+
+    StringBuilder xml = new StringBuilder();
+    xml.append("    <datastore-index kind=\"").append(model.kind).append(
+        "\" ancestor=\"").append(ancestor).append("\">\n");
+    for (Map.Entry<String, Boolean> property : properties.entrySet()) {
+      xml.append("        <property name=\"").append(property.getKey()).append(
+          "\" direction=\"").append(property.getValue() ? "asc" : "desc").append(
+          "\" />\n");
+    }
+    xml.append("    </datastore-index>\n");
+    return xml.toString();
+  }
+
+  private static EntityModel.Filter filter(EntityModel model, String name) {
+    for (EntityModel.Filter filter : model.filters) {
+      if (filter.name.equals(name)) {
+        return filter;
+      }
+    }
+    return null;
+  }
+
+  private static String property(EntityModel model, String field) {
+    return field.equals(model.idFieldName) ? KEY : field;
+  }
+
+  private static String last(LinkedHashMap<String, Boolean> properties) {
+    String last = null;
+    for (String property : properties.keySet()) {
+      last = property;
+    }
+    return last;
+  }
+}
@@ -0,0 +1,312 @@
+package com.googlecode.objectify.query.processor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.MirroredTypesException;
+import javax.lang.model.type.TypeMirror;
+import javax.persistence.Id;
+import javax.persistence.Transient;
+import javax.tools.Diagnostic.Kind;
+
+import com.googlecode.objectify.annotation.Indexed;
+import com.googlecode.objectify.annotation.NotSaved;
+import com.googlecode.objectify.annotation.Parent;
+import com.googlecode.objectify.annotation.Unindexed;
+import com.googlecode.objectify.query.annotation.Aggregate;
+import com.googlecode.objectify.query.annotation.Fetch;
+import com.googlecode.objectify.query.annotation.QueryIndex;
+import com.googlecode.objectify.query.annotation.QueryIndexes;
+import com.googlecode.objectify.query.annotation.Snapshot;
+
+/**
+ * Everything the processor needs to know about one entity, collected in a
+ * single pass over the entity's members.
+ */
+class EntityModel {
+
+  /** An indexed field that gets <code>filterBy</code> methods. */
+  static class Filter {
+    final String name;
+    final String type;
+    final boolean parent;
+    /** the <code>@Aggregate</code> of the field, or <code>null</code> */
+    final Aggregate aggregate;
+
+    Filter(String name, String type, boolean parent, Aggregate aggregate) {
+      this.name = name;
+      this.type = type;
+      this.parent = parent;
+      this.aggregate = aggregate;
+    }
+
+    String methodName() {
+      return "filterBy" + capitalized();
+    }
+
+    String orderMethodName() {
+      return "orderBy" + capitalized();
+    }
+
+    String capitalized() {
+      return this.name.substring(0, 1).toUpperCase() + this.name.substring(1);
+    }
+  }
+
+  /** A <code>@List</code> annotated getter. */
+  static class Relation {
+    final String getter;
+    final String singularName;
+    final String pluralName;
+    final String type;
+    /** the backing property read from raw entities, or <code>null</code> */
+    final String rawProperty;
+
+    Relation(String getter, String singularName, String pluralName,
+        String type, String rawProperty) {
+      this.getter = getter;
+      this.singularName = singularName;
+      this.pluralName = pluralName;
+      this.type = type;
+      this.rawProperty = rawProperty;
+    }
+  }
+
+  final TypeElement element;
+  final String packageName;
+  final String name;
+  /** the datastore kind, as named by objectify */
+  final String kind;
+  final String queryPackageName;
+  final String queryName;
+  final String idFieldName;
+  /** the type of the <code>@Parent</code> key, or <code>null</code> */
+  final String parentType;
+  final String prefetchSize;
+  final String chunkSize;
+  /** the <code>@Snapshot</code> of the entity, or <code>null</code> */
+  final Snapshot snapshot;
+  final List<Filter> filters = new ArrayList<Filter>();
+  final List<Relation> relations = new ArrayList<Relation>();
+  final List<QueryIndex> queryIndexes = new ArrayList<QueryIndex>();
+
+  EntityModel(ProcessingEnvironment env, TypeElement element) {
+    this.element = element;
+    this.packageName = env.getElementUtils().getPackageOf(element).getQualifiedName().toString();
+    this.name = element.getSimpleName().toString();
+    this.kind = kind(element, this.name);
+    this.queryName = this.name + "Query";
+    this.queryPackageName = this.packageName.replaceAll("\\.shared\\.",
+        ".server.");
+
+    Fetch fetch = element.getAnnotation(Fetch.class);
+    this.prefetchSize = fetch != null && fetch.prefetchSize() > 0
+        ? String.valueOf(fetch.prefetchSize()) : "fetchSize";
+    this.chunkSize = fetch != null && fetch.chunkSize() > 0
+        ? String.valueOf(fetch.chunkSize()) : "fetchSize";
+
+    this.snapshot = element.getAnnotation(Snapshot.class);
+
+    QueryIndexes queryIndexes = element.getAnnotation(QueryIndexes.class);
+    if (queryIndexes != null) {
+      this.queryIndexes.addAll(Arrays.asList(queryIndexes.value()));
+    }
+    QueryIndex queryIndex = element.getAnnotation(QueryIndex.class);
+    if (queryIndex != null) {
+      this.queryIndexes.add(queryIndex);
+    }
+
+    Unindexed unindexedClass = element.getAnnotation(Unindexed.class);
+    DeclaredType declaredType = (DeclaredType) element.asType();
+
+    String idFieldName = null;
+    String parentType = null;
+    Map<String, VariableElement> fields = new HashMap<String, VariableElement>();
+    List<ExecutableElement> listGetters = new ArrayList<ExecutableElement>();
+
+    for (Element member : env.getElementUtils().getAllMembers(element)) {
+      if (member.getKind() == ElementKind.METHOD) {
+        ExecutableElement methodElement = (ExecutableElement) member;
+        if (methodElement.getParameters().size() == 0
+            && methodElement.getAnnotation(com.googlecode.objectify.query.annotation.List.class) != null) {
+          listGetters.add(methodElement);
+        }
+        continue;
+      } else if (member.getKind() != ElementKind.FIELD) {
+        continue;
+      }
+
+      VariableElement fieldElement = (VariableElement) member;
+      String fieldName = fieldElement.getSimpleName().toString();
+      fields.put(fieldName, fieldElement);
+
+      if (fieldElement.getAnnotation(Id.class) != null) {
+        idFieldName = fieldName;
+      }
+
+      String fieldType = env.getTypeUtils().asMemberOf(declaredType,
+          fieldElement).toString();
+
+      if (parentType == null && fieldElement.getAnnotation(Parent.class) != null) {
+        parentType = fieldType.substring(fieldType.indexOf('<') + 1,
+            fieldType.lastIndexOf('>'));
+        this.filters.add(new Filter(fieldName, fieldType, true, null));
+        continue;
+      }
+
+      Unindexed unindexedField = fieldElement.getAnnotation(Unindexed.class);
+      if (unindexedField != null && unconditional(unindexedField)) {
+        // @Unindexed field without If... parameter
+        continue;
+      } else if (fieldElement.getAnnotation(NotSaved.class) != null) {
+        // @NotSaved field
+        continue;
+      } else if (fieldElement.getAnnotation(Transient.class) != null) {
+        // @Transient field
+        continue;
+      } else if (unindexedClass != null
+          && fieldElement.getAnnotation(Indexed.class) == null) {
+        // @Unindexed class and field is not @Indexed
+        continue;
+      }
+      this.filters.add(new Filter(fieldName, fieldType, false,
+          fieldElement.getAnnotation(Aggregate.class)));
+    }
+    this.idFieldName = idFieldName;
+    this.parentType = parentType;
+    checkAggregates(env, fields);
+
+    for (ExecutableElement methodElement : listGetters) {
+      com.googlecode.objectify.query.annotation.List listField = methodElement.getAnnotation(com.googlecode.objectify.query.annotation.List.class);
+
+      String returnType = methodElement.getReturnType().toString();
+      returnType = returnType.substring(returnType.indexOf('<') + 1,
+          returnType.lastIndexOf('>'));
+
+      this.relations.add(new Relation(
+          methodElement.getSimpleName().toString(), listField.singularName(),
+          listField.pluralName(), returnType, rawProperty(env, methodElement,
+              listField.property(), fields.get(listField.property()))));
+    }
+  }
+
+  /**
+   * Reports <code>@Aggregate</code> fields that are not indexed, and
+   * <code>groupBy</code> names that are not indexed <code>Key</code> fields.
+   */
+  private void checkAggregates(ProcessingEnvironment env,
+      Map<String, VariableElement> fields) {
+    for (VariableElement field : fields.values()) {
+      Aggregate aggregate = field.getAnnotation(Aggregate.class);
+      if (aggregate == null) {
+        continue;
+      }
+      String fieldName = field.getSimpleName().toString();
+      Filter filter = filter(fieldName);
+      if (filter == null || filter.parent || fieldName.equals(this.idFieldName)) {
+        env.getMessager().printMessage(Kind.ERROR, "@Aggregate field '"
+            + fieldName + "' of " + this.name + " is not an indexed property.",
+            field);
+        continue;
+      }
+      for (String groupBy : aggregate.groupBy()) {
+        Filter group = filter(groupBy);
+        if (group == null || group.parent
+            || !group.type.startsWith("com.googlecode.objectify.Key<")) {
+          env.getMessager().printMessage(Kind.ERROR, "@Aggregate groupBy '"
+              + groupBy + "' of " + this.name + "." + fieldName
+              + " is not an indexed Key field.", field);
+        }
+      }
+    }
+  }
+
+  /** @return the indexed field named <code>name</code>, or <code>null</code>. */
+  Filter filter(String name) {
+    for (Filter filter : this.filters) {
+      if (filter.name.equals(name)) {
+        return filter;
+      }
+    }
+    return null;
+  }
+
+  /** @return the indexed fields a snapshot keeps a hash index of. */
+  List<String> snapshotProperties() {
+    List<String> properties = new ArrayList<String>();
+    for (Filter filter : this.filters) {
+      if (!filter.parent && !filter.name.equals(this.idFieldName)) {
+        properties.add(filter.name);
+      }
+    }
+    return properties;
+  }
+
+  String queryQualifiedName() {
+    return this.queryPackageName + "." + this.queryName;
+  }
+
+  /**
+   * @return <code>property</code> if it names a saved field of the getter's
+   *   type, which can then be read from the raw datastore entity.
+   */
+  private String rawProperty(ProcessingEnvironment env,
+      ExecutableElement methodElement, String property,
+      VariableElement backingField) {
+    if (property.length() == 0) {
+      return null;
+    }
+    if (backingField == null
+        || backingField.getModifiers().contains(Modifier.STATIC)
+        || backingField.getAnnotation(NotSaved.class) != null
+        || backingField.getAnnotation(Transient.class) != null
+        || backingField.getAnnotation(Parent.class) != null
+        || !env.getTypeUtils().isSameType(
+            env.getTypeUtils().asMemberOf((DeclaredType) this.element.asType(),
+                backingField), methodElement.getReturnType())) {
+      env.getMessager().printMessage(Kind.WARNING, "@List property '" + property
+          + "' of " + this.name + "." + methodElement.getSimpleName()
+          + "() is not a saved field of the same type; using the getter.",
+          methodElement);
+      return null;
+    }
+    return property;
+  }
+
+  /** objectify prefers its own <code>@Entity</code> name to the JPA one */
+  private static String kind(TypeElement element, String simpleName) {
+    com.googlecode.objectify.annotation.Entity entity = element.getAnnotation(com.googlecode.objectify.annotation.Entity.class);
+    if (entity != null && entity.name().length() > 0) {
+      return entity.name();
+    }
+    javax.persistence.Entity jpaEntity = element.getAnnotation(javax.persistence.Entity.class);
+    if (jpaEntity != null && jpaEntity.name().length() > 0) {
+      return jpaEntity.name();
+    }
+    return simpleName;
+  }
+
+  /**
+   * The <code>If</code> classes of <code>@Unindexed</code> are only available
+   * as type mirrors during annotation processing.
+   */
+  private static boolean unconditional(Unindexed unindexed) {
+    try {
+      return unindexed.value().length == 0;
+    } catch (MirroredTypesException e) {
+      List<? extends TypeMirror> conditions = e.getTypeMirrors();
+      return conditions.isEmpty();
+    }
+  }
+}
@@ -1,45 +1,88 @@
 package com.googlecode.objectify.query.processor;
 
-import static javax.lang.model.SourceVersion.RELEASE_6;
-
 import java.io.BufferedWriter;
+import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Set;
 
 import javax.annotation.processing.AbstractProcessor;
 import javax.annotation.processing.ProcessingEnvironment;
 import javax.annotation.processing.RoundEnvironment;
 import javax.annotation.processing.SupportedAnnotationTypes;
-import javax.annotation.processing.SupportedSourceVersion;
+import javax.lang.model.SourceVersion;
 import javax.lang.model.element.Element;
-import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.ElementKind;
 import javax.lang.model.element.Name;
 import javax.lang.model.element.TypeElement;
-import javax.lang.model.element.VariableElement;
-import javax.lang.model.type.DeclaredType;
-import javax.lang.model.util.ElementFilter;
-import javax.persistence.Transient;
 import javax.tools.Diagnostic.Kind;
 
-import com.googlecode.objectify.annotation.Indexed;
-import com.googlecode.objectify.annotation.NotSaved;
-import com.googlecode.objectify.annotation.Parent;
-import com.googlecode.objectify.annotation.Unindexed;
-import com.googlecode.objectify.query.annotation.List;
-import com.googlecode.objectify.query.annotation.List.KeyType;
-
+/**
+ * Generates a <code>*Query</code> class for every objectify entity.
+ * <p/>
+ * Each generated file is derived from its entity alone and is created with
+ * that entity as its only originating element, so the processor is
+ * isolating for Gradle's incremental compilation.
+ * <p/>
+ * With the option <code>objectifyQuery.indexes</code> the processor also
+ * writes the composite indexes of the <code>@QueryIndex</code> declarations
+ * of all entities to the file it names, relative to the class output.  That
+ * file aggregates every entity, so Gradle then treats the processor as
+ * aggregating.
+ */
 @SupportedAnnotationTypes({
     "com.googlecode.objectify.annotation.Entity", "javax.persistence.Entity"})
-@SupportedSourceVersion(RELEASE_6)
 public class EntityProcessor extends AbstractProcessor {
 
+  /** processor option naming the datastore-indexes file to write */
+  public static final String INDEXES_OPTION = "objectifyQuery.indexes";
+
+  private static final String KEY_TYPE = "com.googlecode.objectify.Key<";
+
   private ProcessingEnvironment env;
 
+  /** output of the indexes, or <code>null</code> if not requested */
+  private String indexesPath;
+  private final DatastoreIndexes indexes = new DatastoreIndexes();
+
+  /** import of the QueryWrapper found on the classpath, probed once */
+  private String queryWrapperImport;
+
   @Override
   public synchronized void init(ProcessingEnvironment env) {
     super.init(env);
 
     this.env = env;
+    String indexesPath = env.getOptions().get(INDEXES_OPTION);
+    if (indexesPath != null && indexesPath.length() > 0) {
+      this.indexesPath = indexesPath;
+    }
+    if (env.getElementUtils().getTypeElement(
+        "com.googlecode.objectify.util.QueryWrapper") != null) {
+      // objectify 3.x
+      this.queryWrapperImport = "com.googlecode.objectify.util.QueryWrapper";
+    } else if (env.getElementUtils().getTypeElement(
+        "com.googlecode.objectify.helper.QueryWrapper") != null) {
+      // objectify 2.x
+      this.queryWrapperImport = "com.googlecode.objectify.helper.QueryWrapper";
+    }
+  }
+
+  @Override
+  public Set<String> getSupportedOptions() {
+    Set<String> options = new HashSet<String>();
+    options.add(INDEXES_OPTION);
+    // registered as a dynamic incremental processor with Gradle
+    options.add(this.indexesPath == null
+        ? "org.gradle.annotation.processing.isolating"
+        : "org.gradle.annotation.processing.aggregating");
+    return Collections.unmodifiableSet(options);
+  }
+
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
   }
 
   @Override
@@ -55,11 +98,20 @@ public class EntityProcessor extends AbstractProcessor {
     	  if (qualifiedName.contentEquals("com.googlecode.objectify.annotation.Entity")
     			  || qualifiedName.contentEquals("javax.persistence.Entity")) {
     	      for (Element entity : roundEnv.getElementsAnnotatedWith(currAnnotation)) {
-    	          printMessage(Kind.NOTE, "Found " + entity.toString() + ".");
-    	          this.processEntity(entity);
+    	          if (entity.getKind() == ElementKind.CLASS) {
+    	              printMessage(Kind.NOTE, "Found " + entity.toString() + ".");
+    	              this.processEntity(new EntityModel(this.env, (TypeElement) entity));
+    	          }
     	      }
     	  }
       }
+    } else if (this.indexesPath != null) {
+      try {
+        this.indexes.write(this.env, this.indexesPath);
+      } catch (IOException e) {
+        printMessage(Kind.ERROR, "Could not write " + this.indexesPath + ": "
+            + e);
+      }
     }
     return false;
   }
@@ -68,60 +120,78 @@ public class EntityProcessor extends AbstractProcessor {
     this.env.getMessager().printMessage(kind, msg);
   }
 
-  private void processEntity(Element entityElement) {
+  private void processEntity(EntityModel model) {
     PrintWriter out = null;
 
-    String entityPackageName = env.getElementUtils().getPackageOf(entityElement).getQualifiedName().toString();
-    String entityName = entityElement.getSimpleName().toString();
-    String queryName = entityName + "Query";
-    String queryPackageName = entityPackageName.replaceAll("\\.shared\\.",
-        ".server.");
-    String queryQName = queryPackageName + "." + queryName;
+    String entityPackageName = model.packageName;
+    String entityName = model.name;
+    String queryName = model.queryName;
+    String queryPackageName = model.queryPackageName;
+    String prefetchSize = model.prefetchSize;
+    String chunkSize = model.chunkSize;
 
     printMessage(Kind.NOTE, "Generating '" + queryName + "' from '"
         + entityName + "'.");
 
-    Unindexed unindexedClass = entityElement.getAnnotation(Unindexed.class);
+    this.indexes.add(model, this.env.getMessager());
 
-    VariableElement parentField = null;
+    if (this.queryWrapperImport == null) {
+      this.env.getMessager().printMessage(Kind.ERROR,
+          "Could not find QueryWrapper class", model.element);
+      return;
+    }
 
     try {
       out = new PrintWriter(
-          new BufferedWriter(this.env.getFiler().createSourceFile(queryQName,
-              entityElement).openWriter()));
+          new BufferedWriter(this.env.getFiler().createSourceFile(
+              model.queryQualifiedName(), model.element).openWriter()));
 
       // this.env.getMessager().printMessage(Kind.ERROR, entityName);
 
       out.println("package " + queryPackageName + ";");
       out.println();
       out.println("import java.util.ArrayList;");
-      out.println("import java.util.Map;");
+      out.println("import java.util.concurrent.Callable;");
+      out.println("import java.util.concurrent.Executor;");
       out.println();
       out.println("import com.google.appengine.api.datastore.Cursor;");
+      out.println("import com.google.appengine.api.datastore.FetchOptions;");
       out.println("import com.google.appengine.api.datastore.QueryResultIterator;");
       out.println("import com.googlecode.objectify.Key;");
       out.println("import com.googlecode.objectify.Objectify;");
       out.println("import com.googlecode.objectify.ObjectifyOpts;");
       out.println("import com.googlecode.objectify.ObjectifyService;");
       out.println("import com.googlecode.objectify.Query;");
-      try {
-        // objectify 3.x
-        Class.forName("com.googlecode.objectify.util.QueryWrapper");
-        out.println("import com.googlecode.objectify.util.QueryWrapper;");
-      } catch (ClassNotFoundException e) {
-        try {
-          // objectify 2.x
-          Class.forName("com.googlecode.objectify.helper.QueryWrapper");
-          out.println("import com.googlecode.objectify.helper.QueryWrapper;");
-        } catch (ClassNotFoundException e1) {
-          env.getMessager().printMessage(Kind.ERROR,
-              "Could not find QueryWrapper class");
-        } catch (NoClassDefFoundError e2) {
-          env.getMessager().printMessage(Kind.ERROR,
-              "Could not find QueryWrapper class");
-        }
+      out.println("import " + this.queryWrapperImport + ";");
+      out.println("import com.googlecode.objectify.query.cache.CheckpointIndex;");
+      out.println("import com.googlecode.objectify.query.cache.NearCache;");
+      out.println("import com.googlecode.objectify.query.cache.PagePrefetcher;");
+      out.println("import com.googlecode.objectify.query.cache.QueryCache;");
+      if (model.snapshot != null) {
+        out.println("import com.googlecode.objectify.query.cache.SnapshotStore;");
       }
+      out.println("import com.googlecode.objectify.query.metrics.QueryExecution;");
+      out.println("import com.googlecode.objectify.query.metrics.QueryMetrics;");
+      out.println("import com.googlecode.objectify.query.shared.KeyPage;");
       out.println("import com.googlecode.objectify.query.shared.ListPage;");
+      out.println("import com.googlecode.objectify.query.util.Aggregation;");
+      out.println("import com.googlecode.objectify.query.util.BatchCallback;");
+      out.println("import com.googlecode.objectify.query.util.BulkResult;");
+      out.println("import com.googlecode.objectify.query.util.BulkWrite;");
+      out.println("import com.googlecode.objectify.query.util.CountResult;");
+      out.println("import com.googlecode.objectify.query.util.Counts;");
+      out.println("import com.googlecode.objectify.query.util.DoubleStats;");
+      out.println("import com.googlecode.objectify.query.util.ExportWriter;");
+      out.println("import com.googlecode.objectify.query.util.Hydrator;");
+      out.println("import com.googlecode.objectify.query.util.LongStats;");
+      out.println("import com.googlecode.objectify.query.util.MergedQuery;");
+      out.println("import com.googlecode.objectify.query.util.Mutator;");
+      out.println("import com.googlecode.objectify.query.util.PageFuture;");
+      out.println("import com.googlecode.objectify.query.util.QueryTemplate;");
+      out.println("import com.googlecode.objectify.query.util.RawQuery;");
+      out.println("import com.googlecode.objectify.query.util.Shard;");
+      out.println("import com.googlecode.objectify.query.util.ShardCallback;");
+      out.println("import com.googlecode.objectify.query.util.ShardedScan;");
       out.println("import " + entityPackageName + "." + entityName + ";");
       out.println();
       out.println("/** Query generated using " + entityPackageName + "."
@@ -130,231 +200,869 @@ public class EntityProcessor extends AbstractProcessor {
           + entityName + "> { ");
       out.println();
       out.println("  private final Query<" + entityName + "> query;");
+      out.println("  private final RawQuery raw;");
+      out.println("  /** whether raw holds everything applied to query */");
+      out.println("  private boolean mirrored;");
       out.println("  private Objectify lazyOfy;");
+      out.println("  private QueryCache cache;");
+      out.println("  private NearCache nearCache;");
+      out.println("  private QueryMetrics metrics;");
+      out.println("  private PagePrefetcher prefetcher;");
+      out.println("  private CheckpointIndex checkpoints;");
+      out.println("  private BulkWrite.Progress bulkProgress;");
+      if (model.snapshot != null) {
+        out.println("  private SnapshotStore snapshot = snapshotStore();");
+      }
       out.println();
+      out.println("  /**");
+      out.println("   * The methods reading raw entities, and the caches, only see the filters,");
+      out.println("   * sort orders and ancestor applied through this query.  If");
+      out.println("   * <code>query</code> already has any, or a limit, offset or cursor is set,");
+      out.println("   * the methods reading raw entities throw");
+      out.println("   * <code>IllegalStateException</code> and the caches are not used.");
+      out.println("   */");
       out.println("  public " + queryName + "(Query<" + entityName
           + "> query) {");
       out.println("    super(query);");
       out.println("    this.query = query;");
+      out.println("    this.raw = new RawQuery(ObjectifyService.factory(), "
+          + entityName + ".class, "
+          + (model.idFieldName == null ? "null" : "\"" + model.idFieldName + "\"")
+          + ");");
+      out.println("    this.mirrored = RawQuery.isPristine(ObjectifyService.factory(), query,");
+      out.println("        " + entityName + ".class);");
       out.println("  }");
       out.println();
 
-      for (VariableElement fieldElement : ElementFilter.fieldsIn(env.getElementUtils().getAllMembers(
-          (TypeElement) entityElement))) {
-
-        Unindexed unindexedField = fieldElement.getAnnotation(Unindexed.class);
-        Transient transientField = fieldElement.getAnnotation(Transient.class);
-        NotSaved notSavedField = fieldElement.getAnnotation(NotSaved.class);
-        Indexed indexedField = fieldElement.getAnnotation(Indexed.class);
-
-        Parent parent = fieldElement.getAnnotation(Parent.class);
-        if (parentField == null && parent != null) {
-          parentField = fieldElement;
-        } else {
-          if (unindexedField != null && unindexedField.value().length == 0) {
-            // @Unindexed field without If... parameter
-            continue;
-          } else if (notSavedField != null) {
-            // @NotSaved field
-            continue;
-          } else if (transientField != null) {
-            // @Transient field
-            continue;
-          } else if (unindexedClass != null && indexedField == null) {
-            // @Unindexed class and field is not @Indexed
-            continue;
-          }
-        }
-
-        String fieldName = fieldElement.getSimpleName().toString();
-        String fieldType = env.getTypeUtils().asMemberOf(
-            (DeclaredType) entityElement.asType(), fieldElement).toString();
+      // mirror everything applied to the query onto the raw query
+      out.println("  @Override");
+      out.println("  public Query<" + entityName
+          + "> filter(String condition, Object value) {");
+      out.println("    this.raw.filter(condition, value);");
+      out.println("    return super.filter(condition, value);");
+      out.println("  }");
+      out.println();
+      out.println("  @Override");
+      out.println("  public Query<" + entityName
+          + "> order(String condition) {");
+      out.println("    this.raw.order(condition);");
+      out.println("    return super.order(condition);");
+      out.println("  }");
+      out.println();
+      out.println("  @Override");
+      out.println("  public Query<" + entityName
+          + "> ancestor(Object keyOrEntity) {");
+      out.println("    this.raw.ancestor(keyOrEntity);");
+      out.println("    return super.ancestor(keyOrEntity);");
+      out.println("  }");
+      out.println();
+      // the raw query has no limit, offset or cursors of its own
+      for (String[] setter : new String[][] {{"limit", "int value"},
+          {"offset", "int value"}, {"startCursor", "Cursor value"},
+          {"endCursor", "Cursor value"}}) {
+        out.println("  @Override");
+        out.println("  public Query<" + entityName + "> " + setter[0] + "("
+            + setter[1] + ") {");
+        out.println("    this.mirrored = false;");
+        out.println("    return super." + setter[0] + "(value);");
+        out.println("  }");
+        out.println();
+      }
 
-        out.println("  public " + queryName + " filterBy"
-            + fieldName.substring(0, 1).toUpperCase() + fieldName.substring(1)
-            + "(" + fieldType + " " + fieldName + ") {");
-        if (parent != null) {
-          out.println("    this.query.ancestor(" + fieldName + ");");
+      for (EntityModel.Filter filter : model.filters) {
+        out.println("  public " + queryName + " " + filter.methodName() + "("
+            + filter.type + " " + filter.name + ") {");
+        if (filter.parent) {
+          out.println("    ancestor(" + filter.name + ");");
           out.println("    return this;");
         } else {
-          out.println("    this.query.filter(\"" + fieldName + "\", "
-              + fieldName + ");");
+          out.println("    filter(\"" + filter.name + "\", " + filter.name + ");");
           out.println("    return this;");
         }
         out.println("  }");
         out.println();
 
-        if (parent == null) {
-          out.println("  public " + queryName + " filterBy"
-              + fieldName.substring(0, 1).toUpperCase()
-              + fieldName.substring(1) + "(String operation, Object value) {");
-          out.println("    this.query.filter(\"" + fieldName
+        if (!filter.parent) {
+          out.println("  public " + queryName + " " + filter.methodName()
+              + "(String operation, Object value) {");
+          out.println("    filter(\"" + filter.name
               + " \" + operation, value);");
           out.println("    return this;");
           out.println("  }");
           out.println();
+
+          out.println("  /**");
+          out.println("   * <code>list</code> and <code>listKeys</code> run one sub-query per value");
+          out.println("   * concurrently and merge them, up to <code>RawQuery.MAX_FAN_OUT</code>");
+          out.println("   * sub-queries in all.  The other methods that page or stream rows from a");
+          out.println("   * cursor throw <code>IllegalStateException</code>.");
+          out.println("   */");
+          out.println("  public " + queryName + " " + filter.methodName()
+              + "In(java.util.Collection<? extends " + boxed(filter.type)
+              + "> " + filter.name + ") {");
+          out.println("    filter(\"" + filter.name + " in\", " + filter.name + ");");
+          out.println("    return this;");
+          out.println("  }");
+          out.println();
+
+          out.println("  public " + queryName + " " + filter.orderMethodName()
+              + "() {");
+          out.println("    order(\"" + filter.name + "\");");
+          out.println("    return this;");
+          out.println("  }");
+          out.println();
+          out.println("  public " + queryName + " " + filter.orderMethodName()
+              + "Descending() {");
+          out.println("    order(\"-" + filter.name + "\");");
+          out.println("    return this;");
+          out.println("  }");
+          out.println();
         }
       }
 
+      out.println("  /**");
+      out.println("   * Serves <code>list</code> and <code>listKeys</code> pages from");
+      out.println("   * <code>cache</code>.  <code>list</code> then loads the entities of the");
+      out.println("   * cached keys.  Pages of a wrapped query that was already filtered, or");
+      out.println("   * that has a limit, offset or cursor, are not cached.");
+      out.println("   */");
+      out.println("  public " + queryName + " useCache(QueryCache cache) {");
+      out.println("    this.cache = cache;");
+      out.println("    return this;");
+      out.println("  }");
+      out.println();
+
+      out.println("  /**");
+      out.println("   * Looks up the entities loaded by key in <code>nearCache</code> before");
+      out.println("   * fetching them, and keeps the fetched ones there.");
+      out.println("   */");
+      out.println("  public " + queryName + " useNearCache(NearCache nearCache) {");
+      out.println("    this.nearCache = nearCache;");
+      out.println("    return this;");
+      out.println("  }");
+      out.println();
+
+      out.println("  /**");
+      out.println("   * Serves <code>list</code> from the pages prefetched by <code>prefetcher</code>,");
+      out.println("   * and prefetches the page after each page with more rows.");
+      out.println("   */");
+      out.println("  public " + queryName + " usePrefetch(PagePrefetcher prefetcher) {");
+      out.println("    this.prefetcher = prefetcher;");
+      out.println("    return this;");
+      out.println("  }");
+      out.println();
+
+      out.println("  /** Records and reuses the cursors of <code>listAtOffset</code> in <code>checkpoints</code>. */");
+      out.println("  public " + queryName + " useCheckpoints(CheckpointIndex checkpoints) {");
+      out.println("    this.checkpoints = checkpoints;");
+      out.println("    return this;");
+      out.println("  }");
+      out.println();
+
+      out.println("  /** Tells <code>progress</code> about every batch of <code>deleteAll</code> and <code>updateAll</code>. */");
+      out.println("  public " + queryName + " useBulkProgress(BulkWrite.Progress progress) {");
+      out.println("    this.bulkProgress = progress;");
+      out.println("    return this;");
+      out.println("  }");
+      out.println();
+
+      out.println("  /** Reports every page and count of this query to <code>metrics</code>. */");
+      out.println("  public " + queryName + " useMetrics(QueryMetrics metrics) {");
+      out.println("    this.metrics = metrics;");
+      out.println("    return this;");
+      out.println("  }");
+      out.println();
+
+      if (model.snapshot != null) {
+        printSnapshot(out, model);
+      }
+
+      printTemplate(out, model);
+
       out.println("  public ListPage<" + entityName
           + "> list(String cursor, int pageSize) {");
-      out.println("    if (cursor != null) {");
-      out.println("      this.query.startCursor(Cursor.fromWebSafeString(cursor));");
+      out.println("    if (this.prefetcher == null || !this.mirrored"
+          + (model.snapshot != null ? " || fromSnapshot(cursor)" : "") + ") {");
+      out.println("      return listAsync(cursor, pageSize).get();");
       out.println("    }");
-      out.println("    QueryResultIterator<" + entityName
-          + "> iterator = this.query.iterator();");
-      out.println("    boolean more = false;");
-      out.println("    ArrayList<" + entityName + "> list = new ArrayList<"
-          + entityName + ">();");
-      out.println("    for (int i = 0; i < pageSize && (more = iterator.hasNext()); i++) {");
-      out.println("      list.add(iterator.next());");
+      out.println("    ListPage<" + entityName + "> page = this.prefetcher.<"
+          + entityName + "> take(this.raw.getKind(),");
+      out.println("        this.raw.shape() + \"|\" + cursor + \"|\" + pageSize);");
+      out.println("    if (page == null) {");
+      out.println("      page = listAsync(cursor, pageSize).get();");
+      out.println("    }");
+      out.println("    if (page.more()) {");
+      out.println("      prefetch(page.getCursor(), pageSize);");
       out.println("    }");
-      out.println("    return new ListPage<" + entityName
-          + ">(list, iterator.getCursor().toWebSafeString(), more);");
+      out.println("    return page;");
+      out.println("  }");
+      out.println();
+
+      out.println("  /**");
+      out.println("   * Lists the page at <code>cursor</code> on the executor of the prefetcher,");
+      out.println("   * with a new Objectify and a compiled copy of this query.");
+      out.println("   */");
+      out.println("  protected void prefetch(final String cursor, final int pageSize) {");
+      out.println("    final Template template = compile();");
+      out.println("    this.prefetcher.prefetch(this.raw.getKind(), this.raw.shape() + \"|\" + cursor");
+      out.println("        + \"|\" + pageSize, pageSize, new Callable<ListPage<"
+          + entityName + ">>() {");
+      out.println("      public ListPage<" + entityName + "> call() {");
+      out.println("        return template.list(ObjectifyService.factory().begin(), cursor, pageSize);");
+      out.println("      }");
+      out.println("    });");
+      out.println("  }");
+      out.println();
+
+      out.println("  /**");
+      out.println("   * Starts the page and returns without waiting for it.  With <code>in</code>");
+      out.println("   * filters the page is only started when it is read.");
+      out.println("   */");
+      out.println("  public PageFuture<ListPage<" + entityName
+          + ">> listAsync(final String cursor,");
+      out.println("      final int pageSize) {");
+      if (model.snapshot != null) {
+        printFromSnapshot(out, "list", "ListPage<" + entityName + ">",
+            "this.snapshot.get().list(this.raw, ofy(),", entityName
+                + ".class, cursor, pageSize)");
+      }
+      out.println("    if (this.cache != null && this.mirrored) {");
+      out.println("      // the keys of a page are distinct, rows deleted since are skipped");
+      out.println("      return listKeysAsync(cursor, pageSize).then(");
+      out.println("          Hydrator.<" + entityName
+          + "> loader(ofy().async(), this.nearCache, true));");
+      out.println("    }");
+      out.println("    final QueryExecution execution = startMetrics(\"list\");");
+      out.println("    if (this.raw.isFanOut()) {");
+      out.println("      final MergedQuery fanOut = raw().fanOut();");
+      printSourceStart(out, "      ", "ListPage<" + entityName + ">");
+      out.println("          ListPage<" + entityName + "> page = fanOut.list(ofy(), "
+          + entityName + ".class, cursor,");
+      out.println("              pageSize);");
+      out.println("          recordMetrics(execution);");
+      out.println("          return page;");
+      printSourceEnd(out, "      ");
+      out.println("    }");
+      out.println("    final QueryResultIterator<" + entityName
+          + "> iterator = startPage(cursor, pageSize).iterator();");
+      printSourceStart(out, "    ", "ListPage<" + entityName + ">");
+      out.println("        ArrayList<" + entityName + "> list = new ArrayList<"
+          + entityName + ">();");
+      out.println("        for (int i = 0; i < pageSize && iterator.hasNext(); i++) {");
+      out.println("          list.add(iterator.next());");
+      out.println("        }");
+      out.println("        boolean more = iterator.hasNext();");
+      printScanned(out, "        ", model, "list.size()", false);
+      out.println("        recordMetrics(execution);");
+      out.println("        return new ListPage<" + entityName
+          + ">(list, RawQuery.cursorOf(iterator), more);");
+      printSourceEnd(out, "    ");
       out.println("  }");
       out.println();
 
       out.println("  public ListPage<Key<" + entityName
           + ">> listKeys(String cursor, int pageSize) {");
-      out.println("    if (cursor != null) {");
-      out.println("      this.query.startCursor(Cursor.fromWebSafeString(cursor));");
+      out.println("    return listKeysAsync(cursor, pageSize).get();");
+      out.println("  }");
+      out.println();
+
+      out.println("  /**");
+      out.println("   * Starts the page and returns without waiting for it.  A cached page is");
+      out.println("   * already done, with <code>in</code> filters the page is only started");
+      out.println("   * when it is read.  The page is a <code>KeyPage</code>.");
+      out.println("   */");
+      out.println("  public PageFuture<ListPage<Key<" + entityName
+          + ">>> listKeysAsync(final String cursor,");
+      out.println("      final int pageSize) {");
+      if (model.snapshot != null) {
+        printFromSnapshot(out, "listKeys", "ListPage<Key<" + entityName + ">>",
+            "this.snapshot.get().<" + entityName + "> listKeys(this.raw,",
+            "cursor, pageSize)");
+      }
+      out.println("    final QueryExecution execution = startMetrics(\"listKeys\");");
+      out.println("    final QueryCache cache = this.cache;");
+      out.println("    final String kind = this.raw.getKind();");
+      out.println("    // the key describes the query through the mirror, which is only");
+      out.println("    // complete for queries filtered through " + queryName);
+      out.println("    final String cacheKey = cache == null || !this.mirrored ? null");
+      out.println("        : this.raw.shape() + \"|\" + cursor + \"|\" + pageSize;");
+      out.println("    if (cacheKey != null) {");
+      out.println("      ListPage<Key<" + entityName + ">> cached = cache.<"
+          + entityName + "> get(kind, cacheKey);");
+      out.println("      if (cached != null) {");
+      out.println("        recordMetrics(execution);");
+      out.println("        return PageFuture.<ListPage<Key<" + entityName
+          + ">>> done(KeyPage.of(cached));");
+      out.println("      }");
       out.println("    }");
+      out.println("    if (this.raw.isFanOut()) {");
+      out.println("      final MergedQuery fanOut = raw().fanOut();");
+      printSourceStart(out, "      ", "ListPage<Key<" + entityName + ">>");
+      out.println("          KeyPage<" + entityName + "> page = fanOut.<"
+          + entityName + "> listKeys(ofy(), cursor, pageSize);");
+      out.println("          if (cacheKey != null) {");
+      out.println("            cache.put(kind, cacheKey, page);");
+      out.println("          }");
+      out.println("          recordMetrics(execution);");
+      out.println("          return page;");
+      printSourceEnd(out, "      ");
+      out.println("    }");
+      out.println("    final QueryResultIterator<Key<" + entityName
+          + ">> iterator = startPage(cursor, pageSize).fetchKeys().iterator();");
+      printSourceStart(out, "    ", "ListPage<Key<" + entityName + ">>");
+      out.println("        KeyPage.Builder<" + entityName
+          + "> keys = new KeyPage.Builder<" + entityName + ">(pageSize);");
+      out.println("        while (keys.size() < pageSize && iterator.hasNext()) {");
+      out.println("          keys.add(iterator.next());");
+      out.println("        }");
+      out.println("        boolean more = iterator.hasNext();");
+      printScanned(out, "        ", model, "keys.size()", true);
+      out.println("        recordMetrics(execution);");
+      out.println("        KeyPage<" + entityName
+          + "> page = keys.build(RawQuery.cursorOf(iterator), more);");
+      out.println("        if (cacheKey != null) {");
+      out.println("          cache.put(kind, cacheKey, page);");
+      out.println("        }");
+      out.println("        return page;");
+      printSourceEnd(out, "    ");
+      out.println("  }");
+      out.println();
 
-      out.println("    QueryResultIterator<Key<" + entityName
-          + ">> iterator = this.query.fetchKeys().iterator();");
-      out.println("    boolean more = false;");
-      out.println("    ArrayList<Key<" + entityName
-          + ">> list = new ArrayList<Key<" + entityName + ">>();");
-      out.println("    for (int i = 0; i < pageSize && (more = iterator.hasNext()); i++) {");
-      out.println("      list.add(iterator.next());");
+      out.println("  /**");
+      out.println("   * Lists the page starting at row <code>offset</code>, reading keys only from");
+      out.println("   * the nearest checkpoint to the offset.");
+      out.println("   */");
+      out.println("  public ListPage<" + entityName
+          + "> listAtOffset(int offset, int pageSize) {");
+      out.println("    CheckpointIndex.Checkpoint start = seek(offset);");
+      out.println("    if (start.getOffset() < offset) {");
+      out.println("      return new ListPage<" + entityName + ">(new ArrayList<"
+          + entityName + ">(), start.getCursor(), false);");
+      out.println("    }");
+      out.println("    ListPage<" + entityName
+          + "> page = list(start.getCursor(), pageSize);");
+      out.println("    checkpoints().record(this.raw.getKind(), this.raw.shape(),");
+      out.println("        new CheckpointIndex.Checkpoint(offset + page.size(), page.getCursor()));");
+      out.println("    return page;");
+      out.println("  }");
+      out.println();
+      out.println("  /**");
+      out.println("   * Reads keys from the nearest checkpoint to <code>offset</code>, recording");
+      out.println("   * the checkpoints it passes.");
+      out.println("   *");
+      out.println("   * @return the checkpoint at <code>offset</code>, or after the last row if");
+      out.println("   *   there are fewer rows.");
+      out.println("   */");
+      out.println("  public CheckpointIndex.Checkpoint seek(int offset) {");
+      out.println("    CheckpointIndex checkpoints = checkpoints();");
+      out.println("    String kind = this.raw.getKind();");
+      out.println("    String shape = this.raw.shape();");
+      out.println("    CheckpointIndex.Checkpoint at = checkpoints.nearest(kind, shape, offset);");
+      out.println("    while (at.getOffset() < offset) {");
+      out.println("      ListPage<Key<" + entityName + ">> keys = listKeys(at.getCursor(),");
+      out.println("          checkpoints.step(at.getOffset(), offset));");
+      out.println("      at = new CheckpointIndex.Checkpoint(at.getOffset() + keys.size(),");
+      out.println("          keys.getCursor());");
+      out.println("      checkpoints.record(kind, shape, at);");
+      out.println("      if (!keys.more()) {");
+      out.println("        break;");
+      out.println("      }");
       out.println("    }");
-      out.println("    return new ListPage<Key<" + entityName
-          + ">>(list, iterator.getCursor().toWebSafeString(), more);");
+      out.println("    return at;");
       out.println("  }");
+      out.println();
+      out.println("  protected CheckpointIndex checkpoints() {");
+      out.println("    return this.checkpoints == null || !this.mirrored ? CheckpointIndex.NONE");
+      out.println("        : this.checkpoints;");
+      out.println("  }");
+      out.println();
 
-      if (parentField != null) {
-        String fieldType = env.getTypeUtils().asMemberOf(
-            (DeclaredType) entityElement.asType(), parentField).toString();
-        fieldType = fieldType.substring(fieldType.indexOf('<') + 1,
-            fieldType.lastIndexOf('>'));
+      printForEach(out, "forEach", entityName, new String[] {
+          "    QueryResultIterator<" + entityName
+              + "> iterator = startStream(cursor, batchSize).iterator();"},
+          "iterator.next()");
+      printForEach(out, "forEachKey", "Key<" + entityName + ">", new String[] {
+          "    QueryResultIterator<Key<" + entityName
+              + ">> iterator = startStream(cursor, batchSize).fetchKeys().iterator();"},
+          "iterator.next()");
 
-        out.println();
+      out.println("  /**");
+      out.println("   * Writes the raw entities of every row to <code>channel</code>, with a");
+      out.println("   * checkpoint every <code>batchSize</code> rows, see <code>ExportWriter</code>.");
+      out.println("   *");
+      out.println("   * @return the number of entities written.");
+      out.println("   */");
+      out.println("  public long exportTo(java.nio.channels.WritableByteChannel channel, int batchSize)");
+      out.println("      throws java.io.IOException {");
+      out.println("    ExportWriter writer = new ExportWriter(channel, this.raw.getKind());");
+      out.println("    exportTo(writer, batchSize);");
+      out.println("    return writer.getRows();");
+      out.println("  }");
+      out.println();
+      out.println("  /**");
+      out.println("   * Like <code>exportTo(channel, batchSize)</code>, continuing an interrupted");
+      out.println("   * export in <code>file</code> from its last checkpoint.");
+      out.println("   *");
+      out.println("   * @return the number of entities in the file.");
+      out.println("   */");
+      out.println("  public long exportTo(java.io.File file, int batchSize) throws java.io.IOException {");
+      out.println("    java.nio.channels.FileChannel channel = new java.io.RandomAccessFile(file,");
+      out.println("        \"rw\").getChannel();");
+      out.println("    try {");
+      out.println("      ExportWriter writer = ExportWriter.resume(channel, this.raw.getKind());");
+      out.println("      if (!writer.isComplete()) {");
+      out.println("        exportTo(writer, batchSize);");
+      out.println("      }");
+      out.println("      return writer.getRows();");
+      out.println("    } finally {");
+      out.println("      channel.close();");
+      out.println("    }");
+      out.println("  }");
+      out.println();
+      out.println("  protected void exportTo(ExportWriter writer, int batchSize)");
+      out.println("      throws java.io.IOException {");
+      out.println("    QueryResultIterator<com.google.appengine.api.datastore.Entity> iterator =");
+      out.println("      raw().iterator(ofy().getDatastore(), rawStream(writer.getCursor(), batchSize));");
+      out.println("    int rows = 0;");
+      out.println("    while (iterator.hasNext()) {");
+      out.println("      writer.write(iterator.next());");
+      out.println("      if (++rows == batchSize) {");
+      out.println("        writer.checkpoint(RawQuery.cursorOf(iterator));");
+      out.println("        rows = 0;");
+      out.println("      }");
+      out.println("    }");
+      out.println("    writer.finish();");
+      out.println("  }");
+      out.println();
+
+      out.println("  /** Counts at most <code>limit</code> rows with a keys-only scan. */");
+      out.println("  public int countUpTo(int limit) {");
+      out.println("    if (!this.mirrored) {");
+      out.println("      int count = 0;");
+      out.println("      for (java.util.Iterator<Key<" + entityName
+          + ">> keys = this.query.fetchKeys().iterator(); count < limit");
+      out.println("          && keys.hasNext(); count++) {");
+      out.println("        keys.next();");
+      out.println("      }");
+      out.println("      return count;");
+      out.println("    }");
+      out.println("    return count(null, limit, 0).getCount();");
+      out.println("  }");
+      out.println();
+      out.println("  /**");
+      out.println("   * Counts from <code>cursor</code> until <code>limit</code> rows or");
+      out.println("   * <code>timeoutMillis</code>; continue from the cursor of an");
+      out.println("   * unfinished result.");
+      out.println("   *");
+      out.println("   * @throws IllegalStateException");
+      out.println("   *   if the wrapped query was filtered elsewhere, or has a limit,");
+      out.println("   *   offset or cursor.");
+      out.println("   */");
+      out.println("  public CountResult count(String cursor, int limit, long timeoutMillis) {");
+      out.println("    QueryExecution execution = startMetrics(\"count\");");
+      if (model.snapshot != null) {
+        out.println("    if (fromSnapshot(cursor)) {");
+        out.println("      CountResult result = this.snapshot.get().count(this.raw, cursor, limit);");
+        out.println("      recordMetrics(execution);");
+        out.println("      return result;");
+        out.println("    }");
+      }
+      out.println("    CountResult result = raw().count(ofy().getDatastore(), cursor, limit, timeoutMillis);");
+      out.println("    if (execution != null) {");
+      out.println("      execution.scanned(result.getCount(), true, 0, RawQuery.COUNT_BATCH_SIZE,");
+      out.println("          RawQuery.COUNT_BATCH_SIZE);");
+      out.println("    }");
+      out.println("    recordMetrics(execution);");
+      out.println("    return result;");
+      out.println("  }");
+      out.println();
+
+      out.println("  /** Deletes every row, see <code>deleteAll(cursor, limit, timeoutMillis, dryRun)</code>. */");
+      out.println("  public BulkResult deleteAll() {");
+      out.println("    return deleteAll(null, Integer.MAX_VALUE, 0, false);");
+      out.println("  }");
+      out.println();
+      out.println("  /**");
+      out.println("   * Deletes the rows from <code>cursor</code> until <code>limit</code> rows or");
+      out.println("   * <code>timeoutMillis</code>, with keys-only scans and several batched");
+      out.println("   * deletes in flight; continue from the cursor of an unfinished result.");
+      out.println("   * A dry run only counts the rows.");
+      out.println("   *");
+      out.println("   * @throws IllegalStateException if this query was filtered, limited or");
+      out.println("   *   offset outside of this class, rather than widen the delete");
+      out.println("   */");
+      out.println("  public BulkResult deleteAll(String cursor, int limit, long timeoutMillis,");
+      out.println("      boolean dryRun) {");
+      out.println("    try {");
+      out.println("      return bulkWrite(dryRun).delete(raw(), cursor, limit, timeoutMillis);");
+      out.println("    } finally {");
+      out.println("      if (!dryRun) {");
+      out.println("        invalidateCaches();");
+      out.println("      }");
+      out.println("    }");
+      out.println("  }");
+      out.println();
+      out.println("  /** Updates every row, see <code>updateAll(mutator, cursor, limit, timeoutMillis, dryRun)</code>. */");
+      out.println("  public BulkResult updateAll(Mutator<? super " + entityName
+          + "> mutator) {");
+      out.println("    return updateAll(mutator, null, Integer.MAX_VALUE, 0, false);");
+      out.println("  }");
+      out.println();
+      out.println("  /**");
+      out.println("   * Applies <code>mutator</code> to the rows from <code>cursor</code> until");
+      out.println("   * <code>limit</code> rows or <code>timeoutMillis</code>, and puts those it");
+      out.println("   * changed with several batched puts in flight; continue from the cursor");
+      out.println("   * of an unfinished result.  A dry run only counts the changed rows.");
+      out.println("   *");
+      out.println("   * @throws IllegalStateException if this query was filtered, limited or");
+      out.println("   *   offset outside of this class, rather than widen the update");
+      out.println("   */");
+      out.println("  public BulkResult updateAll(Mutator<? super " + entityName
+          + "> mutator, String cursor,");
+      out.println("      int limit, long timeoutMillis, boolean dryRun) {");
+      out.println("    try {");
+      out.println("      return bulkWrite(dryRun).update(raw(), " + entityName
+          + ".class, mutator, cursor,");
+      out.println("          limit, timeoutMillis);");
+      out.println("    } finally {");
+      out.println("      if (!dryRun) {");
+      out.println("        invalidateCaches();");
+      out.println("      }");
+      out.println("    }");
+      out.println("  }");
+      out.println();
+      out.println("  protected BulkWrite bulkWrite(boolean dryRun) {");
+      out.println("    return new BulkWrite(ofy().getFactory(), BulkWrite.MAX_BATCH_SIZE,");
+      out.println("        BulkWrite.DEFAULT_IN_FLIGHT, dryRun).onProgress(this.bulkProgress);");
+      out.println("  }");
+      out.println();
+      out.println("  /** Drops what the caches of this query hold for its kind. */");
+      out.println("  protected void invalidateCaches() {");
+      out.println("    String kind = this.raw.getKind();");
+      out.println("    if (this.cache != null) {");
+      out.println("      this.cache.invalidate(kind);");
+      out.println("    }");
+      out.println("    if (this.nearCache != null) {");
+      out.println("      this.nearCache.invalidate(" + entityName + ".class);");
+      out.println("    }");
+      out.println("    if (this.prefetcher != null) {");
+      out.println("      this.prefetcher.invalidate(kind);");
+      out.println("    }");
+      out.println("    if (this.checkpoints != null) {");
+      out.println("      this.checkpoints.invalidate(kind);");
+      out.println("    }");
+      if (model.snapshot != null) {
+        out.println("    if (this.snapshot != null) {");
+        out.println("      this.snapshot.invalidate();");
+        out.println("    }");
+      }
+      out.println("  }");
+      out.println();
+
+      printAggregations(out, model);
+
+      out.println("  public java.util.List<Shard> shards(int count) {");
+      out.println("    return ShardedScan.split(ofy().getDatastore(), this.raw.getKind(), count);");
+      out.println("  }");
+      out.println();
+      out.println("  public java.util.List<Shard> shards(java.util.List<Key<"
+          + entityName + ">> boundaries) {");
+      out.println("    return ShardedScan.split(ofy().getFactory(), boundaries);");
+      out.println("  }");
+      out.println();
+      out.println("  public java.util.List<Shard> forEachSharded(java.util.List<Shard> shards,");
+      out.println("      int batchSize, Executor executor, ShardCallback<"
+          + entityName + "> callback) {");
+      out.println("    return ShardedScan.forEach(raw(), ofy().getFactory(), "
+          + entityName + ".class,");
+      out.println("        shards, batchSize, executor, callback);");
+      out.println("  }");
+      out.println();
+      out.println("  public java.util.List<Shard> forEachKeySharded(java.util.List<Shard> shards,");
+      out.println("      int batchSize, Executor executor, ShardCallback<Key<"
+          + entityName + ">> callback) {");
+      out.println("    return ShardedScan.<" + entityName
+          + "> forEachKey(raw(), ofy().getFactory(),");
+      out.println("        shards, batchSize, executor, callback);");
+      out.println("  }");
+      out.println();
+
+      if (model.parentType != null) {
+        String fieldType = model.parentType;
+
+        printForEachRelated(out, "forEachParent", fieldType, new String[] {
+            "    QueryResultIterator<Key<" + entityName
+                + ">> iterator = startStream(cursor, batchSize).fetchKeys().iterator();"},
+            "iterator.next().<" + fieldType + "> getParent()");
         out.println("  public ListPage<" + fieldType
             + "> listParents(String cursor, int pageSize) {");
+        out.println("    return listParents(cursor, pageSize, true);");
+        out.println("  }");
         out.println();
-        out.println("    if (cursor != null) {");
-        out.println("      this.query.startCursor(Cursor.fromWebSafeString(cursor));");
-        out.println("    }");
-        out.println("    QueryResultIterator<Key<" + entityName
-            + ">> iterator = this.query.fetchKeys().iterator();");
+        out.println("  public ListPage<" + fieldType
+            + "> listParents(String cursor, int pageSize, boolean distinct) {");
+        out.println("    return listParentsAsync(cursor, pageSize, distinct).get();");
+        out.println("  }");
         out.println();
-        out.println("    boolean more = false;");
-        out.println("    ArrayList<Long> idList = new ArrayList<Long>();");
-        out.println("    for (int i = 0; i < pageSize && (more = iterator.hasNext()); i++) {");
-        out.println("      idList.add(iterator.next().getParent().getId());");
-        out.println("    }");
+        out.println("  public PageFuture<ListPage<" + fieldType
+            + ">> listParentsAsync(String cursor, int pageSize) {");
+        out.println("    return listParentsAsync(cursor, pageSize, true);");
+        out.println("  }");
         out.println();
-        out.println("    Map<Long, " + fieldType + "> list = ofy().get("
-            + fieldType + ".class, idList);");
-        out.println("    return new ListPage<" + fieldType + ">(new ArrayList<"
-            + fieldType + ">(");
-        out.println("      list.values()), iterator.getCursor().toWebSafeString(), more);");
+        out.println("  /**");
+        out.println("   * Starts the page and returns without waiting for it.  The parents are");
+        out.println("   * fetched by a second stage, started once the scan was read.");
+        out.println("   */");
+        out.println("  public PageFuture<ListPage<" + fieldType
+            + ">> listParentsAsync(String cursor,");
+        out.println("      final int pageSize, boolean distinct) {");
+        out.println("    final QueryExecution execution = startMetrics(\"listParents\");");
+        out.println("    final QueryResultIterator<Key<" + entityName
+            + ">> iterator = startPage(cursor, pageSize).fetchKeys().iterator();");
+        out.println("    final Hydrator<" + fieldType + "> hydrator = new Hydrator<"
+            + fieldType + ">(ofy().async(), this.nearCache);");
+        out.println();
+        out.println("    return fetchRelated(PageFuture.of(new PageFuture.Source<Boolean>() {");
+        out.println("      public Boolean read() {");
+        out.println("        int rows = 0;");
+        out.println("        for (; rows < pageSize && iterator.hasNext(); rows++) {");
+        out.println("          hydrator.add(iterator.next().<" + fieldType
+            + "> getParent());");
+        out.println("        }");
+        out.println("        boolean more = iterator.hasNext();");
+        printScanned(out, "        ", model, "rows", true);
+        out.println("        return more;");
+        out.println("      }");
+        out.println("    }), iterator, hydrator, distinct, execution);");
         out.println("  }");
         out.println();
         out.println("  public ListPage<Key<" + fieldType
             + ">> listParentKeys(String cursor, int pageSize) {");
+        out.println("    return listParentKeysAsync(cursor, pageSize).get();");
+        out.println("  }");
         out.println();
-        out.println("    if (cursor != null) {");
-        out.println("      this.query.startCursor(Cursor.fromWebSafeString(cursor));");
-        out.println("    }");
-        out.println("    QueryResultIterator<Key<" + entityName
-            + ">> iterator = this.query.fetchKeys().iterator();");
+        out.println("  /** Starts the page and returns without waiting for it. */");
+        out.println("  public PageFuture<ListPage<Key<" + fieldType
+            + ">>> listParentKeysAsync(String cursor,");
+        out.println("      final int pageSize) {");
+        out.println("    final QueryExecution execution = startMetrics(\"listParentKeys\");");
+        out.println("    final QueryResultIterator<Key<" + entityName
+            + ">> iterator = startPage(cursor, pageSize).fetchKeys().iterator();");
         out.println();
-        out.println("    boolean more = false;");
-        out.println("    ArrayList<Key<" + fieldType
-            + ">> idList = new ArrayList<Key<" + fieldType + ">>();");
-        out.println("    for (int i = 0; i < pageSize && (more = iterator.hasNext()); i++) {");
-        out.println("      idList.add(new Key<" + fieldType + ">(" + fieldType
-            + ".class, iterator.next().getParent().getId()));");
-        out.println("    }");
-        out.println();
-        out.println("    return new ListPage<Key<" + fieldType
-            + ">>(idList, iterator.getCursor().toWebSafeString(), more);");
+        printSourceStart(out, "    ", "ListPage<Key<" + fieldType + ">>");
+        out.println("        KeyPage.Builder<" + fieldType
+            + "> keys = new KeyPage.Builder<" + fieldType + ">(pageSize);");
+        out.println("        while (keys.size() < pageSize && iterator.hasNext()) {");
+        out.println("          // parents may have names or parents of their own");
+        out.println("          keys.add(iterator.next().<" + fieldType + "> getParent());");
+        out.println("        }");
+        out.println("        boolean more = iterator.hasNext();");
+        printScanned(out, "        ", model, "keys.size()", true);
+        out.println("        recordMetrics(execution);");
+        out.println("        return keys.build(RawQuery.cursorOf(iterator), more);");
+        printSourceEnd(out, "    ");
         out.println("  }");
         out.println();
       }
 
-      for (ExecutableElement methodElement : ElementFilter.methodsIn(env.getElementUtils().getAllMembers(
-          (TypeElement) entityElement))) {
-
-        if (methodElement.getParameters().size() == 0) {
-          List listField = methodElement.getAnnotation(List.class);
-
-          if (listField != null) {
-
-            String returnType = methodElement.getReturnType().toString();
-            returnType = returnType.substring(returnType.indexOf('<') + 1,
-                returnType.lastIndexOf('>'));
-            String idType;
-            String idAccessor;
-            if (listField.keyType() == KeyType.Id) {
-              idType = "Long";
-              idAccessor = "getId()";
-            } else {
-              idType = "String";
-              idAccessor = "getName()";
-            }
-
-            out.println("  public ListPage<Key<" + returnType + ">> list"
-                + listField.singularName()
-                + "Keys(String cursor, int pageSize) {");
-            out.println();
-            out.println("    if (cursor != null) {");
-            out.println("      this.query.startCursor(Cursor.fromWebSafeString(cursor));");
-            out.println("    }");
-            out.println("    QueryResultIterator<" + entityName
-                + "> iterator = query.iterator();");
-            out.println();
-            out.println("    boolean more = false;");
-            out.println("    ArrayList<Key<" + returnType
-                + ">> idList = new ArrayList<Key<" + returnType + ">>();");
-            out.println("    for (int i = 0; i < pageSize && (more = iterator.hasNext()); i++) {");
-            out.println("      idList.add(iterator.next()."
-                + methodElement.getSimpleName().toString() + "());");
-            out.println("    }");
-            out.println();
-            out.println("    return new ListPage<Key<" + returnType
-                + ">>(idList, iterator.getCursor()");
-            out.println("        .toWebSafeString(), more);");
-            out.println("  }");
-            out.println();
-            out.println("  public ListPage<" + returnType + "> list"
-                + listField.pluralName() + "(String cursor, int pageSize) {");
-            out.println("    if (cursor != null) {");
-            out.println("      this.query.startCursor(Cursor.fromWebSafeString(cursor));");
-            out.println("    }");
-            out.println("    QueryResultIterator<" + entityName
-                + "> iterator = query.iterator();");
-            out.println();
-            out.println("    boolean more = false;");
-            out.println("    ArrayList<" + idType + "> idList = new ArrayList<"
-                + idType + ">();");
-            out.println("    for (int i = 0; i < pageSize && (more = iterator.hasNext()); i++) {");
-            out.println("      idList.add(iterator.next()."
-                + methodElement.getSimpleName().toString() + "()." + idAccessor
-                + ");");
-            out.println("    }");
-            out.println();
-            out.println("    Map<" + idType + ", " + returnType + "> list =");
-            out.println("      ofy().get(" + returnType + ".class, idList);");
-            out.println("    return new ListPage<" + returnType
-                + ">(new ArrayList<" + returnType + ">(");
-            out.println("      list.values()), iterator.getCursor().toWebSafeString(), more);");
-            out.println("  }");
-          }
+      for (EntityModel.Relation relation : model.relations) {
+        String returnType = relation.type;
+
+        // read the key straight from the raw Entity when the getter is
+        // backed by a known property, otherwise go through the POJO; the
+        // expressions are used inside the anonymous sources
+        String rawProperty = relation.rawProperty;
+        String keyExpression;
+        String addKey;
+        if (rawProperty != null) {
+          keyExpression = queryName + ".this.raw.<" + returnType
+              + "> key(iterator.next(), \"" + rawProperty + "\")";
+          addKey = queryName + ".this.raw.addKey(keys, iterator.next(), \""
+              + rawProperty + "\")";
+        } else {
+          keyExpression = "iterator.next()." + relation.getter + "()";
+          addKey = "keys.add(" + keyExpression + ")";
+        }
+        String[] pageIterator = relatedIterator(entityName,
+            rawProperty != null, false);
+
+        out.println("  public ListPage<Key<" + returnType + ">> list"
+            + relation.singularName
+            + "Keys(String cursor, int pageSize) {");
+        out.println("    return list" + relation.singularName
+            + "KeysAsync(cursor, pageSize).get();");
+        out.println("  }");
+        out.println();
+        out.println("  /** Starts the page and returns without waiting for it. */");
+        out.println("  public PageFuture<ListPage<Key<" + returnType + ">>> list"
+            + relation.singularName + "KeysAsync(String cursor,");
+        out.println("      final int pageSize) {");
+        out.println("    final QueryExecution execution = startMetrics(\"list"
+            + relation.singularName + "Keys\");");
+        for (String line : pageIterator) {
+          out.println(line);
+        }
+        out.println();
+        printSourceStart(out, "    ", "ListPage<Key<" + returnType + ">>");
+        out.println("        KeyPage.Builder<" + returnType
+            + "> keys = new KeyPage.Builder<" + returnType + ">(pageSize);");
+        out.println("        while (keys.size() < pageSize && iterator.hasNext()) {");
+        out.println("          " + addKey + ";");
+        out.println("        }");
+        out.println("        boolean more = iterator.hasNext();");
+        printScanned(out, "        ", model, "keys.size()", false);
+        out.println("        recordMetrics(execution);");
+        out.println("        return keys.build(RawQuery.cursorOf(iterator), more);");
+        printSourceEnd(out, "    ");
+        out.println("  }");
+        out.println();
+        out.println("  public ListPage<" + returnType + "> list"
+            + relation.pluralName + "(String cursor, int pageSize) {");
+        out.println("    return list" + relation.pluralName
+            + "(cursor, pageSize, true);");
+        out.println("  }");
+        out.println();
+        out.println("  public ListPage<" + returnType + "> list"
+            + relation.pluralName
+            + "(String cursor, int pageSize, boolean distinct) {");
+        out.println("    return list" + relation.pluralName
+            + "Async(cursor, pageSize, distinct).get();");
+        out.println("  }");
+        out.println();
+        out.println("  public PageFuture<ListPage<" + returnType + ">> list"
+            + relation.pluralName + "Async(String cursor, int pageSize) {");
+        out.println("    return list" + relation.pluralName
+            + "Async(cursor, pageSize, true);");
+        out.println("  }");
+        out.println();
+        out.println("  /**");
+        out.println("   * Starts the page and returns without waiting for it.  The related");
+        out.println("   * entities are fetched by a second stage, started once the scan was read.");
+        out.println("   */");
+        out.println("  public PageFuture<ListPage<" + returnType + ">> list"
+            + relation.pluralName + "Async(String cursor,");
+        out.println("      final int pageSize, boolean distinct) {");
+        out.println("    final QueryExecution execution = startMetrics(\"list"
+            + relation.pluralName + "\");");
+        for (String line : pageIterator) {
+          out.println(line);
         }
+        out.println("    final Hydrator<" + returnType + "> hydrator = new Hydrator<"
+            + returnType + ">(ofy().async(), this.nearCache);");
+        out.println();
+        out.println("    return fetchRelated(PageFuture.of(new PageFuture.Source<Boolean>() {");
+        out.println("      public Boolean read() {");
+        out.println("        int rows = 0;");
+        out.println("        for (; rows < pageSize && iterator.hasNext(); rows++) {");
+        out.println("          hydrator.add(" + keyExpression + ");");
+        out.println("        }");
+        out.println("        boolean more = iterator.hasNext();");
+        printScanned(out, "        ", model, "rows", false);
+        out.println("        return more;");
+        out.println("      }");
+        out.println("    }), iterator, hydrator, distinct, execution);");
+        out.println("  }");
+        out.println();
+
+        String[] streamIterator = relatedIterator(entityName,
+            rawProperty != null, true);
+        String streamKey = keyExpression.replace(queryName + ".this.", "this.");
+        printForEach(out, "forEach" + relation.singularName + "Key",
+            "Key<" + returnType + ">", streamIterator, streamKey);
+        printForEachRelated(out, "forEach" + relation.pluralName,
+            returnType, streamIterator, streamKey);
+      }
+      if (model.parentType != null || !model.relations.isEmpty()) {
+        printFetchRelated(out);
+        printListWithRelations(out, model);
       }
       out.println();
+      out.println("  /**");
+      out.println("   * @return a copy of the query sized to read one page from <code>cursor</code>.");
+      out.println("   * @throws IllegalStateException for queries with <code>IN</code> or <code>!=</code>");
+      out.println("   *   filters, which have no cursors, see <code>RawQuery.requireCursors</code>.");
+      out.println("   */");
+      out.println("  protected Query<" + entityName
+          + "> startPage(String cursor, int pageSize) {");
+      out.println("    this.raw.requireCursors();");
+      out.println("    Query<" + entityName + "> query = this.query.clone();");
+      out.println("    if (cursor != null) {");
+      out.println("      query.startCursor(Cursor.fromWebSafeString(cursor));");
+      out.println("    }");
+      out.println("    // one extra row tells whether there are more pages; a limit set on the");
+      out.println("    // wrapped query is kept, and ends the pages");
+      out.println("    int fetchSize = pageSize < Integer.MAX_VALUE ? pageSize + 1 : pageSize;");
+      out.println("    if (this.mirrored) {");
+      out.println("      query.limit(fetchSize);");
+      out.println("    }");
+      out.println("    query.prefetchSize(" + prefetchSize + ");");
+      out.println("    query.chunkSize(" + chunkSize + ");");
+      out.println("    return query;");
+      out.println("  }");
+      out.println();
+      out.println("  /**");
+      out.println("   * @return a copy of the query sized to stream every row from <code>cursor</code>.");
+      out.println("   * @throws IllegalStateException for queries with <code>IN</code> or <code>!=</code>");
+      out.println("   *   filters.");
+      out.println("   */");
+      out.println("  protected Query<" + entityName
+          + "> startStream(String cursor, int batchSize) {");
+      out.println("    this.raw.requireCursors();");
+      out.println("    Query<" + entityName + "> query = this.query.clone();");
+      out.println("    if (cursor != null) {");
+      out.println("      query.startCursor(Cursor.fromWebSafeString(cursor));");
+      out.println("    }");
+      out.println("    // one batch per datastore round trip, up to a limit set on the wrapped query");
+      out.println("    query.prefetchSize(batchSize);");
+      out.println("    query.chunkSize(batchSize);");
+      out.println("    return query;");
+      out.println("  }");
+      out.println();
+      out.println("  protected FetchOptions rawStream(String cursor, int batchSize) {");
+      out.println("    this.raw.requireCursors();");
+      out.println("    FetchOptions options = FetchOptions.Builder.withChunkSize(batchSize)");
+      out.println("        .prefetchSize(batchSize);");
+      out.println("    if (cursor != null) {");
+      out.println("      options.startCursor(Cursor.fromWebSafeString(cursor));");
+      out.println("    }");
+      out.println("    return options;");
+      out.println("  }");
+      out.println();
+      out.println("  protected FetchOptions rawPage(String cursor, int pageSize) {");
+      out.println("    this.raw.requireCursors();");
+      out.println("    int fetchSize = pageSize < Integer.MAX_VALUE ? pageSize + 1 : pageSize;");
+      out.println("    FetchOptions options = FetchOptions.Builder.withLimit(fetchSize)");
+      out.println("        .prefetchSize(" + prefetchSize + ").chunkSize("
+          + chunkSize + ");");
+      out.println("    if (cursor != null) {");
+      out.println("      options.startCursor(Cursor.fromWebSafeString(cursor));");
+      out.println("    }");
+      out.println("    return options;");
+      out.println("  }");
+      out.println();
+      out.println("  protected QueryExecution startMetrics(String method) {");
+      out.println("    return this.metrics == null ? null : new QueryExecution(this.raw.pattern(), method);");
+      out.println("  }");
+      out.println();
+      out.println("  protected void recordMetrics(QueryExecution execution) {");
+      out.println("    if (execution != null) {");
+      out.println("      this.metrics.record(execution.finish());");
+      out.println("    }");
+      out.println("  }");
+      out.println();
+      out.println("  /**");
+      out.println("   * @return the raw query, to read the rows of this query.");
+      out.println("   * @throws IllegalStateException if the raw query does not hold everything");
+      out.println("   *   applied to the wrapped query, see the constructor.");
+      out.println("   */");
+      out.println("  protected RawQuery raw() {");
+      out.println("    if (!this.mirrored) {");
+      out.println("      throw new IllegalStateException(\"Raw entities are only read for queries filtered \"");
+      out.println("          + \"through " + queryName + ", without a limit, offset or cursor\");");
+      out.println("    }");
+      out.println("    return this.raw;");
+      out.println("  }");
+      out.println();
       out.println("  protected Objectify ofy() {");
       out.println("    if (this.lazyOfy == null) {");
       out.println("      ObjectifyOpts opts = new ObjectifyOpts().setSessionCache(true);");
@@ -375,4 +1083,544 @@ public class EntityProcessor extends AbstractProcessor {
       }
     }
   }
+
+  /**
+   * Prints <code>listWithRelations</code>, which loads the parent and every
+   * <code>@List</code> relation of a page with the same batch gets, and the
+   * <code>Row</code> class it returns.
+   */
+  private void printListWithRelations(PrintWriter out, EntityModel model) {
+    String entityName = model.name;
+    String parentType = model.parentType;
+
+    out.println("  /** A row of <code>listWithRelations</code>. */");
+    out.println("  public static class Row {");
+    out.println("    private final " + entityName + " entity;");
+    if (parentType != null) {
+      out.println("    private final " + parentType + " parent;");
+    }
+    for (EntityModel.Relation relation : model.relations) {
+      out.println("    private final " + relation.type + " "
+          + fieldName(relation) + ";");
+    }
+    out.println();
+    out.println("    Row(" + entityName + " entity, Key<"
+        + (parentType != null ? parentType : "?")
+        + "> parentKey, java.util.Map<Key<Object>, Object> related) {");
+    out.println("      this.entity = entity;");
+    if (parentType != null) {
+      out.println("      this.parent = (" + parentType
+          + ") related.get(parentKey);");
+    }
+    for (EntityModel.Relation relation : model.relations) {
+      out.println("      this." + fieldName(relation) + " = (" + relation.type
+          + ") related.get(entity." + relation.getter + "());");
+    }
+    out.println("    }");
+    out.println();
+    out.println("    public " + entityName + " getEntity() {");
+    out.println("      return this.entity;");
+    out.println("    }");
+    if (parentType != null) {
+      out.println();
+      out.println("    public " + parentType + " getParent() {");
+      out.println("      return this.parent;");
+      out.println("    }");
+    }
+    for (EntityModel.Relation relation : model.relations) {
+      out.println();
+      out.println("    public " + relation.type + " get"
+          + relation.singularName + "() {");
+      out.println("      return this." + fieldName(relation) + ";");
+      out.println("    }");
+    }
+    out.println("  }");
+    out.println();
+
+    String parentKeyType = "Key<" + (parentType != null ? parentType : "?")
+        + ">";
+    out.println("  /**");
+    out.println("   * Lists a page of entities together with their parent and related");
+    out.println("   * entities, which are all loaded by the same batch gets.");
+    out.println("   */");
+    out.println("  public ListPage<Row> listWithRelations(String cursor, int pageSize) {");
+    out.println("    QueryExecution execution = startMetrics(\"listWithRelations\");");
+    out.println("    QueryResultIterator<" + entityName
+        + "> iterator = startPage(cursor, pageSize).iterator();");
+    out.println();
+    out.println("    ArrayList<" + entityName + "> list = new ArrayList<"
+        + entityName + ">();");
+    out.println("    ArrayList<" + parentKeyType + "> parentKeys = new ArrayList<"
+        + parentKeyType + ">();");
+    out.println("    Hydrator<Object> hydrator = new Hydrator<Object>(ofy().async(), this.nearCache);");
+    out.println("    for (int i = 0; i < pageSize && iterator.hasNext(); i++) {");
+    out.println("      " + entityName + " entity = iterator.next();");
+    out.println("      list.add(entity);");
+    if (parentType != null) {
+      out.println("      Key<" + parentType + "> parentKey = ofy().getFactory().<"
+          + entityName + "> getKey(entity).<" + parentType + "> getParent();");
+      out.println("      parentKeys.add(parentKey);");
+      out.println("      hydrator.add(parentKey);");
+    } else {
+      out.println("      parentKeys.add(null);");
+    }
+    for (EntityModel.Relation relation : model.relations) {
+      out.println("      hydrator.add(entity." + relation.getter + "());");
+    }
+    out.println("    }");
+    out.println("    boolean more = iterator.hasNext();");
+    printScanned(out, "    ", model, "list.size()", false);
+    out.println();
+    out.println("    java.util.Map<Key<Object>, Object> related = hydrator.map();");
+    out.println("    if (execution != null) {");
+    out.println("      execution.fetched(hydrator.getFetchedCount(), hydrator.getBatchCount());");
+    out.println("    }");
+    out.println("    recordMetrics(execution);");
+    out.println();
+    out.println("    ArrayList<Row> rows = new ArrayList<Row>(list.size());");
+    out.println("    for (int i = 0; i < list.size(); i++) {");
+    out.println("      rows.add(new Row(list.get(i), parentKeys.get(i), related));");
+    out.println("    }");
+    out.println("    return new ListPage<Row>(rows, RawQuery.cursorOf(iterator), more);");
+    out.println("  }");
+    out.println();
+  }
+
+  private static String boxed(String type) {
+    if (type.equals("int")) {
+      return "Integer";
+    } else if (type.equals("char")) {
+      return "Character";
+    } else if (type.equals("boolean") || type.equals("byte")
+        || type.equals("short") || type.equals("long")
+        || type.equals("float") || type.equals("double")) {
+      return type.substring(0, 1).toUpperCase() + type.substring(1);
+    }
+    return type;
+  }
+
+  private static String fieldName(EntityModel.Relation relation) {
+    return relation.singularName.substring(0, 1).toLowerCase()
+        + relation.singularName.substring(1);
+  }
+
+  /**
+   * Prints the end of the scan phase of a page method that read
+   * <code>rows</code> rows plus the look-ahead row.
+   */
+  private void printScanned(PrintWriter out, String indent, EntityModel model,
+      String rows, boolean keysOnly) {
+    out.println(indent + "if (execution != null) {");
+    out.println(indent + "  execution.scanned(" + rows + " + (more ? 1 : 0), "
+        + keysOnly + ", more ? 1 : 0,");
+    out.println(indent + "      " + pageFetchSize(model.prefetchSize) + ", "
+        + pageFetchSize(model.chunkSize) + ");");
+    out.println(indent + "}");
+  }
+
+  /** Prints the end of the batch get phase and records the execution. */
+  private void printFetched(PrintWriter out, String indent) {
+    out.println(indent + "if (execution != null) {");
+    out.println(indent + "  execution.fetched(hydrator.getFetchedCount(), hydrator.getBatchCount());");
+    out.println(indent + "}");
+    out.println(indent + "recordMetrics(execution);");
+  }
+
+  /**
+   * Prints the start of a <code>PageFuture</code> of <code>type</code>
+   * whose page is read by the statements printed next.
+   */
+  private static void printSourceStart(PrintWriter out, String indent,
+      String type) {
+    out.println(indent + "return PageFuture.of(new PageFuture.Source<" + type
+        + ">() {");
+    out.println(indent + "  public " + type + " read() {");
+  }
+
+  private static void printSourceEnd(PrintWriter out, String indent) {
+    out.println(indent + "  }");
+    out.println(indent + "});");
+  }
+
+  /**
+   * Prints <code>fetchRelated</code>, the batch get stage shared by the
+   * async methods listing related entities.
+   */
+  private void printFetchRelated(PrintWriter out) {
+    out.println("  /**");
+    out.println("   * @return a future that, once <code>scan</code> added the keys of a page");
+    out.println("   *   to <code>hydrator</code> and told whether there are more rows,");
+    out.println("   *   starts the remaining batch get and then reads the related page.");
+    out.println("   */");
+    out.println("  protected <R> PageFuture<ListPage<R>> fetchRelated(PageFuture<Boolean> scan,");
+    out.println("      final QueryResultIterator<?> iterator, final Hydrator<R> hydrator,");
+    out.println("      final boolean distinct, final QueryExecution execution) {");
+    out.println("    return scan.then(new PageFuture.Continuation<Boolean, ListPage<R>>() {");
+    out.println("      public PageFuture<ListPage<R>> apply(final Boolean more) {");
+    out.println("        hydrator.flush();");
+    printSourceStart(out, "        ", "ListPage<R>");
+    out.println("            ArrayList<R> related = hydrator.list(distinct);");
+    printFetched(out, "            ");
+    out.println("            return new ListPage<R>(related, RawQuery.cursorOf(iterator),");
+    out.println("                more);");
+    printSourceEnd(out, "        ");
+    out.println("      }");
+    out.println("    });");
+    out.println("  }");
+    out.println();
+  }
+
+  /**
+   * Generates <code>compile</code> and the immutable <code>Template</code>
+   * it returns.
+   */
+  private void printTemplate(PrintWriter out, EntityModel model) {
+    String entityName = model.name;
+    String queryName = model.queryName;
+
+    out.println("  /**");
+    out.println("   * @return an immutable copy of the filters, sort orders, ancestor, caches");
+    out.println("   *   and metrics applied so far, which may be shared between threads.");
+    out.println("   * @throws IllegalStateException if the wrapped query was not only");
+    out.println("   *   filtered through this query, see the constructor.");
+    out.println("   */");
+    out.println("  public Template compile() {");
+    out.println("    return new Template(raw().template(), this.cache, this.nearCache,");
+    out.println("        this.metrics" + (model.snapshot != null ? ", this.snapshot" : "")
+        + ");");
+    out.println("  }");
+    out.println();
+
+    out.println("  /**");
+    out.println("   * A compiled " + queryName + ".  Each call runs a new query, so a template");
+    out.println("   * serves any number of pages on any number of threads.");
+    out.println("   */");
+    out.println("  public static final class Template {");
+    out.println();
+    out.println("    private final QueryTemplate template;");
+    out.println("    private final QueryCache cache;");
+    out.println("    private final NearCache nearCache;");
+    out.println("    private final QueryMetrics metrics;");
+    if (model.snapshot != null) {
+      out.println("    private final SnapshotStore snapshot;");
+    }
+    out.println();
+    out.println("    Template(QueryTemplate template, QueryCache cache, NearCache nearCache,");
+    out.println("        QueryMetrics metrics" + (model.snapshot != null
+        ? ", SnapshotStore snapshot" : "") + ") {");
+    out.println("      this.template = template;");
+    out.println("      this.cache = cache;");
+    out.println("      this.nearCache = nearCache;");
+    out.println("      this.metrics = metrics;");
+    if (model.snapshot != null) {
+      out.println("      this.snapshot = snapshot;");
+    }
+    out.println("    }");
+    out.println();
+    out.println("    /** @return a new query of <code>ofy</code> with everything compiled applied. */");
+    out.println("    public " + queryName + " query(Objectify ofy) {");
+    out.println("      Query<" + entityName + "> wrapped = ofy.query(" + entityName
+        + ".class);");
+    out.println("      " + queryName + " query = new " + queryName + "(wrapped);");
+    out.println("      // the raw query takes the parsed calls, only Objectify parses them");
+    out.println("      this.template.applyTo(wrapped);");
+    out.println("      this.template.applyTo(query.raw);");
+    out.println("      query.cache = this.cache;");
+    out.println("      query.nearCache = this.nearCache;");
+    out.println("      query.metrics = this.metrics;");
+    if (model.snapshot != null) {
+      out.println("      query.snapshot = this.snapshot;");
+    }
+    out.println("      return query;");
+    out.println("    }");
+    out.println();
+    out.println("    public ListPage<" + entityName
+        + "> list(Objectify ofy, String cursor, int pageSize) {");
+    out.println("      return query(ofy).list(cursor, pageSize);");
+    out.println("    }");
+    out.println();
+    out.println("    public ListPage<Key<" + entityName
+        + ">> listKeys(Objectify ofy, String cursor, int pageSize) {");
+    out.println("      return query(ofy).listKeys(cursor, pageSize);");
+    out.println("    }");
+    out.println();
+    out.println("    public PageFuture<ListPage<" + entityName
+        + ">> listAsync(Objectify ofy, String cursor,");
+    out.println("        int pageSize) {");
+    out.println("      return query(ofy).listAsync(cursor, pageSize);");
+    out.println("    }");
+    out.println();
+    out.println("    public PageFuture<ListPage<Key<" + entityName
+        + ">>> listKeysAsync(Objectify ofy, String cursor,");
+    out.println("        int pageSize) {");
+    out.println("      return query(ofy).listKeysAsync(cursor, pageSize);");
+    out.println("    }");
+    out.println();
+    out.println("    public int count(Objectify ofy) {");
+    out.println("      return query(ofy).count();");
+    out.println("    }");
+    out.println();
+    out.println("    @Override");
+    out.println("    public String toString() {");
+    out.println("      return this.template.toString();");
+    out.println("    }");
+    out.println("  }");
+    out.println();
+  }
+
+  /**
+   * Generates the store of a <code>@Snapshot</code> entity, made on first use
+   * when the entity is registered, and the methods choosing it.
+   */
+  private void printSnapshot(PrintWriter out, EntityModel model) {
+    String entityName = model.name;
+    String queryName = model.queryName;
+
+    StringBuilder properties = new StringBuilder();
+    for (String property : model.snapshotProperties()) {
+      properties.append(", \"").append(property).append("\"");
+    }
+
+    out.println("  /** The snapshot of every " + entityName + " that answers these queries by default. */");
+    out.println("  public static SnapshotStore snapshotStore() {");
+    out.println("    return SnapshotHolder.STORE;");
+    out.println("  }");
+    out.println();
+    out.println("  private static class SnapshotHolder {");
+    out.println("    static final SnapshotStore STORE = new SnapshotStore(ObjectifyService.factory(),");
+    out.println("        " + entityName + ".class, " + model.snapshot.refreshSeconds()
+        + " * 1000L" + properties + ");");
+    out.println("  }");
+    out.println();
+    out.println("  /**");
+    out.println("   * Answers <code>list</code>, <code>listKeys</code> and <code>count</code> from");
+    out.println("   * <code>snapshot</code>, or from the datastore if it is <code>null</code>.");
+    out.println("   * Datastore cursors, and queries filtered, limited or offset outside of");
+    out.println("   * this class, are still answered from the datastore.");
+    out.println("   */");
+    out.println("  public " + queryName + " useSnapshot(SnapshotStore snapshot) {");
+    out.println("    this.snapshot = snapshot;");
+    out.println("    return this;");
+    out.println("  }");
+    out.println();
+    out.println("  protected boolean fromSnapshot(String cursor) {");
+    out.println("    return this.mirrored && this.snapshot != null");
+    out.println("        && this.snapshot.answers(this.raw, cursor);");
+    out.println("  }");
+    out.println();
+  }
+
+  /**
+   * Prints the start of a page method answering from the snapshot, which
+   * reads the page with the call split over <code>call</code> and
+   * <code>arguments</code>.
+   */
+  private static void printFromSnapshot(PrintWriter out, String method,
+      String type, String call, String arguments) {
+    out.println("    if (fromSnapshot(cursor)) {");
+    out.println("      QueryExecution execution = startMetrics(\"" + method + "\");");
+    out.println("      " + type + " page = " + call);
+    out.println("          " + arguments + ";");
+    out.println("      recordMetrics(execution);");
+    out.println("      return PageFuture.done(page);");
+    out.println("    }");
+  }
+
+  /** the fetch size expression of <code>startPage</code> in a page method */
+  private static String pageFetchSize(String size) {
+    return size.equals("fetchSize") ? "pageSize + 1" : size;
+  }
+
+  private String[] relatedIterator(String entityName, boolean raw,
+      boolean stream) {
+    String size = stream ? "batchSize" : "pageSize";
+    // pages read the iterator from a PageFuture.Source
+    String declaration = stream ? "    " : "    final ";
+    if (raw) {
+      return new String[] {
+          declaration
+              + "QueryResultIterator<com.google.appengine.api.datastore.Entity> iterator =",
+          "      raw().iterator(ofy().getDatastore(), "
+              + (stream ? "rawStream" : "rawPage") + "(cursor, " + size + "));"};
+    } else {
+      return new String[] {
+          declaration + "QueryResultIterator<" + entityName
+              + "> iterator = " + (stream ? "startStream" : "startPage")
+              + "(cursor, " + size + ").iterator();"};
+    }
+  }
+
+  /**
+   * Prints the streaming aggregations of the <code>@Aggregate</code> fields:
+   * a count per value, the stats of numeric values, and those stats per key
+   * of the <code>groupBy</code> fields.
+   */
+  private void printAggregations(PrintWriter out, EntityModel model) {
+    for (EntityModel.Filter filter : model.filters) {
+      if (filter.aggregate == null || filter.parent
+          || filter.name.equals(model.idFieldName)) {
+        continue;
+      }
+      String counted = countedType(filter.type);
+      if (counted == null) {
+        this.env.getMessager().printMessage(Kind.ERROR, "@Aggregate field '"
+            + filter.name + "' of " + model.name + " has a type without"
+            + " aggregations: " + filter.type, model.element);
+        continue;
+      }
+      printAggregation(out, "Counts the rows per <code>" + filter.name
+          + "</code>.", "Counts<" + counted + ">", "countBy"
+          + filter.capitalized(), "Aggregation.<" + counted + "> counts(\""
+          + filter.name + "\", ofy().getFactory())");
+      String stats = statsType(filter.type);
+      if (stats == null) {
+        continue;
+      }
+      printAggregation(out, "The count, sum, minimum and maximum of <code>"
+          + filter.name + "</code>.", stats, "aggregate" + filter.capitalized(),
+          "Aggregation." + (stats.equals("LongStats") ? "longStats" : "doubleStats")
+              + "(\"" + filter.name + "\")");
+      for (String groupBy : filter.aggregate.groupBy()) {
+        EntityModel.Filter group = model.filter(groupBy);
+        if (group == null || group.parent || !group.type.startsWith(KEY_TYPE)) {
+          // reported by EntityModel
+          continue;
+        }
+        String keyType = group.type.substring(KEY_TYPE.length(),
+            group.type.lastIndexOf('>'));
+        printAggregation(out, "The count, sum, minimum and maximum of <code>"
+            + filter.name + "</code> per <code>" + group.name + "</code>.",
+            "java.util.Map<Key<" + keyType + ">, " + stats + ">", "aggregate"
+                + filter.capitalized() + "By" + group.capitalized(),
+            "Aggregation.<" + keyType + "> "
+                + (stats.equals("LongStats") ? "longStatsBy" : "doubleStatsBy")
+                + "(\"" + group.name + "\", \"" + filter.name
+                + "\", ofy().getFactory())");
+      }
+    }
+  }
+
+  /**
+   * Prints an aggregation reading every row once in batches of
+   * <code>batchSize</code>, and its sharded variant.
+   */
+  private void printAggregation(PrintWriter out, String doc, String type,
+      String methodName, String aggregation) {
+    out.println("  /**");
+    out.println("   * " + doc + "  Reads every row once, in batches of");
+    out.println("   * <code>batchSize</code>, from the raw entities without making POJOs.");
+    out.println("   */");
+    out.println("  public " + type + " " + methodName + "(int batchSize) {");
+    out.println("    return " + aggregation + ".run(raw(),");
+    out.println("        ofy().getDatastore(), batchSize);");
+    out.println("  }");
+    out.println();
+    out.println("  /**");
+    out.println("   * Like <code>" + methodName + "(batchSize)</code>, scanning each of");
+    out.println("   * <code>shards</code> on <code>executor</code> and combining the results.");
+    out.println("   */");
+    out.println("  public " + type + " " + methodName
+        + "(java.util.List<Shard> shards, int batchSize,");
+    out.println("      Executor executor) {");
+    out.println("    return " + aggregation + ".run(raw(),");
+    out.println("        ofy().getFactory(), shards, batchSize, executor);");
+    out.println("  }");
+    out.println();
+  }
+
+  /**
+   * @return the type of the values counted for a field of
+   *   <code>type</code>, or <code>null</code> if it has no count.
+   */
+  private static String countedType(String type) {
+    String stats = statsType(type);
+    if (stats != null) {
+      return stats.equals("LongStats") ? "Long" : "Double";
+    } else if (type.startsWith(KEY_TYPE)) {
+      return "Key<" + type.substring(KEY_TYPE.length());
+    } else if (type.equals("boolean") || type.equals("java.lang.Boolean")
+        || type.equals("java.lang.String") || type.equals("java.util.Date")) {
+      return boxed(type);
+    }
+    return null;
+  }
+
+  /**
+   * @return the stats class for a numeric field of <code>type</code>, or
+   *   <code>null</code>.
+   */
+  private static String statsType(String type) {
+    if (type.equals("int") || type.equals("long") || type.equals("short")
+        || type.equals("byte") || type.equals("java.lang.Integer")
+        || type.equals("java.lang.Long") || type.equals("java.lang.Short")
+        || type.equals("java.lang.Byte")) {
+      return "LongStats";
+    } else if (type.equals("float") || type.equals("double")
+        || type.equals("java.lang.Float") || type.equals("java.lang.Double")) {
+      return "DoubleStats";
+    }
+    return null;
+  }
+
+  /**
+   * Prints a method that streams one item per row in batches of
+   * <code>batchSize</code>, reusing the batch list.
+   */
+  private void printForEach(PrintWriter out, String methodName, String type,
+      String[] iterator, String itemExpression) {
+    out.println("  public void " + methodName
+        + "(String cursor, int batchSize, BatchCallback<" + type
+        + "> callback) {");
+    for (String line : iterator) {
+      out.println(line);
+    }
+    out.println("    ArrayList<" + type + "> batch = new ArrayList<" + type
+        + ">(batchSize);");
+    out.println("    while (iterator.hasNext()) {");
+    out.println("      batch.add(" + itemExpression + ");");
+    out.println("      if (batch.size() == batchSize) {");
+    out.println("        if (!callback.batch(batch, RawQuery.cursorOf(iterator))) {");
+    out.println("          return;");
+    out.println("        }");
+    out.println("        batch.clear();");
+    out.println("      }");
+    out.println("    }");
+    out.println("    if (!batch.isEmpty()) {");
+    out.println("      callback.batch(batch, RawQuery.cursorOf(iterator));");
+    out.println("    }");
+    out.println("  }");
+    out.println();
+  }
+
+  /**
+   * Prints a method that streams the entities related to each row, loading
+   * every batch of <code>batchSize</code> rows through a Hydrator.
+   */
+  private void printForEachRelated(PrintWriter out, String methodName,
+      String type, String[] iterator, String keyExpression) {
+    out.println("  public void " + methodName
+        + "(String cursor, int batchSize, BatchCallback<" + type
+        + "> callback) {");
+    for (String line : iterator) {
+      out.println(line);
+    }
+    out.println("    Hydrator<" + type + "> hydrator = new Hydrator<" + type
+        + ">(ofy().async(), this.nearCache);");
+    out.println("    int rows = 0;");
+    out.println("    while (iterator.hasNext()) {");
+    out.println("      hydrator.add(" + keyExpression + ");");
+    out.println("      if (++rows == batchSize) {");
+    out.println("        if (!callback.batch(hydrator.list(false), RawQuery.cursorOf(iterator))) {");
+    out.println("          return;");
+    out.println("        }");
+    out.println("        hydrator = new Hydrator<" + type + ">(ofy().async(), this.nearCache);");
+    out.println("        rows = 0;");
+    out.println("      }");
+    out.println("    }");
+    out.println("    if (rows > 0) {");
+    out.println("      callback.batch(hydrator.list(false), RawQuery.cursorOf(iterator));");
+    out.println("    }");
+    out.println("  }");
+    out.println();
+  }
 }
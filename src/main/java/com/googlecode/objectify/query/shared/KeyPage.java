@@ -0,0 +1,222 @@
+package com.googlecode.objectify.query.shared;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.googlecode.objectify.Key;
+
+/**
+ * A page of keys returned by the key listing methods of a generated query,
+ * which declare <code>ListPage&lt;Key&lt;T&gt;&gt;</code>.  A KeyPage equals
+ * a <code>ListPage</code> of the same keys, cursor and <code>more</code>.
+ * <p/>
+ * When every key has the same kind, no parent, and either an id or a name,
+ * the page only holds the kind and a <code>long[]</code> of ids or a
+ * <code>String[]</code> of names, and creates a <code>Key</code> each time
+ * an element is read.  Any other page holds its keys like a
+ * <code>ListPage</code>.
+ * <p/>
+ * KeyPage is GWT-RPC friendly.
+ *
+ * @param <T> the kind's entity type
+ */
+public class KeyPage<T> extends ListPage<Key<T>> {
+
+	/** Collects the keys of a page, keeping them compact while possible. */
+	public static class Builder<T> {
+
+		private String kind;
+		private long[] ids;
+		private String[] names;
+		private ArrayList<Key<T>> keys;
+		private int size;
+
+		public Builder() {
+			this(16);
+		}
+
+		/** @param capacity the expected size, such as the page size */
+		public Builder(int capacity) {
+			this.ids = new long[Math.min(Math.max(capacity, 1), 1024)];
+		}
+
+		public Builder<T> add(Key<T> key) {
+			if (key == null || key.getParent() != null) {
+				expand();
+			} else if (key.getName() != null) {
+				return addName(key.getKind(), key.getName());
+			} else {
+				return addId(key.getKind(), key.getId());
+			}
+			this.keys.add(key);
+			this.size++;
+			return this;
+		}
+
+		/** Adds the key of <code>kind</code> without a parent and with <code>id</code>. */
+		public Builder<T> addId(String kind, long id) {
+			if (this.keys == null && this.names == null && sameKind(kind)) {
+				if (this.size == this.ids.length) {
+					long[] grown = new long[this.size * 2];
+					System.arraycopy(this.ids, 0, grown, 0, this.size);
+					this.ids = grown;
+				}
+				this.ids[this.size++] = id;
+				return this;
+			}
+			expand();
+			this.keys.add(new Key<T>(kind, id));
+			this.size++;
+			return this;
+		}
+
+		/** Adds the key of <code>kind</code> without a parent and with <code>name</code>. */
+		public Builder<T> addName(String kind, String name) {
+			if (this.keys == null && sameKind(kind)) {
+				if (this.names == null && this.size == 0) {
+					this.names = new String[this.ids.length];
+					this.ids = null;
+				}
+				if (this.names != null) {
+					if (this.size == this.names.length) {
+						String[] grown = new String[this.size * 2];
+						System.arraycopy(this.names, 0, grown, 0, this.size);
+						this.names = grown;
+					}
+					this.names[this.size++] = name;
+					return this;
+				}
+			}
+			expand();
+			this.keys.add(new Key<T>(kind, name));
+			this.size++;
+			return this;
+		}
+
+		public int size() {
+			return this.size;
+		}
+
+		public KeyPage<T> build(String cursor, boolean more) {
+			if (this.keys != null) {
+				return new KeyPage<T>(this.keys, cursor, more);
+			} else if (this.names != null) {
+				String[] names = new String[this.size];
+				System.arraycopy(this.names, 0, names, 0, this.size);
+				return new KeyPage<T>(this.kind, null, names, cursor, more);
+			}
+			long[] ids = new long[this.size];
+			System.arraycopy(this.ids, 0, ids, 0, this.size);
+			return new KeyPage<T>(this.kind, ids, null, cursor, more);
+		}
+
+		private boolean sameKind(String kind) {
+			if (this.size == 0) {
+				this.kind = kind;
+			}
+			return this.kind.equals(kind);
+		}
+
+		/** switches to holding <code>Key</code> objects */
+		private void expand() {
+			if (this.keys != null) {
+				return;
+			}
+			this.keys = new ArrayList<Key<T>>(Math.max(this.size * 2, 16));
+			for (int i = 0; i < this.size; i++) {
+				this.keys.add(this.names != null ? new Key<T>(this.kind,
+						this.names[i]) : new Key<T>(this.kind, this.ids[i]));
+			}
+			this.ids = null;
+			this.names = null;
+		}
+	}
+
+	private String kind;
+	private long[] ids;
+	private String[] names;
+	private ArrayList<Key<T>> keys;
+	private transient List<Key<T>> view;
+
+	KeyPage() {
+	}
+
+	/** A compact page of <code>ids</code> or <code>names</code> of <code>kind</code>. */
+	KeyPage(String kind, long[] ids, String[] names, String cursor,
+			boolean more) {
+		super(cursor, more);
+		this.kind = kind;
+		this.ids = ids;
+		this.names = names;
+	}
+
+	KeyPage(ArrayList<Key<T>> keys, String cursor, boolean more) {
+		super(cursor, more);
+		this.keys = keys;
+	}
+
+	/**
+	 * @return <code>page</code> itself if it is a <code>KeyPage</code>,
+	 *   otherwise a <code>KeyPage</code> of the same keys.
+	 */
+	public static <T> KeyPage<T> of(ListPage<Key<T>> page) {
+		if (page instanceof KeyPage<?>) {
+			return (KeyPage<T>) page;
+		}
+		Builder<T> builder = new Builder<T>(page.size());
+		for (Key<T> key : page) {
+			builder.add(key);
+		}
+		return builder.build(page.getCursor(), page.more());
+	}
+
+	/** @return the kind of every key of a compact page, otherwise <code>null</code>. */
+	public String getKind() {
+		return this.kind;
+	}
+
+	/** @return a copy of the ids of a compact page of ids, otherwise <code>null</code>. */
+	public long[] getIds() {
+		if (this.ids == null) {
+			return null;
+		}
+		long[] ids = new long[this.ids.length];
+		System.arraycopy(this.ids, 0, ids, 0, ids.length);
+		return ids;
+	}
+
+	/** @return a copy of the names of a compact page of names, otherwise <code>null</code>. */
+	public String[] getNames() {
+		if (this.names == null) {
+			return null;
+		}
+		String[] names = new String[this.names.length];
+		System.arraycopy(this.names, 0, names, 0, names.length);
+		return names;
+	}
+
+	@Override
+	protected List<Key<T>> elements() {
+		if (this.keys != null) {
+			return this.keys;
+		}
+		if (this.view == null) {
+			this.view = new AbstractList<Key<T>>() {
+				@Override
+				public Key<T> get(int index) {
+					return KeyPage.this.ids != null
+							? new Key<T>(KeyPage.this.kind, KeyPage.this.ids[index])
+							: new Key<T>(KeyPage.this.kind, KeyPage.this.names[index]);
+				}
+
+				@Override
+				public int size() {
+					return KeyPage.this.ids != null ? KeyPage.this.ids.length
+							: KeyPage.this.names.length;
+				}
+			};
+		}
+		return this.view;
+	}
+}
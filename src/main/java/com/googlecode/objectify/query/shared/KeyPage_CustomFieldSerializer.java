@@ -0,0 +1,83 @@
+package com.googlecode.objectify.query.shared;
+
+import java.util.ArrayList;
+
+import com.google.gwt.user.client.rpc.SerializationException;
+import com.google.gwt.user.client.rpc.SerializationStreamReader;
+import com.google.gwt.user.client.rpc.SerializationStreamWriter;
+import com.googlecode.objectify.Key;
+
+/**
+ * GWT-RPC form of a <code>KeyPage</code>: a compact page is sent as its kind
+ * and its packed ids or its names, and stays compact on the client.
+ */
+public final class KeyPage_CustomFieldSerializer {
+
+	private static final int KEYS = 0;
+	private static final int IDS = 1;
+	private static final int NAMES = 2;
+
+	private KeyPage_CustomFieldSerializer() {
+	}
+
+	public static void serialize(SerializationStreamWriter writer,
+			KeyPage<?> instance) throws SerializationException {
+		writer.writeBoolean(instance.more());
+		ListPage_CustomFieldSerializer.writeCursor(writer, instance.getCursor());
+
+		long[] ids = instance.getIds();
+		String[] names = instance.getNames();
+		if (ids != null) {
+			writer.writeInt(IDS);
+			writer.writeString(instance.getKind());
+			writer.writeInt(ids.length);
+			writer.writeString(PackedEncoding.packIds(ids));
+		} else if (names != null) {
+			writer.writeInt(NAMES);
+			writer.writeString(instance.getKind());
+			writer.writeInt(names.length);
+			for (String name : names) {
+				writer.writeString(name);
+			}
+		} else {
+			writer.writeInt(KEYS);
+			writer.writeInt(instance.size());
+			for (Key<?> key : instance) {
+				writer.writeObject(key);
+			}
+		}
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public static KeyPage instantiate(SerializationStreamReader reader)
+			throws SerializationException {
+		boolean more = reader.readBoolean();
+		String cursor = ListPage_CustomFieldSerializer.readCursor(reader);
+
+		int form = reader.readInt();
+		if (form == IDS) {
+			String kind = reader.readString();
+			int size = reader.readInt();
+			return new KeyPage(kind, PackedEncoding.unpackIds(reader.readString(),
+					size), null, cursor, more);
+		} else if (form == NAMES) {
+			String kind = reader.readString();
+			String[] names = new String[reader.readInt()];
+			for (int i = 0; i < names.length; i++) {
+				names[i] = reader.readString();
+			}
+			return new KeyPage(kind, null, names, cursor, more);
+		}
+		int size = reader.readInt();
+		ArrayList keys = new ArrayList(size);
+		for (int i = 0; i < size; i++) {
+			keys.add(reader.readObject());
+		}
+		return new KeyPage(keys, cursor, more);
+	}
+
+	public static void deserialize(SerializationStreamReader reader,
+			KeyPage<?> instance) {
+		// everything is read by instantiate
+	}
+}
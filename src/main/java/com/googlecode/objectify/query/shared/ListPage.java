@@ -66,40 +66,51 @@ public class ListPage<Entity_> implements Iterable<Entity_>, RandomAccess, IsSer
 		this.more = more;
 	}
 
+	/** for subclasses that hold their elements differently */
+	ListPage(String cursor, boolean more) {
+		this.cursor = cursor;
+		this.more = more;
+	}
+
+	/** @return the elements of the page, read by every list operation. */
+	protected List<Entity_> elements() {
+		return this.list;
+	}
+
 	public boolean contains(Entity_ entity) {
-		return this.list.contains(entity);		
+		return elements().contains(entity);		
 	}
 
 	public Entity_ get(int index) {
-		return this.list.get(index);
+		return elements().get(index);
 	}
 
 	public int indexOf(Entity_ entity) {
-		return this.list.indexOf(entity);
+		return elements().indexOf(entity);
 	}
 
 	public boolean isEmpty() {
-		return this.list.isEmpty();
+		return elements().isEmpty();
 	}
 
 	public Iterator<Entity_> iterator() {
-		return this.list.iterator();
+		return elements().iterator();
 	}
 
 	public int lastIndexOf(Entity_ entity) {
-		return this.list.lastIndexOf(entity);
+		return elements().lastIndexOf(entity);
 	}
 
 	public ListIterator<Entity_> listIterator() {
-		return this.list.listIterator();
+		return elements().listIterator();
 	}
 
 	public int size() {
-		return this.list.size();
+		return elements().size();
 	}
 
 	public List<Entity_> subList(int arg0, int arg1) {
-		return this.list.subList(arg0, arg1);
+		return elements().subList(arg0, arg1);
 	}
 	
 	public String getCursor() {
@@ -120,8 +131,7 @@ public class ListPage<Entity_> implements Iterable<Entity_>, RandomAccess, IsSer
     @Override
     public int hashCode() {
         int hashCode = 23;
-        hashCode = (hashCode * 37) + getClass().hashCode();
-        hashCode = (hashCode * 37) + (this.list == null ? 1 : this.list.hashCode());
+        hashCode = (hashCode * 37) + (elements() == null ? 1 : elements().hashCode());
         hashCode = (hashCode * 37) + (this.cursor == null ? 1 : this.cursor.hashCode());
         hashCode = (hashCode * 37) + Boolean.valueOf(this.more).hashCode();
         return hashCode;
@@ -129,10 +139,11 @@ public class ListPage<Entity_> implements Iterable<Entity_>, RandomAccess, IsSer
 
     @Override
     public boolean equals(Object other) {
-        if (other != null && other.getClass().equals(this.getClass())) {
+        // a KeyPage equals a ListPage of the same keys
+        if (other instanceof ListPage<?>) {
         	ListPage<?> o = (ListPage<?>) other;
             return true
-                && ((o.list == null && this.list == null) || (o.list != null && o.list.equals(this.list)))
+                && ((o.elements() == null && elements() == null) || (o.elements() != null && o.elements().equals(elements())))
                 && ((o.cursor == null && this.cursor == null) || (o.cursor != null && o.cursor.equals(this.cursor)))
                 && o.more == this.more
                ;
@@ -143,7 +154,7 @@ public class ListPage<Entity_> implements Iterable<Entity_>, RandomAccess, IsSer
     @Override
     public String toString() {
         return "ListPage["
-            + this.list
+            + elements()
             + ","
             + this.cursor
             + ","
@@ -0,0 +1,139 @@
+package com.googlecode.objectify.query.shared;
+
+import java.util.ArrayList;
+
+import com.google.gwt.user.client.rpc.SerializationException;
+import com.google.gwt.user.client.rpc.SerializationStreamReader;
+import com.google.gwt.user.client.rpc.SerializationStreamWriter;
+import com.googlecode.objectify.Key;
+
+/**
+ * Compact GWT-RPC form of a <code>ListPage</code>.
+ * <p/>
+ * A page of id keys of a single kind without parents is sent as the kind, the
+ * number of keys and one string of packed ids, instead of a
+ * <code>Key</code> object per element.  Every other page sends its elements
+ * one after the other without the <code>ArrayList</code> around them.
+ * <p/>
+ * A cursor from <code>Cursor.toWebSafeString()</code> travels in a denser
+ * encoding and is restored on the client, so <code>getCursor()</code> still
+ * returns the string the server produced.
+ */
+public final class ListPage_CustomFieldSerializer {
+
+	private static final int ELEMENTS = 0;
+	private static final int ID_KEYS = 1;
+
+	private static final int NO_CURSOR = 0;
+	private static final int PLAIN_CURSOR = 1;
+	private static final int PACKED_CURSOR = 2;
+
+	private ListPage_CustomFieldSerializer() {
+	}
+
+	public static void serialize(SerializationStreamWriter writer,
+			ListPage<?> instance) throws SerializationException {
+		writer.writeBoolean(instance.more());
+		writeCursor(writer, instance.getCursor());
+
+		int size = instance.size();
+		String kind = idKeyKind(instance);
+		if (kind != null) {
+			long[] ids = new long[size];
+			for (int i = 0; i < size; i++) {
+				ids[i] = ((Key<?>) instance.get(i)).getId();
+			}
+			writer.writeInt(ID_KEYS);
+			writer.writeString(kind);
+			writer.writeInt(size);
+			writer.writeString(PackedEncoding.packIds(ids));
+		} else {
+			writer.writeInt(ELEMENTS);
+			writer.writeInt(size);
+			for (int i = 0; i < size; i++) {
+				writer.writeObject(instance.get(i));
+			}
+		}
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public static ListPage instantiate(SerializationStreamReader reader)
+			throws SerializationException {
+		boolean more = reader.readBoolean();
+		String cursor = readCursor(reader);
+
+		ArrayList list;
+		if (reader.readInt() == ID_KEYS) {
+			String kind = reader.readString();
+			int size = reader.readInt();
+			long[] ids = PackedEncoding.unpackIds(reader.readString(), size);
+			list = new ArrayList(size);
+			for (long id : ids) {
+				list.add(new Key(kind, id));
+			}
+		} else {
+			int size = reader.readInt();
+			list = new ArrayList(size);
+			for (int i = 0; i < size; i++) {
+				list.add(reader.readObject());
+			}
+		}
+		return new ListPage(list, cursor, more);
+	}
+
+	public static void deserialize(SerializationStreamReader reader,
+			ListPage<?> instance) {
+		// everything is read by instantiate
+	}
+
+	/**
+	 * @return the kind shared by every element, if all of them are
+	 *   <code>Key</code>s with an id and without a parent; otherwise
+	 *   <code>null</code>.
+	 */
+	private static String idKeyKind(ListPage<?> page) {
+		if (page.isEmpty()) {
+			return null;
+		}
+		String kind = null;
+		for (Object element : page) {
+			if (!(element instanceof Key<?>)) {
+				return null;
+			}
+			Key<?> key = (Key<?>) element;
+			if (key.getName() != null || key.getId() <= 0
+					|| key.getParent() != null
+					|| (kind != null && !kind.equals(key.getKind()))) {
+				return null;
+			}
+			kind = key.getKind();
+		}
+		return kind;
+	}
+
+	static void writeCursor(SerializationStreamWriter writer,
+			String cursor) throws SerializationException {
+		String packed = cursor == null ? null : PackedEncoding.packCursor(cursor);
+		if (cursor == null) {
+			writer.writeInt(NO_CURSOR);
+		} else if (packed != null) {
+			writer.writeInt(PACKED_CURSOR);
+			writer.writeString(packed);
+		} else {
+			writer.writeInt(PLAIN_CURSOR);
+			writer.writeString(cursor);
+		}
+	}
+
+	static String readCursor(SerializationStreamReader reader)
+			throws SerializationException {
+		switch (reader.readInt()) {
+		case PACKED_CURSOR:
+			return PackedEncoding.unpackCursor(reader.readString());
+		case PLAIN_CURSOR:
+			return reader.readString();
+		default:
+			return null;
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package com.googlecode.objectify.query.shared;
+
+/**
+ * Text encodings used by <code>ListPage_CustomFieldSerializer</code>, and the
+ * unpadded web-safe base64 of datastore and snapshot cursors.
+ * <p/>
+ * Bytes are packed as Z85 (base 85, five characters for every four bytes,
+ * the last group shortened), whose alphabet needs no escaping inside a
+ * GWT-RPC payload.  Translatable by GWT.
+ */
+public final class PackedEncoding {
+
+	private static final String Z85 = "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ.-:+=^!/*?&<>()[]{}@%$#";
+	private static final String BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+
+	private PackedEncoding() {
+	}
+
+	/**
+	 * Repacks an unpadded web-safe base64 cursor, as produced by
+	 * <code>Cursor.toWebSafeString()</code>, as Z85.
+	 *
+	 * @return
+	 *   the packed cursor, or <code>null</code> if <code>cursor</code> is not
+	 *   canonical unpadded web-safe base64 and must be sent as it is.
+	 */
+	static String packCursor(String cursor) {
+		byte[] bytes = fromBase64(cursor);
+		if (bytes == null || !toBase64(bytes).equals(cursor)) {
+			return null;
+		}
+		return encode(bytes, bytes.length);
+	}
+
+	/** Reverses <code>packCursor</code>. */
+	static String unpackCursor(String packed) {
+		return toBase64(decode(packed));
+	}
+
+	/** Packs positive ids as unsigned varints. */
+	static String packIds(long[] ids) {
+		byte[] bytes = new byte[ids.length * 10];
+		int length = 0;
+		for (long id : ids) {
+			while ((id & ~0x7FL) != 0) {
+				bytes[length++] = (byte) ((id & 0x7F) | 0x80);
+				id >>>= 7;
+			}
+			bytes[length++] = (byte) id;
+		}
+		return encode(bytes, length);
+	}
+
+	/** Reverses <code>packIds</code>. */
+	static long[] unpackIds(String packed, int count) {
+		byte[] bytes = decode(packed);
+		long[] ids = new long[count];
+		int position = 0;
+		for (int i = 0; i < count; i++) {
+			long id = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = bytes[position++];
+				id |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			ids[i] = id;
+		}
+		return ids;
+	}
+
+	static String encode(byte[] bytes, int length) {
+		StringBuilder out = new StringBuilder((length * 5 + 3) / 4);
+		char[] group = new char[5];
+		for (int i = 0; i < length; i += 4) {
+			long value = 0;
+			for (int j = 0; j < 4; j++) {
+				value = (value << 8) | (i + j < length ? bytes[i + j] & 0xFF : 0);
+			}
+			for (int j = 4; j >= 0; j--) {
+				group[j] = Z85.charAt((int) (value % 85));
+				value /= 85;
+			}
+			// a last group of n bytes only needs its first n + 1 characters
+			out.append(group, 0, Math.min(5, length - i + 1));
+		}
+		return out.toString();
+	}
+
+	static byte[] decode(String text) {
+		int groups = text.length() / 5;
+		int tail = text.length() % 5;
+		byte[] bytes = new byte[groups * 4 + (tail > 0 ? tail - 1 : 0)];
+		for (int i = 0, position = 0; i < text.length(); i += 5) {
+			long value = 0;
+			for (int j = 0; j < 5; j++) {
+				// the shortened last group is padded with the highest digit
+				value = value * 85 + (i + j < text.length()
+						? Z85.indexOf(text.charAt(i + j)) : 84);
+			}
+			for (int j = 0; j < 4 && position < bytes.length; j++) {
+				bytes[position++] = (byte) (value >>> (24 - 8 * j));
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return
+	 *   the bytes of unpadded web-safe base64 <code>text</code>, or
+	 *   <code>null</code> if it is not web-safe base64.
+	 */
+	public static byte[] fromBase64(String text) {
+		if (text.length() % 4 == 1) {
+			return null;
+		}
+		byte[] bytes = new byte[text.length() * 3 / 4];
+		int buffer = 0;
+		int bits = 0;
+		int position = 0;
+		for (int i = 0; i < text.length(); i++) {
+			int digit = BASE64.indexOf(text.charAt(i));
+			if (digit < 0) {
+				return null;
+			}
+			buffer = ((buffer << 6) | digit) & 0xFFFF;
+			bits += 6;
+			if (bits >= 8) {
+				bits -= 8;
+				bytes[position++] = (byte) (buffer >> bits);
+			}
+		}
+		return bytes;
+	}
+
+	/** @return <code>bytes</code> as unpadded web-safe base64. */
+	public static String toBase64(byte[] bytes) {
+		StringBuilder out = new StringBuilder((bytes.length * 4 + 2) / 3);
+		for (int i = 0; i < bytes.length; i += 3) {
+			int value = (bytes[i] & 0xFF) << 16;
+			if (i + 1 < bytes.length) {
+				value |= (bytes[i + 1] & 0xFF) << 8;
+			}
+			if (i + 2 < bytes.length) {
+				value |= bytes[i + 2] & 0xFF;
+			}
+			int chars = Math.min(4, (bytes.length - i) * 4 / 3 + 1);
+			for (int j = 0; j < chars; j++) {
+				out.append(BASE64.charAt((value >> (18 - 6 * j)) & 0x3F));
+			}
+		}
+		return out.toString();
+	}
+}
@@ -0,0 +1,317 @@
+package com.googlecode.objectify.query.util;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyFactory;
+
+/**
+ * A streaming pass over the raw entities of a generated query that folds one
+ * or two properties into an accumulator, see the <code>countBy</code> and
+ * <code>aggregate</code> methods of generated queries.
+ * <p/>
+ * Rows are read in batches of <code>batchSize</code> through one datastore
+ * iterator, and dropped once they are added: no page and no POJO is made.
+ * A sharded pass runs one iterator per shard on an <code>Executor</code>,
+ * each with its own accumulator, and combines the partial results once
+ * every shard is done.
+ * <p/>
+ * A multi-valued property counts the row once per distinct value, adds each
+ * of its numbers to the stats, and adds the row to the group of each of its
+ * distinct keys.
+ *
+ * @param <A> the accumulator, which is also the result
+ */
+public abstract class Aggregation<A> {
+
+  /** @return an empty accumulator. */
+  protected abstract A create();
+
+  /** Adds the row <code>entity</code> to <code>accumulator</code>. */
+  protected abstract void add(A accumulator, Entity entity);
+
+  /** Adds the rows of <code>partial</code> to <code>into</code>. */
+  protected abstract void combine(A into, A partial);
+
+  /** Folds every row of <code>query</code>. */
+  public A run(RawQuery query, DatastoreService datastore, int batchSize) {
+    A result = create();
+    QueryResultIterator<Entity> iterator = query.iterator(datastore,
+        FetchOptions.Builder.withChunkSize(batchSize).prefetchSize(batchSize));
+    while (iterator.hasNext()) {
+      add(result, iterator.next());
+    }
+    return result;
+  }
+
+  /**
+   * Folds every row of <code>query</code> by shard.  The shards must not
+   * have been scanned before, partial results are not kept across calls.
+   *
+   * @throws IllegalStateException if a shard failed.
+   */
+  public A run(RawQuery query, ObjectifyFactory factory, List<Shard> shards,
+      int batchSize, Executor executor) {
+    // one thread per shard, so a partial is only updated by one thread
+    final ConcurrentHashMap<Shard, A> partials = new ConcurrentHashMap<Shard, A>();
+    List<Shard> unfinished = ShardedScan.forEachEntity(query, factory, shards,
+        batchSize, executor, new ShardCallback<Entity>() {
+          public boolean batch(Shard shard, List<Entity> batch, String cursor) {
+            A partial = partials.get(shard);
+            if (partial == null) {
+              partial = create();
+              partials.put(shard, partial);
+            }
+            for (Entity entity : batch) {
+              add(partial, entity);
+            }
+            return true;
+          }
+        });
+    if (!unfinished.isEmpty()) {
+      throw new IllegalStateException(unfinished.size() + " of "
+          + shards.size() + " shards of " + query.getKind() + " failed");
+    }
+    A result = create();
+    for (A partial : partials.values()) {
+      combine(result, partial);
+    }
+    return result;
+  }
+
+  /**
+   * @return the number of rows per value of <code>property</code>, with
+   *   stored keys as typed <code>Key</code>s and integers as
+   *   <code>Long</code>s.
+   */
+  public static <V> Aggregation<Counts<V>> counts(final String property,
+      final ObjectifyFactory factory) {
+    return new Aggregation<Counts<V>>() {
+      @Override
+      protected Counts<V> create() {
+        return new Counts<V>();
+      }
+
+      @Override
+      @SuppressWarnings("unchecked")
+      protected void add(Counts<V> counts, Entity entity) {
+        for (Object value : values(entity.getProperty(property), true)) {
+          counts.add((V) value(factory, value));
+        }
+      }
+
+      @Override
+      protected void combine(Counts<V> into, Counts<V> partial) {
+        into.combine(partial);
+      }
+    };
+  }
+
+  /** @return the stats of the integer values of <code>property</code>. */
+  public static Aggregation<LongStats> longStats(final String property) {
+    return new Aggregation<LongStats>() {
+      @Override
+      protected LongStats create() {
+        return new LongStats();
+      }
+
+      @Override
+      protected void add(LongStats stats, Entity entity) {
+        for (Object value : values(entity.getProperty(property), false)) {
+          if (value instanceof Number) {
+            stats.add(((Number) value).longValue());
+          }
+        }
+      }
+
+      @Override
+      protected void combine(LongStats into, LongStats partial) {
+        into.combine(partial);
+      }
+    };
+  }
+
+  /** @return the stats of the floating point values of <code>property</code>. */
+  public static Aggregation<DoubleStats> doubleStats(final String property) {
+    return new Aggregation<DoubleStats>() {
+      @Override
+      protected DoubleStats create() {
+        return new DoubleStats();
+      }
+
+      @Override
+      protected void add(DoubleStats stats, Entity entity) {
+        for (Object value : values(entity.getProperty(property), false)) {
+          if (value instanceof Number) {
+            stats.add(((Number) value).doubleValue());
+          }
+        }
+      }
+
+      @Override
+      protected void combine(DoubleStats into, DoubleStats partial) {
+        into.combine(partial);
+      }
+    };
+  }
+
+  /**
+   * @return the stats of the integer values of <code>property</code> per
+   *   key stored in <code>keyProperty</code>, rows without a key under
+   *   <code>null</code>.
+   */
+  public static <K> Aggregation<Map<Key<K>, LongStats>> longStatsBy(
+      final String keyProperty, final String property,
+      final ObjectifyFactory factory) {
+    return new Grouped<K, LongStats>(keyProperty, factory) {
+      @Override
+      protected LongStats createGroup() {
+        return new LongStats();
+      }
+
+      @Override
+      protected void addToGroup(LongStats stats, Entity entity) {
+        for (Object value : values(entity.getProperty(property), false)) {
+          if (value instanceof Number) {
+            stats.add(((Number) value).longValue());
+          }
+        }
+      }
+
+      @Override
+      protected void combineGroup(LongStats into, LongStats partial) {
+        into.combine(partial);
+      }
+    };
+  }
+
+  /**
+   * @return the stats of the floating point values of <code>property</code>
+   *   per key stored in <code>keyProperty</code>.
+   */
+  public static <K> Aggregation<Map<Key<K>, DoubleStats>> doubleStatsBy(
+      final String keyProperty, final String property,
+      final ObjectifyFactory factory) {
+    return new Grouped<K, DoubleStats>(keyProperty, factory) {
+      @Override
+      protected DoubleStats createGroup() {
+        return new DoubleStats();
+      }
+
+      @Override
+      protected void addToGroup(DoubleStats stats, Entity entity) {
+        for (Object value : values(entity.getProperty(property), false)) {
+          if (value instanceof Number) {
+            stats.add(((Number) value).doubleValue());
+          }
+        }
+      }
+
+      @Override
+      protected void combineGroup(DoubleStats into, DoubleStats partial) {
+        into.combine(partial);
+      }
+    };
+  }
+
+  /**
+   * @return the values of a multi-valued property, distinct if asked, or
+   *   the single value of any other property.  The datastore stores no empty
+   *   lists, so an empty collection counts as a missing value.
+   */
+  static Collection<?> values(Object stored, boolean distinct) {
+    if (!(stored instanceof Collection<?>)) {
+      return Collections.singleton(stored);
+    }
+    Collection<?> values = (Collection<?>) stored;
+    if (values.isEmpty()) {
+      return Collections.singleton(null);
+    }
+    return distinct ? new LinkedHashSet<Object>(values) : values;
+  }
+
+  /** Stored keys as typed keys, integers as longs, see <code>counts</code>. */
+  static Object value(ObjectifyFactory factory, Object stored) {
+    if (stored instanceof com.google.appengine.api.datastore.Key) {
+      return factory.rawKeyToTypedKey((com.google.appengine.api.datastore.Key) stored);
+    } else if (stored instanceof Integer || stored instanceof Short
+        || stored instanceof Byte) {
+      return ((Number) stored).longValue();
+    }
+    return stored;
+  }
+
+  /** Accumulates per key stored in a property. */
+  private abstract static class Grouped<K, G> extends
+      Aggregation<Map<Key<K>, G>> {
+
+    private final String keyProperty;
+    private final ObjectifyFactory factory;
+
+    Grouped(String keyProperty, ObjectifyFactory factory) {
+      this.keyProperty = keyProperty;
+      this.factory = factory;
+    }
+
+    protected abstract G createGroup();
+
+    protected abstract void combineGroup(G into, G partial);
+
+    @Override
+    protected Map<Key<K>, G> create() {
+      return new HashMap<Key<K>, G>();
+    }
+
+    /**
+     * Adds the row to the group of each distinct key of a multi-valued key
+     * property.
+     *
+     * @throws IllegalStateException if the property holds anything but keys.
+     */
+    @Override
+    protected void add(Map<Key<K>, G> groups, Entity entity) {
+      for (Object value : values(entity.getProperty(this.keyProperty), true)) {
+        if (value != null
+            && !(value instanceof com.google.appengine.api.datastore.Key)) {
+          throw new IllegalStateException("Property '" + this.keyProperty
+              + "' of " + entity.getKey() + " holds a "
+              + value.getClass().getName() + ", not a Key");
+        }
+        com.google.appengine.api.datastore.Key raw = (com.google.appengine.api.datastore.Key) value;
+        Key<K> key = raw == null ? null : this.factory.<K> rawKeyToTypedKey(raw);
+        G group = groups.get(key);
+        if (group == null) {
+          group = createGroup();
+          groups.put(key, group);
+        }
+        addToGroup(group, entity);
+      }
+    }
+
+    /** Adds the row <code>entity</code> to the group of its key. */
+    protected abstract void addToGroup(G group, Entity entity);
+
+    @Override
+    protected void combine(Map<Key<K>, G> into, Map<Key<K>, G> partial) {
+      for (Map.Entry<Key<K>, G> entry : partial.entrySet()) {
+        G group = into.get(entry.getKey());
+        if (group == null) {
+          into.put(entry.getKey(), entry.getValue());
+        } else {
+          combineGroup(group, entry.getValue());
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,24 @@
+package com.googlecode.objectify.query.util;
+
+import java.util.List;
+
+/**
+ * Receives the results of a generated query's <code>forEach...</code>
+ * methods one batch at a time.
+ *
+ * @param <T> the type of the streamed results
+ */
+public interface BatchCallback<T> {
+
+  /**
+   * @param batch
+   *   the next results.  The list may be reused for the following batch, so
+   *   it must not be kept after this method returns.
+   * @param cursor
+   *   resumes the query after the last result of this batch.
+   * @return
+   *   <code>true</code> to continue with the next batch.<br/>
+   *   <code>false</code> to stop streaming.
+   */
+  boolean batch(List<T> batch, String cursor);
+}
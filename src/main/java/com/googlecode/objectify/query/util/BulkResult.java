@@ -0,0 +1,65 @@
+package com.googlecode.objectify.query.util;
+
+import java.io.Serializable;
+
+/**
+ * The progress of a bulk delete or update of a generated query, see
+ * <code>BulkWrite</code>.
+ * <p/>
+ * The cursor is after the last row whose write completed, so running the
+ * bulk write again from <code>getCursor()</code> continues where it stopped,
+ * also after a failed write.
+ */
+public class BulkResult implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private final long scanned;
+  private final long written;
+  private final String cursor;
+  private final boolean done;
+  private final boolean dryRun;
+
+  public BulkResult(long scanned, long written, String cursor, boolean done,
+      boolean dryRun) {
+    this.scanned = scanned;
+    this.written = written;
+    this.cursor = cursor;
+    this.done = done;
+    this.dryRun = dryRun;
+  }
+
+  /** @return the number of rows read up to the cursor. */
+  public long getScanned() {
+    return this.scanned;
+  }
+
+  /**
+   * @return the number of rows deleted or updated up to the cursor, or that
+   *   would have been in a dry run.
+   */
+  public long getWritten() {
+    return this.written;
+  }
+
+  /** @return the cursor after the last written batch, or the start cursor. */
+  public String getCursor() {
+    return this.cursor;
+  }
+
+  /** @return <code>true</code> if the query has no rows after the cursor. */
+  public boolean isDone() {
+    return this.done;
+  }
+
+  public boolean isDryRun() {
+    return this.dryRun;
+  }
+
+  @Override
+  public String toString() {
+    return "BulkResult[" + this.scanned + "," + this.written + ","
+        + this.cursor + "," + this.done + (this.dryRun ? ",dry run" : "")
+        + "]";
+  }
+}
@@ -0,0 +1,209 @@
+package com.googlecode.objectify.query.util;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.googlecode.objectify.EntityMetadata;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.ObjectifyFactory;
+import com.googlecode.objectify.Result;
+
+/**
+ * Deletes or updates the rows of a generated query, see
+ * <code>deleteAll</code> and <code>updateAll</code> on the generated query.
+ * <p/>
+ * The rows are read in batches of <code>batchSize</code>, keys only for a
+ * delete and with one fetch per batch, so every cursor stays valid while
+ * the rows before it are deleted.  Each batch is written with one
+ * asynchronous call while the next ones are read, keeping up to
+ * <code>inFlight</code> calls pending.
+ * Writes go through a session of their own without a session cache, so
+ * Objectify's global cache is kept up to date and the written entities are
+ * not held.
+ * <p/>
+ * A bulk write stops after <code>limit</code> rows or once
+ * <code>timeoutMillis</code> have passed, and returns the cursor after the
+ * last completed batch, so it can be continued over several requests.  The
+ * <code>Progress</code> is told about every completed batch, which also
+ * gives the cursor to resume from if a later write fails.  A dry run reads
+ * the same rows and calls the same mutator, but writes nothing.
+ * <p/>
+ * An update continues with the query's own cursor, so the mutator should
+ * not change the properties the query filters or sorts on: rows could be
+ * skipped or updated twice.
+ */
+public class BulkWrite {
+
+  /** The most entities the datastore writes in one call. */
+  public static final int MAX_BATCH_SIZE = 500;
+
+  public static final int DEFAULT_IN_FLIGHT = 4;
+
+  /** Told about the progress of a bulk write. */
+  public interface Progress {
+
+    /**
+     * Called on the writing thread once a batch is written, in order.
+     *
+     * @return <code>false</code> to stop after the batches in flight.
+     */
+    boolean written(BulkResult progress);
+  }
+
+  /** A batch whose write is in flight. */
+  private static class Pending {
+    final Result<?> write;
+    final long scanned;
+    final long written;
+    final String cursor;
+
+    Pending(Result<?> write, long scanned, long written, String cursor) {
+      this.write = write;
+      this.scanned = scanned;
+      this.written = written;
+      this.cursor = cursor;
+    }
+  }
+
+  private final ObjectifyFactory factory;
+  private final int batchSize;
+  private final int inFlight;
+  private final boolean dryRun;
+  private Progress progress;
+
+  /**
+   * @throws IllegalArgumentException if <code>batchSize</code> is not
+   *   between 1 and <code>MAX_BATCH_SIZE</code>.
+   */
+  public BulkWrite(ObjectifyFactory factory, int batchSize, int inFlight,
+      boolean dryRun) {
+    if (batchSize < 1 || batchSize > MAX_BATCH_SIZE) {
+      throw new IllegalArgumentException("batchSize must be between 1 and "
+          + MAX_BATCH_SIZE + ", not " + batchSize);
+    }
+    this.factory = factory;
+    this.batchSize = batchSize;
+    this.inFlight = Math.max(inFlight, 1);
+    this.dryRun = dryRun;
+  }
+
+  public BulkWrite onProgress(Progress progress) {
+    this.progress = progress;
+    return this;
+  }
+
+  /** Deletes the rows of <code>query</code> from <code>cursor</code>. */
+  public BulkResult delete(RawQuery query, String cursor, int limit,
+      long timeoutMillis) {
+    return run(query, null, null, cursor, limit, timeoutMillis);
+  }
+
+  /**
+   * Applies <code>mutator</code> to the rows of <code>query</code> from
+   * <code>cursor</code>, and puts those it changed.
+   */
+  public <T> BulkResult update(RawQuery query, Class<T> entityClass,
+      Mutator<? super T> mutator, String cursor, int limit, long timeoutMillis) {
+    return run(query, this.factory.getMetadata(entityClass), mutator, cursor,
+        limit, timeoutMillis);
+  }
+
+  /**
+   * Deletes the rows if <code>metadata</code> is <code>null</code>, else
+   * updates them.
+   */
+  private <T> BulkResult run(RawQuery query, EntityMetadata<T> metadata,
+      Mutator<? super T> mutator, String cursor, int limit, long timeoutMillis) {
+    query.requireCursors();
+    long deadline = timeoutMillis > 0 ? System.currentTimeMillis()
+        + timeoutMillis : Long.MAX_VALUE;
+
+    // no session cache, so the written entities are not kept
+    Objectify ofy = this.factory.begin();
+    LinkedList<Pending> pending = new LinkedList<Pending>();
+    String position = cursor;
+    boolean stopped = false;
+    boolean more = true;
+    long scanned = 0;
+    long written = 0;
+    while (!stopped && more && scanned < limit) {
+      // one fetch per batch: a cursor inside a fetched batch is an offset,
+      // which would skip rows once the rows before it are deleted
+      int size = (int) Math.min(this.batchSize, limit - scanned);
+      QueryResultIterator<Entity> iterator = iterator(query, metadata == null,
+          ofy, position, size);
+      List<Object> batch = new ArrayList<Object>(size);
+      int rows = 0;
+      while (iterator.hasNext()) {
+        Entity entity = iterator.next();
+        rows++;
+        if (metadata == null) {
+          batch.add(entity.getKey());
+        } else {
+          T object = metadata.toObject(entity, ofy);
+          if (mutator.mutate(object)) {
+            batch.add(object);
+          }
+        }
+      }
+      position = RawQuery.cursorOf(iterator);
+      more = rows == size;
+      if (rows == 0) {
+        break;
+      }
+      scanned += rows;
+      written += batch.size();
+      pending.add(new Pending(write(ofy, batch, metadata == null), scanned,
+          written, position));
+      while (pending.size() >= this.inFlight) {
+        BulkResult progress = complete(pending.removeFirst());
+        stopped |= this.progress != null && !this.progress.written(progress);
+      }
+      stopped |= System.currentTimeMillis() >= deadline;
+    }
+    while (!pending.isEmpty()) {
+      BulkResult progress = complete(pending.removeFirst());
+      if (this.progress != null) {
+        this.progress.written(progress);
+      }
+    }
+
+    // every batch read was written, so the last batch's cursor is the result's
+    boolean done = !more
+        || !iterator(query, metadata == null, ofy, position, 1).hasNext();
+    return new BulkResult(scanned, written, position, done, this.dryRun);
+  }
+
+  private static QueryResultIterator<Entity> iterator(RawQuery query,
+      boolean keysOnly, Objectify ofy, String cursor, int size) {
+    FetchOptions options = FetchOptions.Builder.withLimit(size).chunkSize(size).prefetchSize(
+        size);
+    if (cursor != null) {
+      options.startCursor(Cursor.fromWebSafeString(cursor));
+    }
+    return keysOnly ? query.keysIterator(ofy.getDatastore(), options)
+        : query.iterator(ofy.getDatastore(), options);
+  }
+
+  /** @return the write of <code>batch</code>, or <code>null</code> if none. */
+  private Result<?> write(Objectify ofy, List<Object> batch, boolean delete) {
+    if (this.dryRun || batch.isEmpty()) {
+      return null;
+    }
+    return delete ? ofy.async().delete(batch) : ofy.async().put(batch);
+  }
+
+  private BulkResult complete(Pending pending) {
+    if (pending.write != null) {
+      // a failed write throws, the last progress is where to resume
+      pending.write.get();
+    }
+    return new BulkResult(pending.scanned, pending.written, pending.cursor,
+        false, this.dryRun);
+  }
+}
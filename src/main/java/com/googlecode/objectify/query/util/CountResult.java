@@ -0,0 +1,46 @@
+package com.googlecode.objectify.query.util;
+
+import java.io.Serializable;
+
+/**
+ * The result of counting a generated query, possibly only part of it.
+ * <p/>
+ * A partial count stopped at its limit or timeout.  Counting again from
+ * <code>getCursor()</code> continues where it stopped, so the counts of
+ * several requests add up to the total.
+ */
+public class CountResult implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private final int count;
+  private final String cursor;
+  private final boolean done;
+
+  public CountResult(int count, String cursor, boolean done) {
+    this.count = count;
+    this.cursor = cursor;
+    this.done = done;
+  }
+
+  /** @return the number of rows counted by this call. */
+  public int getCount() {
+    return this.count;
+  }
+
+  /** @return the cursor after the last counted row. */
+  public String getCursor() {
+    return this.cursor;
+  }
+
+  /** @return <code>true</code> if the query has no rows after the cursor. */
+  public boolean isDone() {
+    return this.done;
+  }
+
+  @Override
+  public String toString() {
+    return "CountResult[" + this.count + "," + this.cursor + "," + this.done
+        + "]";
+  }
+}
@@ -0,0 +1,91 @@
+package com.googlecode.objectify.query.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The number of rows per value of a property, accumulated by an
+ * <code>Aggregation</code>.  Each value has a mutable counter, so counting a
+ * row does not box a count.  Rows without a value are counted under
+ * <code>null</code>.
+ *
+ * @param <V> the value type
+ */
+public class Counts<V> {
+
+  private static class Counter {
+    long count;
+  }
+
+  private final HashMap<V, Counter> counters = new HashMap<V, Counter>();
+  private long total;
+
+  public void add(V value) {
+    add(value, 1);
+  }
+
+  public void add(V value, long count) {
+    Counter counter = this.counters.get(value);
+    if (counter == null) {
+      counter = new Counter();
+      this.counters.put(value, counter);
+    }
+    counter.count += count;
+    this.total += count;
+  }
+
+  /** Adds the counts of <code>other</code>. */
+  public void combine(Counts<V> other) {
+    for (Map.Entry<V, Counter> entry : other.counters.entrySet()) {
+      add(entry.getKey(), entry.getValue().count);
+    }
+  }
+
+  /** @return the number of rows with <code>value</code>. */
+  public long get(V value) {
+    Counter counter = this.counters.get(value);
+    return counter == null ? 0 : counter.count;
+  }
+
+  /** @return the number of rows counted. */
+  public long getTotal() {
+    return this.total;
+  }
+
+  public Set<V> values() {
+    return Collections.unmodifiableSet(this.counters.keySet());
+  }
+
+  /** @return the number of distinct values. */
+  public int size() {
+    return this.counters.size();
+  }
+
+  /** @return the counts by value, the most frequent value first. */
+  public Map<V, Long> asMap() {
+    List<Map.Entry<V, Counter>> entries = new ArrayList<Map.Entry<V, Counter>>(
+        this.counters.entrySet());
+    Collections.sort(entries, new Comparator<Map.Entry<V, Counter>>() {
+      public int compare(Map.Entry<V, Counter> a, Map.Entry<V, Counter> b) {
+        return a.getValue().count < b.getValue().count ? 1
+            : a.getValue().count > b.getValue().count ? -1 : 0;
+      }
+    });
+    Map<V, Long> map = new LinkedHashMap<V, Long>();
+    for (Map.Entry<V, Counter> entry : entries) {
+      map.put(entry.getKey(), entry.getValue().count);
+    }
+    return map;
+  }
+
+  @Override
+  public String toString() {
+    return asMap().toString();
+  }
+}
@@ -0,0 +1,62 @@
+package com.googlecode.objectify.query.util;
+
+/**
+ * The count, sum, minimum and maximum of the floating point values of a
+ * property, accumulated in primitives by an <code>Aggregation</code>.
+ */
+public class DoubleStats {
+
+  private long count;
+  private double sum;
+  private double min = Double.POSITIVE_INFINITY;
+  private double max = Double.NEGATIVE_INFINITY;
+
+  public void add(double value) {
+    this.count++;
+    this.sum += value;
+    if (value < this.min) {
+      this.min = value;
+    }
+    if (value > this.max) {
+      this.max = value;
+    }
+  }
+
+  /** Adds the values accumulated by <code>other</code>. */
+  public void combine(DoubleStats other) {
+    this.count += other.count;
+    this.sum += other.sum;
+    this.min = Math.min(this.min, other.min);
+    this.max = Math.max(this.max, other.max);
+  }
+
+  /** @return the number of values, rows without a value are not counted. */
+  public long getCount() {
+    return this.count;
+  }
+
+  public double getSum() {
+    return this.sum;
+  }
+
+  /** @return the smallest value, positive infinity without values. */
+  public double getMin() {
+    return this.min;
+  }
+
+  /** @return the largest value, negative infinity without values. */
+  public double getMax() {
+    return this.max;
+  }
+
+  /** @return the mean value, <code>NaN</code> without values. */
+  public double getAverage() {
+    return this.count == 0 ? Double.NaN : this.sum / this.count;
+  }
+
+  @Override
+  public String toString() {
+    return "count=" + this.count + ", sum=" + this.sum + ", min=" + this.min
+        + ", max=" + this.max;
+  }
+}
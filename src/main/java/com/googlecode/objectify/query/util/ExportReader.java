@@ -0,0 +1,230 @@
+package com.googlecode.objectify.query.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityTranslator;
+import com.google.appengine.api.datastore.Key;
+import com.google.storage.onestore.v3.OnestoreEntity.EntityProto;
+
+/**
+ * Reads the raw entities of an export written by <code>ExportWriter</code>,
+ * and puts them back into the datastore with <code>importTo</code>.
+ * <p/>
+ * A record cut short by an interrupted export ends the entities like the
+ * end of a complete one; <code>isComplete</code> tells them apart.
+ */
+public class ExportReader {
+
+  private final ReadableByteChannel channel;
+  /** the bytes read from the channel and not consumed yet, in read mode */
+  private ByteBuffer buffer;
+  private long position;
+
+  private final String kind;
+  private String cursor;
+  private long rows;
+  private long checkpointRows;
+  private long checkpointPosition;
+  private boolean complete;
+
+  public ExportReader(ReadableByteChannel channel) throws IOException {
+    this(channel, ExportWriter.DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * @throws IOException if the channel does not start with an export
+   *   header.
+   */
+  public ExportReader(ReadableByteChannel channel, int bufferSize)
+      throws IOException {
+    this.channel = channel;
+    this.buffer = ByteBuffer.allocate(Math.max(bufferSize, 1024));
+    this.buffer.flip();
+    if (!fill(8) || this.buffer.getInt(this.buffer.position()) != ExportWriter.MAGIC) {
+      throw new IOException("Not an objectify-query export");
+    }
+    int length = this.buffer.getInt(this.buffer.position() + 4);
+    if (!fill(8 + length)) {
+      throw new IOException("Truncated export header");
+    }
+    consume(4);
+    this.kind = getString();
+    this.checkpointPosition = this.position;
+  }
+
+  /**
+   * @return the next entity, or <code>null</code> after the last one.
+   *   Checkpoints are read on the way.
+   */
+  public Entity next() throws IOException {
+    while (!this.complete && fill(1)) {
+      byte type = this.buffer.get(this.buffer.position());
+      if (type == ExportWriter.END) {
+        consume(1);
+        this.complete = true;
+        return null;
+      }
+      if (type != ExportWriter.ENTITY && type != ExportWriter.CHECKPOINT) {
+        throw new IOException("Unknown record type " + type + " at "
+            + this.position);
+      }
+      if (!fill(5)) {
+        return null;
+      }
+      int length = this.buffer.getInt(this.buffer.position() + 1);
+      if (type == ExportWriter.ENTITY) {
+        if (!fill(5 + length)) {
+          return null;
+        }
+        consume(5);
+        EntityProto proto = new EntityProto();
+        proto.parseFrom(this.buffer.array(), this.buffer.arrayOffset()
+            + this.buffer.position(), length);
+        consume(length);
+        this.rows++;
+        return EntityTranslator.createFromPb(proto);
+      }
+      if (!fill(13 + length)) {
+        return null;
+      }
+      consume(1);
+      this.cursor = getString();
+      this.checkpointRows = this.buffer.getLong();
+      this.position += 8;
+      this.checkpointPosition = this.position;
+    }
+    return null;
+  }
+
+  /**
+   * Puts the remaining entities in batches of <code>batchSize</code>,
+   * reading the next batch while the previous put is in flight.  Puts
+   * overwrite, so an interrupted import can be run again from the start.
+   *
+   * @return the number of entities put.
+   */
+  public long importTo(AsyncDatastoreService datastore, int batchSize)
+      throws IOException {
+    long count = 0;
+    Future<List<Key>> pending = null;
+    ArrayList<Entity> batch = new ArrayList<Entity>(batchSize);
+    for (Entity entity = next(); entity != null; entity = next()) {
+      batch.add(entity);
+      if (batch.size() == batchSize) {
+        complete(pending);
+        pending = datastore.put(batch);
+        count += batch.size();
+        batch = new ArrayList<Entity>(batchSize);
+      }
+    }
+    if (!batch.isEmpty()) {
+      complete(pending);
+      pending = datastore.put(batch);
+      count += batch.size();
+    }
+    complete(pending);
+    return count;
+  }
+
+  public String getKind() {
+    return this.kind;
+  }
+
+  /** @return the cursor of the last checkpoint read, or <code>null</code>. */
+  public String getCursor() {
+    return this.cursor;
+  }
+
+  /** @return the number of entities returned by <code>next</code>. */
+  public long getRows() {
+    return this.rows;
+  }
+
+  /** @return the number of entities before the last checkpoint read. */
+  public long getCheckpointRows() {
+    return this.checkpointRows;
+  }
+
+  /** @return the byte offset after the last checkpoint read, or the header. */
+  public long getCheckpointPosition() {
+    return this.checkpointPosition;
+  }
+
+  /** @return whether the end record was read. */
+  public boolean isComplete() {
+    return this.complete;
+  }
+
+  private String getString() {
+    int length = this.buffer.getInt();
+    String string;
+    try {
+      string = new String(this.buffer.array(), this.buffer.arrayOffset()
+          + this.buffer.position(), length, "UTF-8");
+    } catch (java.io.UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+    this.buffer.position(this.buffer.position() + length);
+    this.position += 4 + length;
+    return string;
+  }
+
+  private void consume(int size) {
+    this.buffer.position(this.buffer.position() + size);
+    this.position += size;
+  }
+
+  /**
+   * Reads from the channel until <code>size</code> bytes are buffered.
+   *
+   * @return <code>false</code> if the channel ended first.
+   */
+  private boolean fill(int size) throws IOException {
+    if (this.buffer.remaining() >= size) {
+      return true;
+    }
+    if (size > this.buffer.capacity()) {
+      ByteBuffer grown = ByteBuffer.allocate(Math.max(size,
+          this.buffer.capacity() * 2));
+      grown.put(this.buffer);
+      this.buffer = grown;
+    } else {
+      this.buffer.compact();
+    }
+    try {
+      while (this.buffer.position() < size) {
+        if (this.channel.read(this.buffer) < 0) {
+          return false;
+        }
+      }
+      return true;
+    } finally {
+      this.buffer.flip();
+    }
+  }
+
+  private static void complete(Future<List<Key>> put) {
+    if (put == null) {
+      return;
+    }
+    try {
+      put.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+}
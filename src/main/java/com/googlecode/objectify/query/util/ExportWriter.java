@@ -0,0 +1,168 @@
+package com.googlecode.objectify.query.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityTranslator;
+
+/**
+ * Writes raw entities to a channel in the export format read by
+ * <code>ExportReader</code>, see <code>exportTo</code> on the generated
+ * query.
+ * <p/>
+ * The format is a header holding the kind, followed by records that each
+ * start with a type byte: an entity is the length and the bytes of its
+ * protocol buffer, a checkpoint is the length and the bytes of a cursor and
+ * the number of entities written before it, and the end record marks a
+ * complete export.  Lengths and counts are big-endian, strings UTF-8.
+ * <p/>
+ * Records are gathered in one buffer, which is written to the channel when
+ * it is full and at every checkpoint, so an interrupted export keeps every
+ * entity up to its last checkpoint, see <code>resume</code>.
+ */
+public class ExportWriter {
+
+  public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+  /** "OQX1" */
+  static final int MAGIC = 0x4f515831;
+  static final byte ENTITY = 'E';
+  static final byte CHECKPOINT = 'C';
+  static final byte END = 'Z';
+
+  private final WritableByteChannel channel;
+  private final ByteBuffer buffer;
+  private String cursor;
+  private long rows;
+  private boolean complete;
+
+  /** Starts a new export of <code>kind</code>. */
+  public ExportWriter(WritableByteChannel channel, String kind)
+      throws IOException {
+    this(channel, kind, DEFAULT_BUFFER_SIZE);
+  }
+
+  public ExportWriter(WritableByteChannel channel, String kind, int bufferSize)
+      throws IOException {
+    this(channel, bufferSize);
+    this.buffer.putInt(MAGIC);
+    putString(kind);
+  }
+
+  private ExportWriter(WritableByteChannel channel, int bufferSize) {
+    this.channel = channel;
+    this.buffer = ByteBuffer.allocate(Math.max(bufferSize, 1024));
+  }
+
+  /**
+   * Continues the export of <code>kind</code> in <code>file</code>.  An
+   * empty file gets a new export; an interrupted export is cut after its
+   * last checkpoint, and continues from its cursor; a complete export is
+   * left as it is.
+   *
+   * @throws IllegalArgumentException if the file holds an export of another
+   *   kind.
+   */
+  public static ExportWriter resume(FileChannel file, String kind)
+      throws IOException {
+    if (file.size() == 0) {
+      return new ExportWriter(file, kind);
+    }
+    file.position(0);
+    ExportReader reader = new ExportReader(file);
+    if (!reader.getKind().equals(kind)) {
+      throw new IllegalArgumentException("File holds an export of '"
+          + reader.getKind() + "', not '" + kind + "'");
+    }
+    while (reader.next() != null) {
+      // up to the last complete record
+    }
+    ExportWriter writer = new ExportWriter(file, DEFAULT_BUFFER_SIZE);
+    writer.cursor = reader.getCursor();
+    writer.complete = reader.isComplete();
+    if (writer.complete) {
+      // the rows after the last checkpoint are part of the export too
+      writer.rows = reader.getRows();
+    } else {
+      writer.rows = reader.getCheckpointRows();
+      file.truncate(reader.getCheckpointPosition());
+      file.position(reader.getCheckpointPosition());
+    }
+    return writer;
+  }
+
+  public void write(Entity entity) throws IOException {
+    byte[] bytes = EntityTranslator.convertToPb(entity).toByteArray();
+    ensure(5);
+    this.buffer.put(ENTITY).putInt(bytes.length);
+    if (bytes.length > this.buffer.remaining()) {
+      flush();
+      write(ByteBuffer.wrap(bytes));
+    } else {
+      this.buffer.put(bytes);
+    }
+    this.rows++;
+  }
+
+  /**
+   * Records that the export continues from <code>cursor</code> after the
+   * entities written so far, and writes them to the channel.
+   */
+  public void checkpoint(String cursor) throws IOException {
+    byte[] bytes = cursor.getBytes("UTF-8");
+    ensure(13 + bytes.length);
+    this.buffer.put(CHECKPOINT).putInt(bytes.length).put(bytes).putLong(
+        this.rows);
+    flush();
+    this.cursor = cursor;
+  }
+
+  /** Marks the export complete and writes what is buffered. */
+  public void finish() throws IOException {
+    ensure(1);
+    this.buffer.put(END);
+    flush();
+    this.complete = true;
+  }
+
+  public void flush() throws IOException {
+    this.buffer.flip();
+    write(this.buffer);
+    this.buffer.clear();
+  }
+
+  /** @return the cursor of the last checkpoint, <code>null</code> before it. */
+  public String getCursor() {
+    return this.cursor;
+  }
+
+  /** @return the number of entities written, including resumed ones. */
+  public long getRows() {
+    return this.rows;
+  }
+
+  public boolean isComplete() {
+    return this.complete;
+  }
+
+  private void putString(String string) throws IOException {
+    byte[] bytes = string.getBytes("UTF-8");
+    ensure(4 + bytes.length);
+    this.buffer.putInt(bytes.length).put(bytes);
+  }
+
+  private void ensure(int size) throws IOException {
+    if (this.buffer.remaining() < size) {
+      flush();
+    }
+  }
+
+  private void write(ByteBuffer bytes) throws IOException {
+    while (bytes.hasRemaining()) {
+      this.channel.write(bytes);
+    }
+  }
+}
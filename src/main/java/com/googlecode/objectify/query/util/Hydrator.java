@@ -0,0 +1,193 @@
+package com.googlecode.objectify.query.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.googlecode.objectify.AsyncObjectify;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Result;
+import com.googlecode.objectify.query.cache.NearCache;
+import com.googlecode.objectify.query.shared.KeyPage;
+import com.googlecode.objectify.query.shared.ListPage;
+
+/**
+ * Loads the entities related to the rows of a query page.
+ * <p/>
+ * Keys are added while the source query is still being iterated. Every
+ * <code>batchSize</code> distinct keys an asynchronous batch get is started,
+ * so the related entities are fetched while the scan continues.
+ * <p/>
+ * <code>list</code> returns the related entities in the same order as the
+ * keys were added.  Without <code>distinct</code> it returns one slot per
+ * added key, <code>null</code> where the key was <code>null</code> or its
+ * entity does not exist, so the slots line up with the source rows.
+ * <p/>
+ * With a <code>NearCache</code>, keys of cached types are looked up there
+ * first and only the misses are batched; the entities loaded are stored back
+ * in the cache.
+ *
+ * @param <T> the related entity type
+ */
+public class Hydrator<T> {
+
+  public static final int DEFAULT_BATCH_SIZE = 100;
+
+  private final AsyncObjectify ofy;
+  private final int batchSize;
+  private final NearCache cache;
+
+  private final Map<Key<T>, T> cached = new HashMap<Key<T>, T>();
+  private final ArrayList<Key<? extends T>> keys = new ArrayList<Key<? extends T>>();
+  private final Set<Key<? extends T>> requested = new HashSet<Key<? extends T>>();
+  private final ArrayList<Result<Map<Key<T>, T>>> results = new ArrayList<Result<Map<Key<T>, T>>>();
+  private ArrayList<Key<? extends T>> batch = new ArrayList<Key<? extends T>>();
+  private int batches;
+  private int fetched;
+
+  public Hydrator(AsyncObjectify ofy) {
+    this(ofy, DEFAULT_BATCH_SIZE, null);
+  }
+
+  public Hydrator(AsyncObjectify ofy, int batchSize) {
+    this(ofy, batchSize, null);
+  }
+
+  /** @param cache the near cache to consult, or <code>null</code> */
+  public Hydrator(AsyncObjectify ofy, NearCache cache) {
+    this(ofy, DEFAULT_BATCH_SIZE, cache);
+  }
+
+  public Hydrator(AsyncObjectify ofy, int batchSize, NearCache cache) {
+    assert batchSize > 0;
+    this.ofy = ofy;
+    this.batchSize = batchSize;
+    this.cache = cache;
+  }
+
+  /**
+   * @return a continuation that starts the batch gets of the entities of a
+   *   page of keys, and completes with the page of those entities.
+   */
+  public static <T> PageFuture.Continuation<ListPage<Key<T>>, ListPage<T>> loader(
+      final AsyncObjectify ofy, final NearCache cache, final boolean distinct) {
+    return new PageFuture.Continuation<ListPage<Key<T>>, ListPage<T>>() {
+      public PageFuture<ListPage<T>> apply(final ListPage<Key<T>> keys) {
+        final Hydrator<T> hydrator = new Hydrator<T>(ofy, cache);
+        for (Key<T> key : keys) {
+          hydrator.add(key);
+        }
+        hydrator.flush();
+        return PageFuture.of(new PageFuture.Source<ListPage<T>>() {
+          public ListPage<T> read() {
+            return new ListPage<T>(hydrator.list(distinct), keys.getCursor(),
+                keys.more());
+          }
+        });
+      }
+    };
+  }
+
+  /**
+   * Adds the key of the next related entity, <code>null</code> if the row has
+   * none.  The keys of a <code>Hydrator&lt;Object&gt;</code> may be of
+   * different kinds, they are still loaded by the same batch gets.
+   */
+  @SuppressWarnings("unchecked")
+  public void add(Key<? extends T> key) {
+    this.keys.add(key);
+    if (key != null && this.requested.add(key)) {
+      T entity = this.cache == null ? null : this.cache.<T> get(key);
+      if (entity != null) {
+        this.cached.put((Key<T>) key, entity);
+        return;
+      }
+      this.batch.add(key);
+      if (this.batch.size() >= this.batchSize) {
+        flush();
+      }
+    }
+  }
+
+  /**
+   * Waits for the outstanding batch gets to complete.
+   *
+   * @param distinct
+   *   <code>true</code> to return each related entity only once, at the
+   *   position it was first added, skipping the missing ones.<br/>
+   *   <code>false</code> to return one slot per added key, <code>null</code>
+   *   if there is no entity.
+   */
+  public ArrayList<T> list(boolean distinct) {
+    Map<Key<T>, T> found = map();
+
+    if (!distinct) {
+      ArrayList<T> list = new ArrayList<T>(this.keys.size());
+      for (Key<? extends T> key : this.keys) {
+        list.add(key == null ? null : found.get(key));
+      }
+      return list;
+    }
+    Set<Key<? extends T>> seen = new HashSet<Key<? extends T>>();
+    ArrayList<T> list = new ArrayList<T>(this.requested.size());
+    for (Key<? extends T> key : this.keys) {
+      T entity = key == null ? null : found.get(key);
+      if (entity != null && seen.add(key)) {
+        list.add(entity);
+      }
+    }
+    return list;
+  }
+
+  /**
+   * Waits for the outstanding batch gets to complete.
+   *
+   * @return the entities found, by key.
+   */
+  public Map<Key<T>, T> map() {
+    flush();
+
+    Map<Key<T>, T> found = new HashMap<Key<T>, T>(this.requested.size() * 2);
+    found.putAll(this.cached);
+    for (Result<Map<Key<T>, T>> result : this.results) {
+      Map<Key<T>, T> loaded = result.get();
+      found.putAll(loaded);
+      if (this.cache != null) {
+        for (Map.Entry<Key<T>, T> entry : loaded.entrySet()) {
+          this.cache.put(entry.getKey(), entry.getValue());
+        }
+      }
+    }
+    return found;
+  }
+
+  /** @return the number of distinct keys requested so far. */
+  public int getRequestedCount() {
+    return this.requested.size();
+  }
+
+  /** @return the number of keys loaded by batch gets so far. */
+  public int getFetchedCount() {
+    return this.fetched;
+  }
+
+  /** @return the number of batch gets started so far. */
+  public int getBatchCount() {
+    return this.batches;
+  }
+
+  /**
+   * Starts the batch get of the keys added since the last one, without
+   * waiting for it.
+   */
+  public void flush() {
+    if (!this.batch.isEmpty()) {
+      this.batches++;
+      this.fetched += this.batch.size();
+      this.results.add(this.ofy.<T> get(this.batch));
+      this.batch = new ArrayList<Key<? extends T>>();
+    }
+  }
+}
@@ -0,0 +1,442 @@
+package com.googlecode.objectify.query.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityTranslator;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.datastore.Query.SortPredicate;
+import com.google.storage.onestore.v3.OnestoreEntity.EntityProto;
+import com.googlecode.objectify.EntityMetadata;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.ObjectifyFactory;
+import com.googlecode.objectify.query.shared.KeyPage;
+import com.googlecode.objectify.query.shared.ListPage;
+import com.googlecode.objectify.query.shared.PackedEncoding;
+
+/**
+ * Every raw entity of a kind held in memory, with a hash index on each
+ * indexed property, answering the pages and counts of a
+ * <code>RawQuery</code> the way the datastore would, see
+ * <code>SnapshotStore</code>.
+ * <p/>
+ * Equality and <code>IN</code> filters on the key or an indexed property
+ * select their rows from an index, the most selective one first; the other
+ * filters and the ancestor are checked on those rows, or on every row if
+ * there is no such filter.  Rows come in the sort order of the query, ties
+ * and unsorted queries in key order, and like in the datastore a filter or
+ * sort order on a property skips the entities without it.  The selected
+ * rows of up to <code>MAX_SELECTIONS</code> query shapes are kept.
+ * <p/>
+ * A snapshot cursor holds the key and sort values of the last row of a page,
+ * so it continues after that position in a later snapshot as well.  Snapshot
+ * cursors start with <code>CURSOR_PREFIX</code>, which no datastore cursor
+ * starts with.
+ * <p/>
+ * A snapshot is immutable and may be shared between threads.  Every page
+ * translates its entities into new objects.
+ */
+public class IndexedSnapshot {
+
+  public static final String CURSOR_PREFIX = "~";
+
+  /** query shapes whose selected rows are kept */
+  static final int MAX_SELECTIONS = 256;
+
+  /** The rows selected by one query shape, in its order. */
+  private static class Selection {
+    final int[] rows;
+    final List<SortPredicate> sorts;
+
+    Selection(int[] rows, List<SortPredicate> sorts) {
+      this.rows = rows;
+      this.sorts = sorts;
+    }
+  }
+
+  private final ObjectifyFactory factory;
+  private final long loadedAt;
+  /** in key order */
+  private final Entity[] rows;
+  private final HashMap<com.google.appengine.api.datastore.Key, Integer> keys;
+  /** rows by normalized value, by property */
+  private final HashMap<String, HashMap<Object, int[]>> indexes = new HashMap<String, HashMap<Object, int[]>>();
+  private final ConcurrentHashMap<String, Selection> selections = new ConcurrentHashMap<String, Selection>();
+
+  /**
+   * @param loadedAt
+   *   when the entities started to be read, in milliseconds.
+   */
+  public IndexedSnapshot(ObjectifyFactory factory, List<Entity> entities,
+      Collection<String> indexedProperties, long loadedAt) {
+    this.factory = factory;
+    this.loadedAt = loadedAt;
+    this.rows = entities.toArray(new Entity[entities.size()]);
+    Arrays.sort(this.rows, new Comparator<Entity>() {
+      public int compare(Entity a, Entity b) {
+        return a.getKey().compareTo(b.getKey());
+      }
+    });
+    this.keys = new HashMap<com.google.appengine.api.datastore.Key, Integer>(
+        this.rows.length * 2);
+    for (int i = 0; i < this.rows.length; i++) {
+      this.keys.put(this.rows[i].getKey(), i);
+    }
+    for (String property : indexedProperties) {
+      this.indexes.put(property, index(property));
+    }
+  }
+
+  /** @return the number of entities. */
+  public int size() {
+    return this.rows.length;
+  }
+
+  /** @return when the entities started to be read, in milliseconds. */
+  public long getLoadedAt() {
+    return this.loadedAt;
+  }
+
+  /** @return whether <code>cursor</code> is <code>null</code> or a snapshot cursor. */
+  public static boolean isCursor(String cursor) {
+    return cursor == null || cursor.startsWith(CURSOR_PREFIX);
+  }
+
+  public <T> ListPage<T> list(RawQuery query, Objectify ofy,
+      Class<T> entityClass, String cursor, int pageSize) {
+    Selection selection = select(query);
+    int start = start(selection, cursor);
+    int end = end(selection, start, pageSize);
+
+    EntityMetadata<T> metadata = ofy.getFactory().getMetadata(entityClass);
+    ArrayList<T> list = new ArrayList<T>(end - start);
+    for (int i = start; i < end; i++) {
+      list.add(metadata.toObject(this.rows[selection.rows[i]], ofy));
+    }
+    return new ListPage<T>(list, cursor(selection, start, end, cursor),
+        end < selection.rows.length);
+  }
+
+  public <T> KeyPage<T> listKeys(RawQuery query, String cursor, int pageSize) {
+    Selection selection = select(query);
+    int start = start(selection, cursor);
+    int end = end(selection, start, pageSize);
+
+    KeyPage.Builder<T> keys = new KeyPage.Builder<T>(end - start);
+    for (int i = start; i < end; i++) {
+      RawQuery.addKey(this.factory, keys, this.rows[selection.rows[i]].getKey());
+    }
+    return keys.build(cursor(selection, start, end, cursor),
+        end < selection.rows.length);
+  }
+
+  /** Counts at most <code>limit</code> rows from <code>cursor</code>. */
+  public CountResult count(RawQuery query, String cursor, int limit) {
+    Selection selection = select(query);
+    int start = start(selection, cursor);
+    int end = end(selection, start, limit);
+    return new CountResult(end - start, cursor(selection, start, end, cursor),
+        end == selection.rows.length);
+  }
+
+  private Selection select(RawQuery query) {
+    String shape = query.shape();
+    Selection selection = this.selections.get(shape);
+    if (selection == null) {
+      selection = select(query.copy());
+      if (this.selections.size() < MAX_SELECTIONS) {
+        this.selections.putIfAbsent(shape, selection);
+      }
+    }
+    return selection;
+  }
+
+  private Selection select(Query query) {
+    int[] candidates = null;
+    for (FilterPredicate filter : query.getFilterPredicates()) {
+      int[] indexed = lookup(filter);
+      if (indexed != null
+          && (candidates == null || indexed.length < candidates.length)) {
+        candidates = indexed;
+      }
+    }
+
+    int count = candidates == null ? this.rows.length : candidates.length;
+    ArrayList<Integer> selected = new ArrayList<Integer>();
+    for (int i = 0; i < count; i++) {
+      int row = candidates == null ? i : candidates[i];
+      if (matches(this.rows[row], query)) {
+        selected.add(row);
+      }
+    }
+
+    final List<SortPredicate> sorts = sorts(query);
+    if (!sorts.isEmpty()) {
+      Collections.sort(selected, new Comparator<Integer>() {
+        public int compare(Integer a, Integer b) {
+          return MergedQuery.compare(sorts, IndexedSnapshot.this.rows[a],
+              IndexedSnapshot.this.rows[b]);
+        }
+      });
+    }
+    int[] rows = new int[selected.size()];
+    for (int i = 0; i < rows.length; i++) {
+      rows[i] = selected.get(i);
+    }
+    return new Selection(rows, sorts);
+  }
+
+  /**
+   * @return the sort orders of <code>query</code>; without any, an
+   *   inequality filter sorts by its property like in the datastore.
+   */
+  private static List<SortPredicate> sorts(Query query) {
+    if (!query.getSortPredicates().isEmpty()) {
+      return query.getSortPredicates();
+    }
+    for (FilterPredicate filter : query.getFilterPredicates()) {
+      FilterOperator operator = filter.getOperator();
+      if (operator != FilterOperator.EQUAL && operator != FilterOperator.IN
+          && !filter.getPropertyName().equals(Entity.KEY_RESERVED_PROPERTY)) {
+        return Collections.singletonList(new SortPredicate(
+            filter.getPropertyName(), SortDirection.ASCENDING));
+      }
+    }
+    return Collections.emptyList();
+  }
+
+  /**
+   * @return the rows an equality or <code>IN</code> filter selects, in key
+   *   order, or <code>null</code> if no index answers the filter.
+   */
+  private int[] lookup(FilterPredicate filter) {
+    String property = filter.getPropertyName();
+    boolean key = property.equals(Entity.KEY_RESERVED_PROPERTY);
+    HashMap<Object, int[]> index = this.indexes.get(property);
+    if (!key && index == null) {
+      return null;
+    }
+    Collection<?> values;
+    if (filter.getOperator() == FilterOperator.EQUAL) {
+      values = Collections.singletonList(filter.getValue());
+    } else if (filter.getOperator() == FilterOperator.IN) {
+      values = (Collection<?>) filter.getValue();
+    } else {
+      return null;
+    }
+
+    BitSet selected = new BitSet(this.rows.length);
+    for (Object value : values) {
+      if (key) {
+        Integer row = this.keys.get(value);
+        if (row != null) {
+          selected.set(row);
+        }
+        continue;
+      }
+      int[] rows = index.get(normalize(value));
+      if (rows != null) {
+        for (int row : rows) {
+          selected.set(row);
+        }
+      }
+    }
+    int[] rows = new int[selected.cardinality()];
+    for (int i = 0, row = selected.nextSetBit(0); row >= 0; row = selected.nextSetBit(row + 1)) {
+      rows[i++] = row;
+    }
+    return rows;
+  }
+
+  private HashMap<Object, int[]> index(String property) {
+    HashMap<Object, ArrayList<Integer>> rowsByValue = new HashMap<Object, ArrayList<Integer>>();
+    for (int i = 0; i < this.rows.length; i++) {
+      Entity entity = this.rows[i];
+      if (!entity.hasProperty(property) || entity.isUnindexedProperty(property)) {
+        continue;
+      }
+      for (Object value : values(entity.getProperty(property))) {
+        Object normalized = normalize(value);
+        ArrayList<Integer> rows = rowsByValue.get(normalized);
+        if (rows == null) {
+          rows = new ArrayList<Integer>(1);
+          rowsByValue.put(normalized, rows);
+        }
+        // a value repeated in a multi-valued property is one row
+        if (rows.isEmpty() || rows.get(rows.size() - 1) != i) {
+          rows.add(i);
+        }
+      }
+    }
+    HashMap<Object, int[]> index = new HashMap<Object, int[]>(rowsByValue.size() * 2);
+    for (Map.Entry<Object, ArrayList<Integer>> entry : rowsByValue.entrySet()) {
+      int[] rows = new int[entry.getValue().size()];
+      for (int i = 0; i < rows.length; i++) {
+        rows[i] = entry.getValue().get(i);
+      }
+      index.put(entry.getKey(), rows);
+    }
+    return index;
+  }
+
+  private static boolean matches(Entity entity, Query query) {
+    if (query.getAncestor() != null && !isDescendant(entity.getKey(), query.getAncestor())) {
+      return false;
+    }
+    for (FilterPredicate filter : query.getFilterPredicates()) {
+      if (!matches(entity, filter)) {
+        return false;
+      }
+    }
+    for (SortPredicate sort : query.getSortPredicates()) {
+      String property = sort.getPropertyName();
+      if (!property.equals(Entity.KEY_RESERVED_PROPERTY)
+          && (!entity.hasProperty(property) || entity.isUnindexedProperty(property))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** A multi-valued property matches if any of its values does. */
+  private static boolean matches(Entity entity, FilterPredicate filter) {
+    String property = filter.getPropertyName();
+    Object actual;
+    if (property.equals(Entity.KEY_RESERVED_PROPERTY)) {
+      actual = entity.getKey();
+    } else if (entity.hasProperty(property) && !entity.isUnindexedProperty(property)) {
+      actual = entity.getProperty(property);
+    } else {
+      return false;
+    }
+    for (Object value : values(actual)) {
+      if (matches(filter.getOperator(), value, filter.getValue())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean matches(FilterOperator operator, Object value,
+      Object expected) {
+    if (operator == FilterOperator.IN) {
+      for (Object each : (Collection<?>) expected) {
+        if (MergedQuery.compareValues(value, each) == 0) {
+          return true;
+        }
+      }
+      return false;
+    }
+    int result = MergedQuery.compareValues(value, expected);
+    switch (operator) {
+    case EQUAL:
+      return result == 0;
+    case NOT_EQUAL:
+      return result != 0;
+    case LESS_THAN:
+      return result < 0;
+    case LESS_THAN_OR_EQUAL:
+      return result <= 0;
+    case GREATER_THAN:
+      return result > 0;
+    case GREATER_THAN_OR_EQUAL:
+      return result >= 0;
+    default:
+      throw new IllegalArgumentException("Unknown operator '" + operator + "'");
+    }
+  }
+
+  /** An ancestor query includes the ancestor itself. */
+  private static boolean isDescendant(com.google.appengine.api.datastore.Key key,
+      com.google.appengine.api.datastore.Key ancestor) {
+    for (; key != null; key = key.getParent()) {
+      if (key.equals(ancestor)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static Collection<?> values(Object value) {
+    return value instanceof Collection<?> ? (Collection<?>) value
+        : Collections.singletonList(value);
+  }
+
+  /** the datastore stores every integer as a long and every float as a double */
+  private static Object normalize(Object value) {
+    if (value instanceof Integer || value instanceof Short
+        || value instanceof Byte) {
+      return ((Number) value).longValue();
+    } else if (value instanceof Float) {
+      return ((Float) value).doubleValue();
+    }
+    return value;
+  }
+
+  /** @return the index of the first row after <code>cursor</code>. */
+  private int start(Selection selection, String cursor) {
+    if (cursor == null || cursor.equals(CURSOR_PREFIX)) {
+      return 0;
+    }
+    Entity position = decode(cursor);
+    int low = 0;
+    int high = selection.rows.length;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (MergedQuery.compare(selection.sorts, this.rows[selection.rows[middle]],
+          position) <= 0) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  private static int end(Selection selection, int start, int limit) {
+    return (int) Math.min((long) start + limit, selection.rows.length);
+  }
+
+  /** @return the cursor after row <code>end - 1</code>, or the given one for an empty page. */
+  private String cursor(Selection selection, int start, int end, String cursor) {
+    if (end == start) {
+      return cursor == null ? CURSOR_PREFIX : cursor;
+    }
+    Entity row = this.rows[selection.rows[end - 1]];
+    Entity position = new Entity(row.getKey());
+    for (SortPredicate sort : selection.sorts) {
+      String property = sort.getPropertyName();
+      if (!property.equals(Entity.KEY_RESERVED_PROPERTY)) {
+        position.setUnindexedProperty(property, MergedQuery.sortValue(row,
+            property, sort.getDirection() == SortDirection.DESCENDING));
+      }
+    }
+    return CURSOR_PREFIX
+        + PackedEncoding.toBase64(EntityTranslator.convertToPb(position).toByteArray());
+  }
+
+  private static Entity decode(String cursor) {
+    byte[] bytes = PackedEncoding.fromBase64(cursor.substring(CURSOR_PREFIX.length()));
+    EntityProto proto = new EntityProto();
+    if (bytes == null || !proto.parseFrom(bytes)) {
+      throw new IllegalArgumentException("'" + cursor + "' is not a snapshot cursor");
+    }
+    try {
+      return EntityTranslator.createFromPb(proto);
+    } catch (RuntimeException e) {
+      throw new IllegalArgumentException("'" + cursor + "' is not a snapshot cursor", e);
+    }
+  }
+}
@@ -0,0 +1,62 @@
+package com.googlecode.objectify.query.util;
+
+/**
+ * The count, sum, minimum and maximum of the integer values of a property,
+ * accumulated in primitives by an <code>Aggregation</code>.
+ */
+public class LongStats {
+
+  private long count;
+  private long sum;
+  private long min = Long.MAX_VALUE;
+  private long max = Long.MIN_VALUE;
+
+  public void add(long value) {
+    this.count++;
+    this.sum += value;
+    if (value < this.min) {
+      this.min = value;
+    }
+    if (value > this.max) {
+      this.max = value;
+    }
+  }
+
+  /** Adds the values accumulated by <code>other</code>. */
+  public void combine(LongStats other) {
+    this.count += other.count;
+    this.sum += other.sum;
+    this.min = Math.min(this.min, other.min);
+    this.max = Math.max(this.max, other.max);
+  }
+
+  /** @return the number of values, rows without a value are not counted. */
+  public long getCount() {
+    return this.count;
+  }
+
+  public long getSum() {
+    return this.sum;
+  }
+
+  /** @return the smallest value, <code>Long.MAX_VALUE</code> without values. */
+  public long getMin() {
+    return this.min;
+  }
+
+  /** @return the largest value, <code>Long.MIN_VALUE</code> without values. */
+  public long getMax() {
+    return this.max;
+  }
+
+  /** @return the mean value, <code>NaN</code> without values. */
+  public double getAverage() {
+    return this.count == 0 ? Double.NaN : (double) this.sum / this.count;
+  }
+
+  @Override
+  public String toString() {
+    return "count=" + this.count + ", sum=" + this.sum + ", min=" + this.min
+        + ", max=" + this.max;
+  }
+}
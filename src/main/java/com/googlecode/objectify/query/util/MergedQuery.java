@@ -0,0 +1,219 @@
+package com.googlecode.objectify.query.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.datastore.Query.SortPredicate;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.googlecode.objectify.EntityMetadata;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.query.shared.KeyPage;
+import com.googlecode.objectify.query.shared.ListPage;
+
+/**
+ * Pages through the union of several sub-queries that only differ in some
+ * of their filters, as made by <code>RawQuery.fanOut()</code> from
+ * <code>IN</code> and <code>!=</code> filters.
+ * <p/>
+ * Every sub-query of a page is started through the async datastore before
+ * any result is read, so their first batches are fetched concurrently.  The
+ * results are merged in the sort order of the query, ties and unsorted
+ * queries in key order, and an entity matched by several sub-queries is
+ * returned once.
+ * <p/>
+ * The cursor of a merged page holds one cursor per sub-query.  It only
+ * resumes a query with the same <code>IN</code> and <code>!=</code> filters
+ * in the same order.
+ */
+public class MergedQuery {
+
+  private static final String SEPARATOR = ",";
+  private static final String DONE = "!";
+
+  private final List<Query> queries;
+  private final List<SortPredicate> sorts;
+
+  public MergedQuery(List<Query> queries, List<SortPredicate> sorts) {
+    this.queries = queries;
+    this.sorts = sorts;
+  }
+
+  public <T> ListPage<T> list(Objectify ofy, Class<T> entityClass,
+      String cursor, int pageSize) {
+    EntityMetadata<T> metadata = ofy.getFactory().getMetadata(entityClass);
+    ArrayList<Entity> entities = new ArrayList<Entity>();
+    String next = page(ofy.async().getAsyncDatastore(), cursor, pageSize,
+        false, entities);
+
+    ArrayList<T> list = new ArrayList<T>(entities.size());
+    for (Entity entity : entities) {
+      list.add(metadata.toObject(entity, ofy));
+    }
+    return new ListPage<T>(list, next, more(next));
+  }
+
+  public <T> KeyPage<T> listKeys(Objectify ofy, String cursor, int pageSize) {
+    // sorting on a property needs its values, keys-only results have none
+    ArrayList<Entity> entities = new ArrayList<Entity>();
+    String next = page(ofy.async().getAsyncDatastore(), cursor, pageSize,
+        this.sorts.isEmpty(), entities);
+
+    KeyPage.Builder<T> keys = new KeyPage.Builder<T>(entities.size());
+    for (Entity entity : entities) {
+      RawQuery.addKey(ofy.getFactory(), keys, entity.getKey());
+    }
+    return keys.build(next, more(next));
+  }
+
+  /**
+   * Reads up to <code>pageSize</code> merged results into
+   * <code>page</code>.
+   *
+   * @return the composite cursor after the last result of the page.
+   */
+  String page(AsyncDatastoreService datastore, String cursor, int pageSize,
+      boolean keysOnly, List<Entity> page) {
+    int count = this.queries.size();
+    String[] cursors = cursor == null || cursor.length() == 0
+        ? new String[count] : cursor.split(SEPARATOR, -1);
+    if (cursors.length != count) {
+      throw new IllegalArgumentException("Cursor is for " + cursors.length
+          + " sub-queries, not " + count);
+    }
+
+    // a single sub-query may provide the whole page plus the look-ahead row
+    int fetchSize = pageSize < Integer.MAX_VALUE ? pageSize + 1 : pageSize;
+    ArrayList<QueryResultIterator<Entity>> iterators = new ArrayList<QueryResultIterator<Entity>>(
+        count);
+    for (int i = 0; i < count; i++) {
+      if (DONE.equals(cursors[i])) {
+        iterators.add(null);
+        continue;
+      }
+      FetchOptions options = FetchOptions.Builder.withLimit(fetchSize).prefetchSize(
+          fetchSize).chunkSize(fetchSize);
+      if (cursors[i] != null && cursors[i].length() > 0) {
+        options.startCursor(Cursor.fromWebSafeString(cursors[i]));
+      }
+      Query query = this.queries.get(i);
+      if (keysOnly) {
+        query.setKeysOnly();
+      }
+      iterators.add(datastore.prepare(query).asQueryResultIterator(options));
+    }
+
+    Entity[] heads = new Entity[count];
+    String[] headCursors = new String[count];
+    for (int i = 0; i < count; i++) {
+      advance(iterators, i, heads, headCursors, cursors);
+    }
+
+    while (page.size() < pageSize) {
+      Entity first = null;
+      for (Entity head : heads) {
+        if (head != null && (first == null || compare(this.sorts, head, first) < 0)) {
+          first = head;
+        }
+      }
+      if (first == null) {
+        break;
+      }
+      page.add(first);
+      com.google.appengine.api.datastore.Key key = first.getKey();
+      for (int i = 0; i < count; i++) {
+        if (heads[i] != null && heads[i].getKey().equals(key)) {
+          cursors[i] = headCursors[i];
+          advance(iterators, i, heads, headCursors, cursors);
+        }
+      }
+    }
+
+    StringBuilder next = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      if (i > 0) {
+        next.append(SEPARATOR);
+      }
+      next.append(cursors[i] == null ? "" : cursors[i]);
+    }
+    return next.toString();
+  }
+
+  private static void advance(List<QueryResultIterator<Entity>> iterators,
+      int i, Entity[] heads, String[] headCursors, String[] cursors) {
+    QueryResultIterator<Entity> iterator = iterators.get(i);
+    if (iterator != null && iterator.hasNext()) {
+      heads[i] = iterator.next();
+      headCursors[i] = iterator.getCursor().toWebSafeString();
+    } else {
+      // a sub-query never reads more than its limit, so it is exhausted
+      heads[i] = null;
+      cursors[i] = DONE;
+    }
+  }
+
+  private static boolean more(String cursor) {
+    for (String each : cursor.split(SEPARATOR, -1)) {
+      if (!DONE.equals(each)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** the datastore's order: the sort orders, then the key */
+  static int compare(List<SortPredicate> sorts, Entity a, Entity b) {
+    for (SortPredicate sort : sorts) {
+      boolean descending = sort.getDirection() == SortDirection.DESCENDING;
+      int result = compareValues(sortValue(a, sort.getPropertyName(),
+          descending), sortValue(b, sort.getPropertyName(), descending));
+      if (result != 0) {
+        return descending ? -result : result;
+      }
+    }
+    return a.getKey().compareTo(b.getKey());
+  }
+
+  /**
+   * A multi-valued property sorts by its smallest value ascending and by its
+   * largest value descending.
+   */
+  static Object sortValue(Entity entity, String property,
+      boolean descending) {
+    if (property.equals(Entity.KEY_RESERVED_PROPERTY)) {
+      return entity.getKey();
+    }
+    Object value = entity.getProperty(property);
+    if (value instanceof Collection<?>) {
+      Object extreme = null;
+      for (Object each : (Collection<?>) value) {
+        int result = compareValues(each, extreme);
+        if (extreme == null || (descending ? result > 0 : result < 0)) {
+          extreme = each;
+        }
+      }
+      return extreme;
+    }
+    return value;
+  }
+
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  static int compareValues(Object a, Object b) {
+    if (a == null || b == null) {
+      return a == null ? (b == null ? 0 : -1) : 1;
+    } else if (a instanceof Number && b instanceof Number
+        && a.getClass() != b.getClass()) {
+      return Double.compare(((Number) a).doubleValue(),
+          ((Number) b).doubleValue());
+    } else if (a.getClass() == b.getClass() && a instanceof Comparable) {
+      return ((Comparable) a).compareTo(b);
+    }
+    return a.getClass().getName().compareTo(b.getClass().getName());
+  }
+}
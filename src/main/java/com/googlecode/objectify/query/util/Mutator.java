@@ -0,0 +1,18 @@
+package com.googlecode.objectify.query.util;
+
+/**
+ * Changes the entities of a bulk update, see <code>updateAll</code> on the
+ * generated query.
+ *
+ * @param <T> the entity type
+ */
+public interface Mutator<T> {
+
+  /**
+   * Changes <code>entity</code> in place.  Also called in a dry run, where
+   * the entity is not put.
+   *
+   * @return <code>true</code> if the entity changed and must be put.
+   */
+  boolean mutate(T entity);
+}
@@ -0,0 +1,165 @@
+package com.googlecode.objectify.query.util;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.CancellationException;
+
+/**
+ * A page of a generated query whose datastore calls are in flight, returned
+ * by the <code>...Async</code> methods of generated queries.
+ * <p/>
+ * No thread waits for the page: the query was started through the
+ * datastore's asynchronous API, and the results are read in stages on the
+ * caller's thread.  The first stage reads the scanned rows, a stage added
+ * with <code>then</code> usually starts a batch get and waits for it.
+ * <code>getAll</code> runs each stage of several futures before waiting on
+ * the next stage of any of them, so the batch gets of different queries
+ * overlap as well as their scans.
+ * <p/>
+ * A future is not thread-safe: read it on the thread that made it.  It is
+ * not a <code>java.util.concurrent.Future</code> either, since its stages
+ * block on datastore calls that have their own deadlines and could not
+ * honour a timeout.
+ *
+ * @param <P> the page type
+ */
+public abstract class PageFuture<P> {
+
+  /** The blocking part of a page. */
+  public interface Source<P> {
+    P read();
+  }
+
+  /** Continues from a finished page, e.g. by starting a batch get. */
+  public interface Continuation<P, R> {
+    PageFuture<R> apply(P page);
+  }
+
+  private P page;
+  private boolean done;
+  private boolean cancelled;
+
+  /** @return a future that reads the page from <code>source</code>. */
+  public static <P> PageFuture<P> of(final Source<P> source) {
+    return new PageFuture<P>() {
+      @Override
+      protected void advance() {
+        complete(source.read());
+      }
+    };
+  }
+
+  /** @return a future of a page that is already available. */
+  public static <P> PageFuture<P> done(P page) {
+    return of(new Constant<P>(page));
+  }
+
+  /**
+   * Runs one stage of every future, then the next stage of those not done,
+   * until all of them are done.
+   */
+  public static void getAll(Collection<? extends PageFuture<?>> futures) {
+    boolean pending = true;
+    while (pending) {
+      pending = false;
+      for (PageFuture<?> future : futures) {
+        if (!future.step()) {
+          pending = true;
+        }
+      }
+    }
+  }
+
+  public static void getAll(PageFuture<?>... futures) {
+    getAll(Arrays.asList(futures));
+  }
+
+  /**
+   * @return a future that applies <code>continuation</code> to this page
+   *   and completes with the page of the future it returns.
+   */
+  public <R> PageFuture<R> then(final Continuation<? super P, R> continuation) {
+    final PageFuture<P> upstream = this;
+    return new PageFuture<R>() {
+      private PageFuture<R> downstream;
+
+      @Override
+      protected void advance() {
+        if (this.downstream == null) {
+          // only one stage, so other futures start theirs before waiting
+          if (upstream.step()) {
+            this.downstream = continuation.apply(upstream.get());
+          }
+        } else if (this.downstream.step()) {
+          complete(this.downstream.get());
+        }
+      }
+    };
+  }
+
+  /**
+   * Runs the next stage of the page, calling <code>complete</code> when the
+   * page is available.
+   */
+  protected abstract void advance();
+
+  protected final void complete(P page) {
+    this.page = page;
+    this.done = true;
+  }
+
+  /**
+   * Runs the next stage unless the page is done.
+   *
+   * @return <code>true</code> if the page is done.
+   */
+  public final boolean step() {
+    if (!this.done && !this.cancelled) {
+      advance();
+    }
+    return isDone();
+  }
+
+  /** Waits for the remaining stages of the page. */
+  public final P get() {
+    while (!step()) {
+      // next stage
+    }
+    if (this.cancelled) {
+      throw new CancellationException();
+    }
+    return this.page;
+  }
+
+  /**
+   * Skips the remaining stages.  Datastore calls already in flight still
+   * complete.
+   */
+  public final boolean cancel(boolean mayInterruptIfRunning) {
+    if (this.done) {
+      return false;
+    }
+    this.cancelled = true;
+    return true;
+  }
+
+  public final boolean isCancelled() {
+    return this.cancelled;
+  }
+
+  public final boolean isDone() {
+    return this.done || this.cancelled;
+  }
+
+  private static class Constant<P> implements Source<P> {
+    private final P page;
+
+    Constant(P page) {
+      this.page = page;
+    }
+
+    public P read() {
+      return this.page;
+    }
+  }
+}
@@ -0,0 +1,141 @@
+package com.googlecode.objectify.query.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortPredicate;
+import com.googlecode.objectify.Query;
+
+/**
+ * The filters, sort orders and ancestor applied to a generated query, in
+ * the order they were applied, recorded by <code>RawQuery</code>.
+ * <p/>
+ * Every call is kept both as applied and as parsed by <code>RawQuery</code>,
+ * so replaying it onto a <code>RawQuery</code> does not parse the conditions
+ * again.
+ * <p/>
+ * A template cannot be modified, so it may be shared between threads and
+ * replayed onto any number of new queries.  Collection values are copied;
+ * every other value is shared, so only immutable values such as keys,
+ * strings and numbers should be used in queries that are compiled.
+ */
+public final class QueryTemplate {
+
+  private static final int FILTER = 0;
+  private static final int ORDER = 1;
+  private static final int ANCESTOR = 2;
+
+  /** One recorded call, as applied and as parsed. */
+  static final class Step {
+    final int type;
+    final String condition;
+    final Object value;
+    /** the parsed filter or sort order, or the raw ancestor key */
+    final Object parsed;
+    /** the parsed call as described in <code>RawQuery.shape()</code> */
+    final String term;
+
+    Step(int type, String condition, Object value, Object parsed, String term) {
+      this.type = type;
+      this.condition = condition;
+      this.value = value;
+      this.parsed = parsed;
+      this.term = term;
+    }
+
+    FilterPredicate filter() {
+      return this.type == FILTER ? (FilterPredicate) this.parsed : null;
+    }
+
+    SortPredicate sort() {
+      return this.type == ORDER ? (SortPredicate) this.parsed : null;
+    }
+
+    com.google.appengine.api.datastore.Key ancestor() {
+      return this.type == ANCESTOR
+          ? (com.google.appengine.api.datastore.Key) this.parsed : null;
+    }
+  }
+
+  private final Step[] steps;
+
+  QueryTemplate(List<Step> steps) {
+    this.steps = new Step[steps.size()];
+    for (int i = 0; i < this.steps.length; i++) {
+      Step step = steps.get(i);
+      Object value = step.value instanceof Collection<?>
+          ? Collections.unmodifiableList(new ArrayList<Object>(
+              (Collection<?>) step.value)) : step.value;
+      this.steps[i] = step.value == value ? step : new Step(step.type,
+          step.condition, value, step.parsed, step.term);
+    }
+  }
+
+  static Step filter(String condition, Object value, FilterPredicate parsed,
+      String term) {
+    return new Step(FILTER, condition, value, parsed, term);
+  }
+
+  static Step order(String condition, SortPredicate parsed, String term) {
+    return new Step(ORDER, condition, null, parsed, term);
+  }
+
+  static Step ancestor(Object key, com.google.appengine.api.datastore.Key parsed,
+      String term) {
+    return new Step(ANCESTOR, null, key, parsed, term);
+  }
+
+  /**
+   * Applies the parsed calls to <code>query</code>, which must have the kind
+   * and <code>@Id</code> field of the query the template was made from.
+   */
+  public RawQuery applyTo(RawQuery query) {
+    for (Step step : this.steps) {
+      query.apply(step);
+    }
+    return query;
+  }
+
+  /**
+   * Applies the recorded calls to <code>query</code>.  Objectify parses
+   * the conditions again.
+   */
+  public <Q extends Query<?>> Q applyTo(Q query) {
+    for (Step step : this.steps) {
+      switch (step.type) {
+      case FILTER:
+        query.filter(step.condition, step.value);
+        break;
+      case ORDER:
+        query.order(step.condition);
+        break;
+      default:
+        query.ancestor(step.value);
+      }
+    }
+    return query;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder string = new StringBuilder("QueryTemplate[");
+    for (int i = 0; i < this.steps.length; i++) {
+      Step step = this.steps[i];
+      if (i > 0) {
+        string.append(", ");
+      }
+      if (step.type == FILTER) {
+        string.append("filter ").append(step.condition).append(" ").append(
+            step.value);
+      } else if (step.type == ORDER) {
+        string.append("order ").append(step.condition);
+      } else {
+        string.append("ancestor ").append(step.value);
+      }
+    }
+    return string.append("]").toString();
+  }
+}
@@ -0,0 +1,610 @@
+package com.googlecode.objectify.query.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.appengine.api.NamespaceManager;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.datastore.Query.SortPredicate;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyFactory;
+import com.googlecode.objectify.query.shared.KeyPage;
+
+/**
+ * A low-level datastore query that mirrors the filters, sort orders and
+ * ancestor applied to a generated query.
+ * <p/>
+ * Running the mirror returns raw datastore <code>Entity</code> objects, so
+ * single properties can be read without Objectify translating every row into
+ * a POJO.  Conditions are interpreted the same way as Objectify's
+ * <code>Query</code>: <code>"property [operator]"</code> filters,
+ * <code>"[-]property"</code> sorts, and the <code>@Id</code> field maps to
+ * <code>__key__</code>.
+ * <p/>
+ * Only the calls made through the generated query are mirrored.  Objectify
+ * does not expose the state of a <code>Query</code>, so the generated query
+ * uses <code>isPristine</code> to tell whether it wraps a query with nothing
+ * applied yet, and only reads rows through the mirror if it does.
+ * <p/>
+ * The mirrored calls are also recorded as a normalized query shape, see
+ * <code>shape()</code>, and as a replayable <code>QueryTemplate</code>, see
+ * <code>template()</code>.
+ */
+public class RawQuery {
+
+  /** Keys fetched per datastore round trip when counting. */
+  public static final int COUNT_BATCH_SIZE = 1000;
+
+  /**
+   * Sub-queries a query with <code>IN</code> and <code>!=</code> filters may
+   * fan out to, the datastore's own limit.
+   */
+  public static final int MAX_FAN_OUT = 30;
+
+  /**
+   * the string of a query with nothing applied, by factory and class; a
+   * factory that is no longer used is dropped
+   */
+  private static final Map<ObjectifyFactory, ConcurrentHashMap<Class<?>, String>> PRISTINE = new WeakHashMap<ObjectifyFactory, ConcurrentHashMap<Class<?>, String>>();
+
+  private final ObjectifyFactory factory;
+  private final String kind;
+  private final String idFieldName;
+  private final com.google.appengine.api.datastore.Query actual;
+
+  private final String namespace;
+  private final ArrayList<String> filterConditions = new ArrayList<String>();
+  private final ArrayList<String> filterTerms = new ArrayList<String>();
+  private final ArrayList<String> orderTerms = new ArrayList<String>();
+  private String ancestorTerm;
+  private final ArrayList<QueryTemplate.Step> steps = new ArrayList<QueryTemplate.Step>();
+  private String shape;
+  private String pattern;
+
+  public RawQuery(ObjectifyFactory factory, Class<?> entityClass,
+      String idFieldName) {
+    this.factory = factory;
+    this.kind = factory.getKind(entityClass);
+    this.idFieldName = idFieldName;
+    this.actual = new com.google.appengine.api.datastore.Query(this.kind);
+    this.namespace = NamespaceManager.get();
+  }
+
+  /**
+   * @return <code>true</code> if <code>query</code> has no filter, sort
+   *   order, ancestor, limit, offset or cursor, compared through
+   *   <code>toString()</code>, which Objectify specifies to describe a query
+   *   uniquely.
+   */
+  public static boolean isPristine(ObjectifyFactory factory,
+      com.googlecode.objectify.Query<?> query, Class<?> entityClass) {
+    ConcurrentHashMap<Class<?>, String> byClass;
+    synchronized (PRISTINE) {
+      byClass = PRISTINE.get(factory);
+      if (byClass == null) {
+        byClass = new ConcurrentHashMap<Class<?>, String>();
+        PRISTINE.put(factory, byClass);
+      }
+    }
+    String pristine = byClass.get(entityClass);
+    if (pristine == null) {
+      pristine = factory.begin().query(entityClass).toString();
+      byClass.putIfAbsent(entityClass, pristine);
+    }
+    return pristine.equals(query.toString());
+  }
+
+  /**
+   * @throws IllegalArgumentException
+   *   if the condition is malformed, or if the query would fan out to more
+   *   than <code>MAX_FAN_OUT</code> sub-queries.
+   */
+  public void filter(String condition, Object value) {
+    String[] parts = condition.trim().split("\\s+");
+    if (parts.length < 1 || parts.length > 2) {
+      throw new IllegalArgumentException("'" + condition
+          + "' is not a legal filter condition");
+    }
+
+    String property = parts[0];
+    FilterOperator operator = parts.length == 2 ? translate(parts[1])
+        : FilterOperator.EQUAL;
+
+    Object filterable;
+    if (property.equals(this.idFieldName)) {
+      property = Entity.KEY_RESERVED_PROPERTY;
+      filterable = toRawKey(value);
+    } else {
+      filterable = makeFilterable(value);
+    }
+    int fanOut = fanOutSize() * fanOutSize(operator, filterable);
+    if (fanOut > MAX_FAN_OUT) {
+      throw new IllegalArgumentException("'" + condition + "' would split the"
+          + " query into " + fanOut + " sub-queries, at most " + MAX_FAN_OUT
+          + " are allowed");
+    }
+    apply(QueryTemplate.filter(condition, value, new FilterPredicate(property,
+        operator, filterable), property + " " + operator + " "
+        + describe(filterable)));
+  }
+
+  public void order(String condition) {
+    String property = condition.trim();
+    SortDirection direction = SortDirection.ASCENDING;
+    if (property.startsWith("-")) {
+      direction = SortDirection.DESCENDING;
+      property = property.substring(1).trim();
+    }
+    if (property.equals(this.idFieldName)) {
+      property = Entity.KEY_RESERVED_PROPERTY;
+    }
+    apply(QueryTemplate.order(condition, new SortPredicate(property,
+        direction), (direction == SortDirection.DESCENDING ? "-" : "+")
+        + property));
+  }
+
+  public void ancestor(Object keyOrEntity) {
+    com.google.appengine.api.datastore.Key ancestor = this.factory.getRawKey(keyOrEntity);
+    apply(QueryTemplate.ancestor(new Key<Object>(ancestor), ancestor,
+        describe(ancestor)));
+  }
+
+  /** Applies a parsed call, from this query or a template. */
+  void apply(QueryTemplate.Step step) {
+    FilterPredicate filter = step.filter();
+    SortPredicate sort = step.sort();
+    if (filter != null) {
+      this.actual.addFilter(filter.getPropertyName(), filter.getOperator(),
+          filter.getValue());
+      this.filterConditions.add(filter.getPropertyName() + " "
+          + filter.getOperator());
+      this.filterTerms.add(step.term);
+    } else if (sort != null) {
+      this.actual.addSort(sort.getPropertyName(), sort.getDirection());
+      this.orderTerms.add(step.term);
+    } else {
+      this.actual.setAncestor(step.ancestor());
+      this.ancestorTerm = step.term;
+    }
+    this.steps.add(step);
+    this.shape = null;
+    this.pattern = null;
+  }
+
+  public QueryResultIterator<Entity> iterator(DatastoreService datastore,
+      FetchOptions options) {
+    return datastore.prepare(this.actual).asQueryResultIterator(options);
+  }
+
+  /** @return an iterator over the keys of the rows, as keys-only entities. */
+  public QueryResultIterator<Entity> keysIterator(DatastoreService datastore,
+      FetchOptions options) {
+    com.google.appengine.api.datastore.Query keysOnly = copy();
+    keysOnly.setKeysOnly();
+    return datastore.prepare(keysOnly).asQueryResultIterator(options);
+  }
+
+  public String getKind() {
+    return this.kind;
+  }
+
+  /** @return the namespace that was current when the query was made. */
+  public String getNamespace() {
+    return this.namespace;
+  }
+
+  /** @return the calls mirrored so far, to replay onto new queries. */
+  public QueryTemplate template() {
+    return new QueryTemplate(this.steps);
+  }
+
+  /**
+   * @return a string that is equal for two queries exactly when they select
+   *   the same rows in the same order: the namespace, kind, ancestor, the
+   *   filters in a canonical order and the sort orders as applied.
+   */
+  public String shape() {
+    if (this.shape == null) {
+      this.shape = describe(this.filterTerms, this.ancestorTerm);
+    }
+    return this.shape;
+  }
+
+  /**
+   * @return the shape without the filter values and ancestor key, equal for
+   *   every execution of the same query code.
+   */
+  public String pattern() {
+    if (this.pattern == null) {
+      this.pattern = describe(this.filterConditions,
+          this.ancestorTerm == null ? null : "?");
+    }
+    return this.pattern;
+  }
+
+  private String describe(ArrayList<String> filterTerms, String ancestorTerm) {
+    ArrayList<String> filters = new ArrayList<String>(filterTerms);
+    Collections.sort(filters);
+
+    StringBuilder shape = new StringBuilder();
+    if (this.namespace != null && this.namespace.length() > 0) {
+      shape.append(this.namespace).append(':');
+    }
+    shape.append(this.kind);
+    if (ancestorTerm != null) {
+      shape.append(" ancestor ").append(ancestorTerm);
+    }
+    shape.append(" where ").append(filters);
+    shape.append(" order ").append(this.orderTerms);
+    return shape.toString();
+  }
+
+  /**
+   * @return a copy of this query restricted to the key range of
+   *   <code>shard</code>.
+   * @throws IllegalStateException
+   *   if the query has an inequality filter or sort order on a property other
+   *   than <code>__key__</code>, which the datastore cannot combine with a key
+   *   range, or an <code>IN</code> or <code>!=</code> filter, which runs as
+   *   several queries without a cursor to resume the shard from.
+   */
+  public com.google.appengine.api.datastore.Query shard(Shard shard,
+      boolean keysOnly) {
+    checkShardable();
+    com.google.appengine.api.datastore.Query copy = copy();
+    if (shard.getLower() != null) {
+      copy.addFilter(Entity.KEY_RESERVED_PROPERTY,
+          FilterOperator.GREATER_THAN_OR_EQUAL,
+          KeyFactory.stringToKey(shard.getLower()));
+    }
+    if (shard.getUpper() != null) {
+      copy.addFilter(Entity.KEY_RESERVED_PROPERTY, FilterOperator.LESS_THAN,
+          KeyFactory.stringToKey(shard.getUpper()));
+    }
+    if (keysOnly) {
+      copy.setKeysOnly();
+    }
+    return copy;
+  }
+
+  /**
+   * @throws IllegalStateException
+   *   if the query cannot be split by key range, see <code>shard</code>.
+   */
+  void checkShardable() {
+    for (FilterPredicate filter : this.actual.getFilterPredicates()) {
+      if (filter.getOperator() == FilterOperator.IN
+          || filter.getOperator() == FilterOperator.NOT_EQUAL) {
+        throw new IllegalStateException("Filter '"
+            + filter.getPropertyName() + " " + filter.getOperator()
+            + "' cannot be split by key range");
+      }
+      if (filter.getOperator() != FilterOperator.EQUAL
+          && !filter.getPropertyName().equals(Entity.KEY_RESERVED_PROPERTY)) {
+        throw new IllegalStateException("Inequality filter on '"
+            + filter.getPropertyName() + "' cannot be split by key range");
+      }
+    }
+    for (SortPredicate sort : this.actual.getSortPredicates()) {
+      if (!sort.getPropertyName().equals(Entity.KEY_RESERVED_PROPERTY)) {
+        throw new IllegalStateException("Sort order on '"
+            + sort.getPropertyName() + "' cannot be split by key range");
+      }
+    }
+  }
+
+  /**
+   * @return <code>true</code> if the query has an <code>IN</code> or
+   *   <code>!=</code> filter, which the datastore runs as several queries
+   *   without cursors.
+   */
+  public boolean isFanOut() {
+    for (FilterPredicate filter : this.actual.getFilterPredicates()) {
+      if (filter.getOperator() == FilterOperator.IN
+          || filter.getOperator() == FilterOperator.NOT_EQUAL) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @throws IllegalStateException
+   *   if the query has an <code>IN</code> or <code>!=</code> filter, so its
+   *   rows cannot be read from a cursor or return one.
+   */
+  public void requireCursors() {
+    if (isFanOut()) {
+      throw new IllegalStateException("Queries with IN or != filters have no"
+          + " cursors, only list and listKeys page through them");
+    }
+  }
+
+  /**
+   * @return the web-safe cursor after the last row read from
+   *   <code>iterator</code>.
+   * @throws IllegalStateException
+   *   if the iterator has no cursor, because its query has an
+   *   <code>IN</code> or <code>!=</code> filter.
+   */
+  public static String cursorOf(QueryResultIterator<?> iterator) {
+    Cursor cursor = iterator.getCursor();
+    if (cursor == null) {
+      throw new IllegalStateException("Queries with IN or != filters have no"
+          + " cursors, only list and listKeys page through them");
+    }
+    return cursor.toWebSafeString();
+  }
+
+  /**
+   * @return one sub-query for every combination of the values of the
+   *   <code>IN</code> filters and the two sides of the <code>!=</code>
+   *   filters, to be run concurrently and merged.
+   */
+  public MergedQuery fanOut() {
+    List<List<FilterPredicate>> combinations = new ArrayList<List<FilterPredicate>>();
+    combinations.add(new ArrayList<FilterPredicate>());
+    String inequality = null;
+    for (FilterPredicate filter : this.actual.getFilterPredicates()) {
+      List<FilterPredicate> alternatives;
+      if (filter.getOperator() == FilterOperator.IN) {
+        alternatives = new ArrayList<FilterPredicate>();
+        for (Object value : new LinkedHashSet<Object>(
+            (Collection<?>) filter.getValue())) {
+          alternatives.add(new FilterPredicate(filter.getPropertyName(),
+              FilterOperator.EQUAL, value));
+        }
+      } else if (filter.getOperator() == FilterOperator.NOT_EQUAL) {
+        alternatives = Arrays.asList(new FilterPredicate(
+            filter.getPropertyName(), FilterOperator.LESS_THAN,
+            filter.getValue()), new FilterPredicate(filter.getPropertyName(),
+            FilterOperator.GREATER_THAN, filter.getValue()));
+      } else {
+        alternatives = Collections.singletonList(filter);
+      }
+      if (filter.getOperator() != FilterOperator.EQUAL
+          && filter.getOperator() != FilterOperator.IN) {
+        inequality = filter.getPropertyName();
+      }
+      List<List<FilterPredicate>> expanded = new ArrayList<List<FilterPredicate>>();
+      for (List<FilterPredicate> combination : combinations) {
+        for (FilterPredicate alternative : alternatives) {
+          List<FilterPredicate> copy = new ArrayList<FilterPredicate>(
+              combination);
+          copy.add(alternative);
+          expanded.add(copy);
+        }
+      }
+      combinations = expanded;
+    }
+
+    // sub-queries with an inequality come back in the order of its
+    // property, so the merge needs that order too
+    List<SortPredicate> sorts = this.actual.getSortPredicates();
+    if (sorts.isEmpty() && inequality != null) {
+      sorts = Collections.singletonList(new SortPredicate(inequality,
+          SortDirection.ASCENDING));
+    }
+
+    ArrayList<com.google.appengine.api.datastore.Query> queries = new ArrayList<com.google.appengine.api.datastore.Query>(
+        combinations.size());
+    for (List<FilterPredicate> combination : combinations) {
+      com.google.appengine.api.datastore.Query query = new com.google.appengine.api.datastore.Query(
+          this.kind, this.actual.getAncestor());
+      for (FilterPredicate filter : combination) {
+        query.addFilter(filter.getPropertyName(), filter.getOperator(),
+            filter.getValue());
+      }
+      for (SortPredicate sort : sorts) {
+        query.addSort(sort.getPropertyName(), sort.getDirection());
+      }
+      queries.add(query);
+    }
+    return new MergedQuery(queries, sorts);
+  }
+
+  /** @return the number of sub-queries <code>fanOut</code> makes. */
+  private int fanOutSize() {
+    int size = 1;
+    for (FilterPredicate filter : this.actual.getFilterPredicates()) {
+      size *= fanOutSize(filter.getOperator(), filter.getValue());
+    }
+    return size;
+  }
+
+  private static int fanOutSize(FilterOperator operator, Object value) {
+    if (operator == FilterOperator.IN && value instanceof Collection<?>) {
+      return new LinkedHashSet<Object>((Collection<?>) value).size();
+    } else if (operator == FilterOperator.NOT_EQUAL) {
+      return 2;
+    }
+    return 1;
+  }
+
+  /**
+   * Counts the rows of this query with a keys-only scan, starting at
+   * <code>cursor</code> and stopping after <code>limit</code> rows or once
+   * <code>timeoutMillis</code> have passed, whichever comes first.
+   *
+   * <p/>
+   * Queries with an <code>IN</code> or <code>!=</code> filter run as several
+   * queries that have no cursor, so their result has a <code>null</code>
+   * cursor and cannot be continued.
+   *
+   * @param cursor
+   *   the cursor of a previous partial count, or <code>null</code>.
+   * @param timeoutMillis
+   *   checked between batches of <code>COUNT_BATCH_SIZE</code> keys,
+   *   <code>0</code> for no timeout.
+   * @throws IllegalStateException
+   *   if <code>cursor</code> is given for a query without cursors.
+   */
+  public CountResult count(DatastoreService datastore, String cursor,
+      int limit, long timeoutMillis) {
+    if (cursor != null && isFanOut()) {
+      throw new IllegalStateException("Counts of queries with IN or != filters"
+          + " cannot be continued from a cursor");
+    }
+    long deadline = timeoutMillis > 0 ? System.currentTimeMillis()
+        + timeoutMillis : Long.MAX_VALUE;
+
+    // one extra key tells whether the count is complete
+    FetchOptions options = FetchOptions.Builder.withChunkSize(
+        COUNT_BATCH_SIZE).prefetchSize(COUNT_BATCH_SIZE).limit(
+        limit < Integer.MAX_VALUE ? limit + 1 : limit);
+    if (cursor != null) {
+      options.startCursor(Cursor.fromWebSafeString(cursor));
+    }
+    com.google.appengine.api.datastore.Query keysOnly = copy();
+    keysOnly.setKeysOnly();
+    QueryResultIterator<Entity> iterator = datastore.prepare(keysOnly).asQueryResultIterator(
+        options);
+
+    int count = 0;
+    boolean timedOut = false;
+    while (count < limit && iterator.hasNext()) {
+      iterator.next();
+      if (++count % COUNT_BATCH_SIZE == 0
+          && System.currentTimeMillis() >= deadline) {
+        timedOut = true;
+        break;
+      }
+    }
+    boolean done = !timedOut && !iterator.hasNext();
+    Cursor end = iterator.getCursor();
+    return new CountResult(count, end == null ? null : end.toWebSafeString(),
+        done);
+  }
+
+  /**
+   * @return the <code>Key</code> stored in <code>property</code>, or
+   *   <code>null</code> if the property is not set.
+   */
+  public <T> Key<T> key(Entity entity, String property) {
+    com.google.appengine.api.datastore.Key raw = (com.google.appengine.api.datastore.Key) entity.getProperty(property);
+    return raw == null ? null : this.factory.<T> rawKeyToTypedKey(raw);
+  }
+
+  /**
+   * Adds the <code>Key</code> stored in <code>property</code> to
+   * <code>keys</code>, or <code>null</code> if the property is not set.
+   */
+  public <T> void addKey(KeyPage.Builder<T> keys, Entity entity,
+      String property) {
+    addKey(this.factory, keys,
+        (com.google.appengine.api.datastore.Key) entity.getProperty(property));
+  }
+
+  /**
+   * Adds a key without a parent as its kind and id or name, without making a
+   * typed <code>Key</code>.
+   */
+  static <T> void addKey(ObjectifyFactory factory, KeyPage.Builder<T> keys,
+      com.google.appengine.api.datastore.Key raw) {
+    if (raw == null || raw.getParent() != null) {
+      keys.add(raw == null ? null : factory.<T> rawKeyToTypedKey(raw));
+    } else if (raw.getName() != null) {
+      keys.addName(raw.getKind(), raw.getName());
+    } else {
+      keys.addId(raw.getKind(), raw.getId());
+    }
+  }
+
+  /** @return a copy of the mirrored datastore query. */
+  com.google.appengine.api.datastore.Query copy() {
+    com.google.appengine.api.datastore.Query copy = new com.google.appengine.api.datastore.Query(
+        this.kind, this.actual.getAncestor());
+    for (FilterPredicate filter : this.actual.getFilterPredicates()) {
+      copy.addFilter(filter.getPropertyName(), filter.getOperator(),
+          filter.getValue());
+    }
+    for (SortPredicate sort : this.actual.getSortPredicates()) {
+      copy.addSort(sort.getPropertyName(), sort.getDirection());
+    }
+    return copy;
+  }
+
+  private Object toRawKey(Object id) {
+    if (id instanceof Collection<?>) {
+      ArrayList<Object> keys = new ArrayList<Object>();
+      for (Object each : (Collection<?>) id) {
+        keys.add(toRawKey(each));
+      }
+      return keys;
+    } else if (id instanceof Number) {
+      return KeyFactory.createKey(this.kind, ((Number) id).longValue());
+    } else if (id instanceof String) {
+      return KeyFactory.createKey(this.kind, (String) id);
+    } else {
+      return makeFilterable(id);
+    }
+  }
+
+  private Object makeFilterable(Object value) {
+    if (value instanceof Key<?>) {
+      return this.factory.getRawKey(value);
+    } else if (value instanceof Enum<?>) {
+      return ((Enum<?>) value).name();
+    } else if (value instanceof Collection<?>) {
+      ArrayList<Object> values = new ArrayList<Object>();
+      for (Object each : (Collection<?>) value) {
+        values.add(makeFilterable(each));
+      }
+      return values;
+    }
+    return value;
+  }
+
+  private static String describe(Object value) {
+    if (value instanceof com.google.appengine.api.datastore.Key) {
+      return KeyFactory.keyToString((com.google.appengine.api.datastore.Key) value);
+    } else if (value instanceof String) {
+      return "'" + ((String) value).replace("'", "''") + "'";
+    } else if (value instanceof Date) {
+      return "@" + ((Date) value).getTime();
+    } else if (value instanceof Collection<?>) {
+      ArrayList<String> values = new ArrayList<String>();
+      for (Object each : (Collection<?>) value) {
+        values.add(describe(each));
+      }
+      return values.toString();
+    }
+    return String.valueOf(value);
+  }
+
+  private static FilterOperator translate(String operator) {
+    operator = operator.trim();
+    if (operator.equals("=") || operator.equals("==")) {
+      return FilterOperator.EQUAL;
+    } else if (operator.equals(">")) {
+      return FilterOperator.GREATER_THAN;
+    } else if (operator.equals(">=")) {
+      return FilterOperator.GREATER_THAN_OR_EQUAL;
+    } else if (operator.equals("<")) {
+      return FilterOperator.LESS_THAN;
+    } else if (operator.equals("<=")) {
+      return FilterOperator.LESS_THAN_OR_EQUAL;
+    } else if (operator.equals("!=") || operator.equals("<>")) {
+      return FilterOperator.NOT_EQUAL;
+    } else if (operator.equalsIgnoreCase("in")) {
+      return FilterOperator.IN;
+    }
+    throw new IllegalArgumentException("Unknown operator '" + operator + "'");
+  }
+}
@@ -0,0 +1,61 @@
+package com.googlecode.objectify.query.util;
+
+import java.io.Serializable;
+
+/**
+ * A key range of a generated query, scanned independently of the other
+ * shards by <code>forEachSharded</code> / <code>forEachKeySharded</code>.
+ * <p/>
+ * Keys are held as web-safe key strings.  A <code>null</code> bound leaves
+ * that end of the range open.  The cursor is advanced after every batch, so
+ * a shard that failed can be scanned again on its own and resumes after its
+ * last completed batch.
+ */
+public class Shard implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private final String lower;
+  private final String upper;
+  private volatile String cursor;
+  private volatile boolean done;
+
+  public Shard(String lower, String upper) {
+    this.lower = lower;
+    this.upper = upper;
+  }
+
+  /** @return the inclusive lower bound, or <code>null</code>. */
+  public String getLower() {
+    return this.lower;
+  }
+
+  /** @return the exclusive upper bound, or <code>null</code>. */
+  public String getUpper() {
+    return this.upper;
+  }
+
+  /** @return the cursor after the last completed batch, or <code>null</code>. */
+  public String getCursor() {
+    return this.cursor;
+  }
+
+  /** @return <code>true</code> once the whole range has been scanned. */
+  public boolean isDone() {
+    return this.done;
+  }
+
+  void setCursor(String cursor) {
+    this.cursor = cursor;
+  }
+
+  void setDone(boolean done) {
+    this.done = done;
+  }
+
+  @Override
+  public String toString() {
+    return "Shard[" + this.lower + "," + this.upper + "," + this.cursor + ","
+        + this.done + "]";
+  }
+}
@@ -0,0 +1,27 @@
+package com.googlecode.objectify.query.util;
+
+import java.util.List;
+
+/**
+ * Receives the results of a sharded scan one batch at a time.
+ * <p/>
+ * Shards are scanned concurrently, so implementations must be thread-safe.
+ *
+ * @param <T> the type of the streamed results
+ */
+public interface ShardCallback<T> {
+
+  /**
+   * @param shard
+   *   the shard the batch was read from.
+   * @param batch
+   *   the next results of that shard.  The list may be reused for the
+   *   following batch, so it must not be kept after this method returns.
+   * @param cursor
+   *   resumes the shard after the last result of this batch.
+   * @return
+   *   <code>true</code> to continue.<br/>
+   *   <code>false</code> to stop every shard at its next batch boundary.
+   */
+  boolean batch(Shard shard, List<T> batch, String cursor);
+}
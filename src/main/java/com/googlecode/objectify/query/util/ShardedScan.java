@@ -0,0 +1,267 @@
+package com.googlecode.objectify.query.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.apphosting.api.ApiProxy;
+import com.googlecode.objectify.EntityMetadata;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.ObjectifyFactory;
+
+/**
+ * Splits a generated query into key ranges and scans them concurrently.
+ * <p/>
+ * Each shard runs its own datastore iterator on the given
+ * <code>Executor</code>.  The calling thread's App Engine API environment is
+ * passed on to the worker threads, so the scans also work inside a
+ * <code>LocalServiceTestHelper</code>.
+ * <p/>
+ * The scan methods return the shards that did not complete, because they
+ * failed or because the callback stopped the scan.  Passing those shards
+ * to the method again resumes each one after its last completed batch.
+ */
+public class ShardedScan {
+
+  /** Number of keys sampled for each requested shard. */
+  public static final int SAMPLES_PER_SHARD = 32;
+
+  private static final String SCATTER_PROPERTY = "__scatter__";
+
+  private static final Logger log = Logger.getLogger(ShardedScan.class.getName());
+
+  private ShardedScan() {
+  }
+
+  /**
+   * Splits <code>kind</code> into up to <code>count</code> shards of roughly
+   * equal size, using the datastore's <code>__scatter__</code> sample keys.
+   * Returns a single shard when no samples are available.
+   */
+  public static List<Shard> split(DatastoreService datastore, String kind,
+      int count) {
+    ArrayList<com.google.appengine.api.datastore.Key> samples = new ArrayList<com.google.appengine.api.datastore.Key>();
+    if (count > 1) {
+      Query sampleQuery = new Query(kind).addSort(SCATTER_PROPERTY).setKeysOnly();
+      for (Entity sample : datastore.prepare(sampleQuery).asIterable(
+          FetchOptions.Builder.withLimit(count * SAMPLES_PER_SHARD))) {
+        samples.add(sample.getKey());
+      }
+      Collections.sort(samples);
+    }
+
+    ArrayList<com.google.appengine.api.datastore.Key> boundaries = new ArrayList<com.google.appengine.api.datastore.Key>();
+    for (int i = 1; i < count && !samples.isEmpty(); i++) {
+      com.google.appengine.api.datastore.Key boundary = samples.get(i
+          * samples.size() / count);
+      if (boundaries.isEmpty()
+          || !boundaries.get(boundaries.size() - 1).equals(boundary)) {
+        boundaries.add(boundary);
+      }
+    }
+    return splitAt(boundaries);
+  }
+
+  /**
+   * Splits at explicit key boundaries.  <code>n</code> boundaries give
+   * <code>n + 1</code> shards.
+   */
+  public static List<Shard> split(ObjectifyFactory factory,
+      List<? extends Key<?>> boundaries) {
+    ArrayList<com.google.appengine.api.datastore.Key> raw = new ArrayList<com.google.appengine.api.datastore.Key>();
+    for (Key<?> boundary : boundaries) {
+      raw.add(factory.getRawKey(boundary));
+    }
+    Collections.sort(raw);
+    return splitAt(raw);
+  }
+
+  private static List<Shard> splitAt(
+      List<com.google.appengine.api.datastore.Key> boundaries) {
+    ArrayList<Shard> shards = new ArrayList<Shard>(boundaries.size() + 1);
+    String lower = null;
+    for (com.google.appengine.api.datastore.Key boundary : boundaries) {
+      String upper = com.google.appengine.api.datastore.KeyFactory.keyToString(boundary);
+      shards.add(new Shard(lower, upper));
+      lower = upper;
+    }
+    shards.add(new Shard(lower, null));
+    return shards;
+  }
+
+  public static <T> List<Shard> forEach(RawQuery query,
+      ObjectifyFactory factory, Class<T> entityClass, List<Shard> shards,
+      int batchSize, Executor executor, ShardCallback<T> callback) {
+    final EntityMetadata<T> metadata = factory.getMetadata(entityClass);
+    return run(query, factory, false, new Translator<T>() {
+      public T translate(Entity entity, Objectify ofy) {
+        return metadata.toObject(entity, ofy);
+      }
+    }, shards, batchSize, executor, callback);
+  }
+
+  public static <T> List<Shard> forEachKey(RawQuery query,
+      final ObjectifyFactory factory, List<Shard> shards, int batchSize,
+      Executor executor, ShardCallback<Key<T>> callback) {
+    return run(query, factory, true, new Translator<Key<T>>() {
+      public Key<T> translate(Entity entity, Objectify ofy) {
+        return factory.<T> rawKeyToTypedKey(entity.getKey());
+      }
+    }, shards, batchSize, executor, callback);
+  }
+
+  /**
+   * Scans the raw entities without translating them, for callbacks that
+   * read single properties.
+   */
+  public static List<Shard> forEachEntity(RawQuery query,
+      ObjectifyFactory factory, List<Shard> shards, int batchSize,
+      Executor executor, ShardCallback<Entity> callback) {
+    return run(query, factory, false, new Translator<Entity>() {
+      public Entity translate(Entity entity, Objectify ofy) {
+        return entity;
+      }
+    }, shards, batchSize, executor, callback);
+  }
+
+  private static <T> List<Shard> run(RawQuery query,
+      ObjectifyFactory factory, boolean keysOnly, Translator<T> translator,
+      List<Shard> shards, int batchSize, Executor executor,
+      ShardCallback<T> callback) {
+    // fail on the calling thread rather than in every worker
+    query.checkShardable();
+    ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+    AtomicBoolean stopped = new AtomicBoolean();
+
+    ExecutorCompletionService<Void> completion = new ExecutorCompletionService<Void>(
+        executor);
+    int submitted = 0;
+    for (Shard shard : shards) {
+      if (!shard.isDone()) {
+        completion.submit(new ShardScan<T>(query, factory, keysOnly,
+            translator, shard, batchSize, callback, stopped, environment));
+        submitted++;
+      }
+    }
+
+    try {
+      for (int i = 0; i < submitted; i++) {
+        try {
+          completion.take().get();
+        } catch (ExecutionException e) {
+          log.log(Level.WARNING, "Shard scan of " + query.getKind() + " failed",
+              e.getCause());
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    ArrayList<Shard> unfinished = new ArrayList<Shard>();
+    for (Shard shard : shards) {
+      if (!shard.isDone()) {
+        unfinished.add(shard);
+      }
+    }
+    return unfinished;
+  }
+
+  private interface Translator<T> {
+    T translate(Entity entity, Objectify ofy);
+  }
+
+  private static class ShardScan<T> implements Callable<Void> {
+
+    private final RawQuery query;
+    private final ObjectifyFactory factory;
+    private final boolean keysOnly;
+    private final Translator<T> translator;
+    private final Shard shard;
+    private final int batchSize;
+    private final ShardCallback<T> callback;
+    private final AtomicBoolean stopped;
+    private final ApiProxy.Environment environment;
+
+    ShardScan(RawQuery query, ObjectifyFactory factory, boolean keysOnly,
+        Translator<T> translator, Shard shard, int batchSize,
+        ShardCallback<T> callback, AtomicBoolean stopped,
+        ApiProxy.Environment environment) {
+      this.query = query;
+      this.factory = factory;
+      this.keysOnly = keysOnly;
+      this.translator = translator;
+      this.shard = shard;
+      this.batchSize = batchSize;
+      this.callback = callback;
+      this.stopped = stopped;
+      this.environment = environment;
+    }
+
+    public Void call() {
+      boolean inherit = ApiProxy.getCurrentEnvironment() == null
+          && this.environment != null;
+      if (inherit) {
+        ApiProxy.setEnvironmentForCurrentThread(this.environment);
+      }
+      try {
+        scan();
+      } finally {
+        if (inherit) {
+          ApiProxy.clearEnvironmentForCurrentThread();
+        }
+      }
+      return null;
+    }
+
+    private void scan() {
+      // a session per shard, Objectify instances are not thread-safe
+      Objectify ofy = this.factory.begin();
+
+      FetchOptions options = FetchOptions.Builder.withChunkSize(this.batchSize).prefetchSize(
+          this.batchSize);
+      if (this.shard.getCursor() != null) {
+        options.startCursor(Cursor.fromWebSafeString(this.shard.getCursor()));
+      }
+      QueryResultIterator<Entity> iterator = ofy.getDatastore().prepare(
+          this.query.shard(this.shard, this.keysOnly)).asQueryResultIterator(
+          options);
+
+      ArrayList<T> batch = new ArrayList<T>(this.batchSize);
+      while (!this.stopped.get() && iterator.hasNext()) {
+        batch.add(this.translator.translate(iterator.next(), ofy));
+        if (batch.size() == this.batchSize) {
+          deliver(batch, iterator);
+        }
+      }
+      if (!this.stopped.get()) {
+        if (!batch.isEmpty()) {
+          deliver(batch, iterator);
+        }
+        this.shard.setDone(!this.stopped.get());
+      }
+    }
+
+    private void deliver(ArrayList<T> batch, QueryResultIterator<Entity> iterator) {
+      String cursor = RawQuery.cursorOf(iterator);
+      if (!this.callback.batch(this.shard, batch, cursor)) {
+        this.stopped.set(true);
+      }
+      this.shard.setCursor(cursor);
+      batch.clear();
+    }
+  }
+}
@@ -4,18 +4,32 @@ import javax.persistence.Id;
 
 import com.googlecode.objectify.Key;
 import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.query.annotation.Aggregate;
 import com.googlecode.objectify.query.annotation.List;
+import com.googlecode.objectify.query.annotation.QueryIndex;
+import com.googlecode.objectify.query.annotation.QueryIndexes;
 
 
 @Entity
+@QueryIndexes({
+  @QueryIndex(filter = {"colour", "doors"}),
+  @QueryIndex(filter = "colour", order = "-doors"),
+  @QueryIndex(order = "-vin")})
 public class Car {
   public @Id String vin; 
   public Key<Colour> colour;
+  @Aggregate(groupBy = "madeBy")
   public int doors;
+  @Aggregate
   public Key<Manufacturer> madeBy;
   
-  @List(singularName = "MadeBy", pluralName = "Manufacturers")
+  @List(singularName = "MadeBy", pluralName = "Manufacturers", property = "madeBy")
   public Key<Manufacturer> getManufacturer() {
     return this.madeBy;
   }
+
+  @List(singularName = "Colour", pluralName = "Colours", property = "colour")
+  public Key<Colour> getColour() {
+    return this.colour;
+  }
 }
\ No newline at end of file
@@ -3,8 +3,10 @@ package com.example;
 import javax.persistence.Id;
 
 import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.query.annotation.Snapshot;
 
 @Entity
+@Snapshot(refreshSeconds = 3600)
 public class Colour {
 	public @Id String id; 
 	
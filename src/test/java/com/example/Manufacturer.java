@@ -3,7 +3,10 @@ package com.example;
 import javax.persistence.Entity;
 import javax.persistence.Id;
 
+import com.googlecode.objectify.query.annotation.Snapshot;
+
 @Entity
+@Snapshot
 public class Manufacturer {
 	public @Id Long id;
 	public String name;
@@ -0,0 +1,14 @@
+package com.example;
+
+import javax.persistence.Id;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Parent;
+
+@Entity
+public class Wheel {
+  public @Id Long id;
+  public @Parent Key<Car> car;
+  public int position;
+}
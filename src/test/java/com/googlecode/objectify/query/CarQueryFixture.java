@@ -0,0 +1,96 @@
+package com.googlecode.objectify.query;
+
+import org.junit.After;
+import org.junit.Before;
+
+import com.example.Car;
+import com.example.Colour;
+import com.example.ColourQuery;
+import com.example.Manufacturer;
+import com.example.ManufacturerQuery;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.ObjectifyService;
+
+/**
+ * Seeds the local datastore with the cars, colours and manufacturers the
+ * tests of the generated queries read: five red cars, four with two doors,
+ * made by honda and toyota.
+ */
+public abstract class CarQueryFixture {
+
+  static {
+    ObjectifyService.register(Car.class);
+    ObjectifyService.register(Colour.class);
+    ObjectifyService.register(Manufacturer.class);
+  }
+
+  private LocalServiceTestHelper helper;
+
+  @Before
+  public void prepare() {
+    this.helper = new LocalServiceTestHelper(
+        new LocalDatastoreServiceTestConfig(),
+        new LocalMemcacheServiceTestConfig());
+    this.helper.setUp();
+    // the snapshots outlive the datastore of the previous test
+    ColourQuery.snapshotStore().invalidate();
+    ManufacturerQuery.snapshotStore().invalidate();
+    Objectify ofy = ObjectifyService.begin();
+
+    Colour red = new Colour();
+    red.id = "red";
+    Key<Colour> redKey = ofy.put(red);
+
+    Manufacturer honda = new Manufacturer();
+    honda.name = "honda";
+    Key<Manufacturer> hondaKey = ofy.put(honda);
+
+    Manufacturer toyota = new Manufacturer();
+    toyota.name = "toyota";
+    Key<Manufacturer> toyotaKey = ofy.put(toyota);
+
+    Car car1 = new Car();
+    car1.doors = 2;
+    car1.colour = redKey;
+    car1.vin = "ABC123";
+    car1.madeBy = hondaKey;
+    ofy.put(car1);
+
+    Car car2 = new Car();
+    car2.doors = 2;
+    car2.colour = redKey;
+    car2.vin = "DEF123";
+    car2.madeBy = hondaKey;
+    ofy.put(car2);
+
+    Car car3 = new Car();
+    car3.doors = 2;
+    car3.colour = redKey;
+    car3.madeBy = toyotaKey;
+    car3.vin = "GHI123";
+    ofy.put(car3);
+
+    Car car4 = new Car();
+    car4.doors = 2;
+    car4.colour = redKey;
+    car4.vin = "JKL123";
+    car4.madeBy = toyotaKey;
+    ofy.put(car4);
+
+    Car car5 = new Car();
+    car5.doors = 4;
+    car5.colour = redKey;
+    car5.vin = "MNO123";
+    car5.madeBy = toyotaKey;
+    ofy.put(car5);
+  }
+
+  @After
+  public void releaseLocalServices() {
+    this.helper.tearDown();
+  }
+}
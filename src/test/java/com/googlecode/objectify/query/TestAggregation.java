@@ -0,0 +1,110 @@
+package com.googlecode.objectify.query;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import com.example.Car;
+import com.example.CarQuery;
+import com.example.Manufacturer;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.query.util.CountResult;
+import com.googlecode.objectify.query.util.Counts;
+import com.googlecode.objectify.query.util.LongStats;
+
+/** Tests of the counts and aggregations of generated queries. */
+public class TestAggregation extends CarQueryFixture {
+
+  @Test
+  public void testCount() {
+    Objectify ofy = ObjectifyService.begin();
+
+    assertThat(new CarQuery(ofy.query(Car.class)).count(), is(equalTo(5)));
+    assertThat(new CarQuery(ofy.query(Car.class)).countUpTo(3), is(equalTo(3)));
+    assertThat(new CarQuery(ofy.query(Car.class)).countUpTo(5), is(equalTo(5)));
+
+    // IN and != filters run as several queries without a cursor
+    CountResult fanOut = new CarQuery(ofy.query(Car.class)).filterByDoorsIn(
+        java.util.Arrays.asList(2, 4)).count(null, 10, 0);
+    assertThat(fanOut.getCount(), is(equalTo(5)));
+    assertThat(fanOut.getCursor(), is(nullValue()));
+    assertThat(new CarQuery(ofy.query(Car.class).filter("doors !=", 2)).countUpTo(10),
+        is(equalTo(1)));
+    assertThat(new CarQuery(ofy.query(Car.class).filter("doors", 2)).count(),
+        is(equalTo(4)));
+
+    // count in chunks of two, as if spread over several requests
+    int total = 0;
+    int calls = 0;
+    String cursor = null;
+    CountResult result;
+    do {
+      result = new CarQuery(ofy.query(Car.class)).count(cursor, 2, 0);
+      total += result.getCount();
+      cursor = result.getCursor();
+      calls++;
+    } while (!result.isDone());
+    assertThat(total, is(equalTo(5)));
+    assertThat(calls, is(equalTo(3)));
+
+    // an exact last chunk is known to be complete
+    CountResult exact = new CarQuery(ofy.query(Car.class)).count(null, 5, 0);
+    assertThat(exact.getCount(), is(equalTo(5)));
+    assertThat(exact.isDone(), is(true));
+  }
+
+  @Test
+  public void testAggregations() throws InterruptedException {
+    Objectify ofy = ObjectifyService.begin();
+    Key<Manufacturer> honda = ofy.find(new Key<Car>(Car.class, "ABC123")).madeBy;
+    Key<Manufacturer> toyota = ofy.find(new Key<Car>(Car.class, "MNO123")).madeBy;
+
+    Counts<Key<Manufacturer>> makers = new CarQuery(ofy.query(Car.class)).filterByDoors(
+        2).countByMadeBy(2);
+    assertThat(makers.get(honda), is(equalTo(2L)));
+    assertThat(makers.get(toyota), is(equalTo(2L)));
+    assertThat(makers.getTotal(), is(equalTo(4L)));
+
+    Counts<Long> doors = new CarQuery(ofy.query(Car.class)).countByDoors(2);
+    assertThat(doors.asMap().keySet().iterator().next(), is(equalTo(2L)));
+    assertThat(doors.get(4L), is(equalTo(1L)));
+
+    LongStats stats = new CarQuery(ofy.query(Car.class)).aggregateDoors(2);
+    assertThat(stats.getCount(), is(equalTo(5L)));
+    assertThat(stats.getSum(), is(equalTo(12L)));
+    assertThat(stats.getMin(), is(equalTo(2L)));
+    assertThat(stats.getMax(), is(equalTo(4L)));
+
+    java.util.Map<Key<Manufacturer>, LongStats> byMaker = new CarQuery(
+        ofy.query(Car.class)).aggregateDoorsByMadeBy(2);
+    assertThat(byMaker.get(honda).getSum(), is(equalTo(4L)));
+    assertThat(byMaker.get(toyota).getSum(), is(equalTo(8L)));
+    assertThat(byMaker.get(toyota).getMax(), is(equalTo(4L)));
+
+    // partial results of each shard are combined
+    CarQuery query = new CarQuery(ofy.query(Car.class));
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      Counts<Key<Manufacturer>> sharded = query.countByMadeBy(query.shards(
+          java.util.Arrays.asList(new Key<Car>(Car.class, "DEF123"),
+              new Key<Car>(Car.class, "JKL123"))), 2, executor);
+      assertThat(sharded.get(honda), is(equalTo(2L)));
+      assertThat(sharded.get(toyota), is(equalTo(3L)));
+
+      java.util.Map<Key<Manufacturer>, LongStats> shardedByMaker = query.aggregateDoorsByMadeBy(
+          query.shards(java.util.Arrays.asList(new Key<Car>(Car.class, "GHI123"))),
+          1, executor);
+      assertThat(shardedByMaker.get(toyota).getCount(), is(equalTo(3L)));
+      assertThat(shardedByMaker.get(toyota).getSum(), is(equalTo(8L)));
+    } finally {
+      executor.shutdown();
+      executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+  }
+}
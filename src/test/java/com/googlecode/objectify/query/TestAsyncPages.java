@@ -0,0 +1,58 @@
+package com.googlecode.objectify.query;
+
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import com.example.Car;
+import com.example.CarQuery;
+import com.example.Colour;
+import com.example.Manufacturer;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.query.shared.ListPage;
+import com.googlecode.objectify.query.util.PageFuture;
+
+/** Tests of the <code>...Async</code> methods of generated queries. */
+public class TestAsyncPages extends CarQueryFixture {
+
+  @Test
+  public void testAsyncPagesOverlap() {
+    Objectify ofy = ObjectifyService.begin();
+
+    Key<Colour> red = new Key(Colour.class, "red");
+
+    // every query is started before any of them is read
+    PageFuture<ListPage<Car>> cars = new CarQuery(ofy.query(Car.class)).filterByDoors(
+        2).listAsync(null, 3);
+    PageFuture<ListPage<Manufacturer>> makers = new CarQuery(
+        ofy.query(Car.class)).filterByColour(red).listManufacturersAsync(null,
+        20);
+    PageFuture<ListPage<Key<Colour>>> colours = new CarQuery(ofy.query(Car.class)).filterByDoors(
+        4).listColourKeysAsync(null, 20);
+    assertThat(cars.isDone(), is(false));
+
+    PageFuture.getAll(cars, makers, colours);
+    assertThat(cars.isDone(), is(true));
+    assertThat(cars.get().size(), is(3));
+    assertThat(cars.get().more(), is(true));
+    assertThat(makers.get().size(), is(2));
+    assertThat(makers.get().get(0).name, is("honda"));
+    assertThat(colours.get().get(0), is(red));
+
+    // the next page continues from the cursor of the async one
+    ListPage<Car> next = new CarQuery(ofy.query(Car.class)).filterByDoors(2).list(
+        cars.get().getCursor(), 3);
+    assertThat(next.size(), is(1));
+
+    // a later stage can be composed onto any page
+    PageFuture<Integer> count = new CarQuery(ofy.query(Car.class)).listKeysAsync(
+        null, 20).then(new PageFuture.Continuation<ListPage<Key<Car>>, Integer>() {
+      public PageFuture<Integer> apply(ListPage<Key<Car>> keys) {
+        return PageFuture.done(keys.size());
+      }
+    });
+    assertThat(count.get(), is(5));
+  }
+}
@@ -0,0 +1,75 @@
+package com.googlecode.objectify.query;
+
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import com.example.Car;
+import com.example.CarQuery;
+import com.example.Manufacturer;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.query.util.BulkResult;
+import com.googlecode.objectify.query.util.Mutator;
+
+/** Tests of the bulk deletes and updates of generated queries. */
+public class TestBulkWrite extends CarQueryFixture {
+
+  @Test
+  public void testDeleteAndUpdateAll() {
+    Objectify ofy = ObjectifyService.begin();
+    Key<Manufacturer> toyota = ofy.find(new Key<Car>(Car.class, "MNO123")).madeBy;
+
+    BulkResult dryRun = new CarQuery(ofy.query(Car.class)).filterByMadeBy(
+        toyota).deleteAll(null, Integer.MAX_VALUE, 0, true);
+    assertThat(dryRun.getWritten(), is(equalTo(3L)));
+    assertThat(dryRun.isDone(), is(true));
+    assertThat(new CarQuery(ofy.query(Car.class)).count(), is(equalTo(5)));
+
+    BulkResult updated = new CarQuery(ofy.query(Car.class)).updateAll(new Mutator<Car>() {
+      public boolean mutate(Car car) {
+        if (car.doors != 2) {
+          return false;
+        }
+        car.doors = 3;
+        return true;
+      }
+    });
+    assertThat(updated.getScanned(), is(equalTo(5L)));
+    assertThat(updated.getWritten(), is(equalTo(4L)));
+    assertThat(new CarQuery(ofy.query(Car.class)).filterByDoors(3).count(),
+        is(equalTo(4)));
+
+    // delete in two requests, continuing from the cursor
+    BulkResult first = new CarQuery(ofy.query(Car.class)).filterByMadeBy(
+        toyota).deleteAll(null, 2, 0, false);
+    assertThat(first.getWritten(), is(equalTo(2L)));
+    assertThat(first.isDone(), is(false));
+    BulkResult rest = new CarQuery(ofy.query(Car.class)).filterByMadeBy(
+        toyota).deleteAll(first.getCursor(), Integer.MAX_VALUE, 0, false);
+    assertThat(rest.getWritten(), is(equalTo(1L)));
+    assertThat(rest.isDone(), is(true));
+    assertThat(new CarQuery(ofy.query(Car.class)).count(), is(equalTo(2)));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testDeleteAllRejectsPreFilteredQuery() {
+    Objectify ofy = ObjectifyService.begin();
+
+    new CarQuery(ofy.query(Car.class).filter("doors", 2)).deleteAll();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testUpdateAllRejectsLimit() {
+    Objectify ofy = ObjectifyService.begin();
+
+    CarQuery query = new CarQuery(ofy.query(Car.class));
+    query.limit(1);
+    query.updateAll(new Mutator<Car>() {
+      public boolean mutate(Car car) {
+        return true;
+      }
+    });
+  }
+}
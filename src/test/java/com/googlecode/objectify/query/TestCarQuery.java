@@ -1,7 +1,5 @@
 package com.googlecode.objectify.query;
 
-import org.junit.After;
-import org.junit.Before;
 import org.junit.Test;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
@@ -11,82 +9,15 @@ import com.example.CarQuery;
 import com.example.Colour;
 import com.example.Manufacturer;
 import com.example.ManufacturerQuery;
-import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
-import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import com.googlecode.objectify.Key;
 import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.ObjectifyFactory;
 import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.query.metrics.HistogramQueryMetrics;
 import com.googlecode.objectify.query.shared.ListPage;
+import com.googlecode.objectify.query.util.RawQuery;
 
-public class TestCarQuery {
-
-  static {
-    ObjectifyService.register(Car.class);
-    ObjectifyService.register(Colour.class);
-    ObjectifyService.register(Manufacturer.class);
-  }
-
-  private LocalServiceTestHelper helper;
-
-  @Before
-  public void prepare() {
-    this.helper = new LocalServiceTestHelper(
-        new LocalDatastoreServiceTestConfig());
-    this.helper.setUp();
-    Objectify ofy = ObjectifyService.begin();
-
-    Colour red = new Colour();
-    red.id = "red";
-    Key<Colour> redKey = ofy.put(red);
-
-    Manufacturer honda = new Manufacturer();
-    honda.name = "honda";
-    Key<Manufacturer> hondaKey = ofy.put(honda);
-
-    Manufacturer toyota = new Manufacturer();
-    toyota.name = "toyota";
-    Key<Manufacturer> toyotaKey = ofy.put(toyota);
-
-    Car car1 = new Car();
-    car1.doors = 2;
-    car1.colour = redKey;
-    car1.vin = "ABC123";
-    car1.madeBy = hondaKey;
-    ofy.put(car1);
-
-    Car car2 = new Car();
-    car2.doors = 2;
-    car2.colour = redKey;
-    car2.vin = "DEF123";
-    car2.madeBy = hondaKey;
-    ofy.put(car2);
-
-    Car car3 = new Car();
-    car3.doors = 2;
-    car3.colour = redKey;
-    car3.madeBy = toyotaKey;
-    car3.vin = "GHI123";
-    ofy.put(car3);
-
-    Car car4 = new Car();
-    car4.doors = 2;
-    car4.colour = redKey;
-    car4.vin = "JKL123";
-    car4.madeBy = toyotaKey;
-    ofy.put(car4);
-
-    Car car5 = new Car();
-    car5.doors = 4;
-    car5.colour = redKey;
-    car5.vin = "MNO123";
-    car5.madeBy = toyotaKey;
-    ofy.put(car5);
-  }
-
-  @After
-  public void releaseLocalServices() {
-    this.helper.tearDown();
-  }
+public class TestCarQuery extends CarQueryFixture {
 
   @Test
   public void testCarQuery() {
@@ -127,4 +58,157 @@ public class TestCarQuery {
     assertThat(manufacturerList.size(), is(equalTo(2)));
   }
 
+  @Test
+  public void testOrderBy() {
+    Objectify ofy = ObjectifyService.begin();
+    Key<Colour> red = new Key(Colour.class, "red");
+
+    ListPage<Car> cars = new CarQuery(ofy.query(Car.class)).filterByColour(
+        red).orderByDoorsDescending().list(null, 2);
+    assertThat(cars.get(0).vin, is("MNO123"));
+
+    ListPage<Key<Car>> keys = new CarQuery(ofy.query(Car.class)).orderByVinDescending().listKeys(
+        null, 2);
+    assertThat(keys.get(0).getName(), is("MNO123"));
+    assertThat(keys.get(1).getName(), is("JKL123"));
+  }
+
+  @Test
+  public void testPagesLeaveQueryUnchanged() {
+    Objectify ofy = ObjectifyService.begin();
+
+    CarQuery query = new CarQuery(ofy.query(Car.class));
+    assertThat(query.list(null, 2).size(), is(equalTo(2)));
+    assertThat(query.listKeys(null, 1).size(), is(equalTo(1)));
+
+    // the page limit and cursor are not left on the wrapped query
+    assertThat(query.list().size(), is(equalTo(5)));
+    assertThat(query.count(), is(equalTo(5)));
+  }
+
+  @Test
+  public void testPagesKeepQueryLimit() {
+    Objectify ofy = ObjectifyService.begin();
+
+    ListPage<Car> cars = new CarQuery(ofy.query(Car.class).limit(3)).list(null, 10);
+    assertThat(cars.size(), is(equalTo(3)));
+    assertThat(cars.more(), is(false));
+
+    CarQuery query = new CarQuery(ofy.query(Car.class));
+    query.limit(2);
+    ListPage<Key<Car>> keys = query.listKeys(null, 10);
+    assertThat(keys.size(), is(equalTo(2)));
+    assertThat(keys.more(), is(false));
+  }
+
+  @Test
+  public void testPristineDoesNotPinFactory() {
+    ObjectifyFactory factory = new ObjectifyFactory();
+    factory.register(Car.class);
+    assertThat(RawQuery.isPristine(factory, factory.begin().query(Car.class),
+        Car.class), is(true));
+    assertThat(RawQuery.isPristine(factory, factory.begin().query(Car.class).filter(
+        "doors", 2), Car.class), is(false));
+
+    java.lang.ref.WeakReference<ObjectifyFactory> ref = new java.lang.ref.WeakReference<ObjectifyFactory>(
+        factory);
+    factory = null;
+    for (int i = 0; i < 10 && ref.get() != null; i++) {
+      System.gc();
+    }
+    assertThat(ref.get(), is(nullValue()));
+  }
+
+  @Test
+  public void testListManufacturersKeepsPageOrder() {
+    Objectify ofy = ObjectifyService.begin();
+
+    Key<Colour> red = new Key(Colour.class, "red");
+
+    // one manufacturer per car, in the order the cars were returned
+    CarQuery query = (new CarQuery(ofy.query(Car.class))).filterByColour(red).filterByDoors(
+        2);
+    ListPage<Manufacturer> makers = query.listManufacturers(null, 20, false);
+    assertThat(makers.size(), is(equalTo(4)));
+    assertThat(makers.more(), is(false));
+    assertThat(makers.get(0).name, is("honda"));
+    assertThat(makers.get(1).name, is("honda"));
+    assertThat(makers.get(2).name, is("toyota"));
+    assertThat(makers.get(3).name, is("toyota"));
+
+    // duplicates collapsed to the position of their first occurrence
+    CarQuery query2 = (new CarQuery(ofy.query(Car.class))).filterByColour(red).filterByDoors(
+        2);
+    ListPage<Manufacturer> distinctMakers = query2.listManufacturers(null, 20);
+    assertThat(distinctMakers.size(), is(equalTo(2)));
+    assertThat(distinctMakers.get(0).name, is("honda"));
+    assertThat(distinctMakers.get(1).name, is("toyota"));
+
+    // a missing manufacturer leaves empty slots in line with its cars
+    ofy.delete(ofy.find(new Key<Car>(Car.class, "GHI123")).madeBy);
+    ListPage<Manufacturer> missing = new CarQuery(ofy.query(Car.class)).filterByColour(
+        red).filterByDoors(2).listManufacturers(null, 20, false);
+    assertThat(missing.size(), is(equalTo(4)));
+    assertThat(missing.get(1).name, is("honda"));
+    assertThat(missing.get(2), is(nullValue()));
+    assertThat(missing.get(3), is(nullValue()));
+  }
+
+  @Test
+  public void testExactPageHasNoMore() {
+    Objectify ofy = ObjectifyService.begin();
+
+    Key<Colour> red = new Key(Colour.class, "red");
+
+    // exactly four red 2 door cars, so a page of four is the last page
+    CarQuery query = (new CarQuery(ofy.query(Car.class))).filterByColour(red).filterByDoors(
+        2);
+    ListPage<Key<Car>> cars = query.listKeys(null, 4);
+    assertThat(cars.size(), is(equalTo(4)));
+    assertThat(cars.more(), is(false));
+  }
+
+  @Test
+  public void testListMadeByKeysReadsRawProperty() {
+    Objectify ofy = ObjectifyService.begin();
+
+    Key<Colour> red = new Key(Colour.class, "red");
+
+    // the madeBy keys are read from the raw entities, filters still apply
+    CarQuery query = (new CarQuery(ofy.query(Car.class))).filterByColour(red).filterByDoors(
+        2);
+    ListPage<Key<Manufacturer>> makers = query.listMadeByKeys(null, 3);
+    assertThat(makers.size(), is(equalTo(3)));
+    assertThat(makers.more(), is(true));
+    assertThat(makers.get(0), is(equalTo(makers.get(1))));
+
+    CarQuery query2 = (new CarQuery(ofy.query(Car.class))).filterByColour(red).filterByDoors(
+        2);
+    ListPage<Key<Manufacturer>> moreMakers = query2.listMadeByKeys(makers.getCursor(), 3);
+    assertThat(moreMakers.size(), is(equalTo(1)));
+    assertThat(moreMakers.more(), is(false));
+    assertThat(moreMakers.get(0), is(equalTo(makers.get(2))));
+  }
+
+  @Test
+  public void testListWithRelations() {
+    Objectify ofy = ObjectifyService.begin();
+    HistogramQueryMetrics metrics = new HistogramQueryMetrics();
+
+    ListPage<CarQuery.Row> rows = new CarQuery(ofy.query(Car.class)).useMetrics(
+        metrics).listWithRelations(null, 3);
+    assertThat(rows.size(), is(equalTo(3)));
+    assertThat(rows.more(), is(true));
+    for (CarQuery.Row row : rows) {
+      assertThat(row.getEntity().vin, is(notNullValue()));
+      assertThat(row.getMadeBy().id, is(equalTo(row.getEntity().madeBy.getId())));
+      assertThat(row.getColour().id, is(equalTo("red")));
+    }
+
+    // honda, toyota and red in a single batch get
+    HistogramQueryMetrics.Stats stats = metrics.getStats("listWithRelations",
+        "Car where [] order []");
+    assertThat(stats.batchGetKeys.getSum(), is(equalTo(3L)));
+    assertThat(stats.roundTrips.getSum(), is(equalTo(2L)));
+  }
 }
@@ -0,0 +1,72 @@
+package com.googlecode.objectify.query;
+
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import com.example.Car;
+import com.example.CarQuery;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.query.cache.CheckpointIndex;
+import com.googlecode.objectify.query.cache.CheckpointStore;
+import com.googlecode.objectify.query.cache.DatastoreCheckpointStore;
+import com.googlecode.objectify.query.cache.LocalCheckpointStore;
+import com.googlecode.objectify.query.shared.ListPage;
+import com.googlecode.objectify.query.util.RawQuery;
+
+/** Tests of the checkpoints of <code>listAtOffset</code>. */
+public class TestCheckpoints extends CarQueryFixture {
+
+  @Test
+  public void testListAtOffset() {
+    checkListAtOffset(new LocalCheckpointStore(100, 60000));
+    checkListAtOffset(new DatastoreCheckpointStore());
+  }
+
+  private void checkListAtOffset(CheckpointStore store) {
+    Objectify ofy = ObjectifyService.begin();
+    String kind = ObjectifyService.factory().getKind(Car.class);
+    CheckpointIndex checkpoints = new CheckpointIndex(store, 2);
+    ListPage<Car> all = new CarQuery(ofy.query(Car.class)).orderByVin().list(
+        null, 5);
+
+    ListPage<Car> page = new CarQuery(ofy.query(Car.class)).useCheckpoints(
+        checkpoints).orderByVin().listAtOffset(3, 2);
+    assertThat(page.size(), is(2));
+    assertThat(page.get(0).vin, is(all.get(3).vin));
+    assertThat(page.more(), is(false));
+
+    // the checkpoint at 2 was recorded on the way, the one at 4 is next
+    RawQuery raw = new RawQuery(ObjectifyService.factory(), Car.class, "vin");
+    raw.order("vin");
+    String shape = raw.shape();
+    java.util.Map<Integer, String> recorded = store.get(kind, shape,
+        java.util.Arrays.asList(2, 4));
+    assertThat(recorded.size(), is(1));
+    assertThat(recorded.get(2), is(notNullValue()));
+    CarQuery query = new CarQuery(ofy.query(Car.class)).useCheckpoints(
+        checkpoints).orderByVin();
+    assertThat(query.listAtOffset(4, 1).get(0).vin, is(all.get(4).vin));
+    assertThat(store.get(kind, shape, java.util.Arrays.asList(4)).get(4),
+        is(notNullValue()));
+
+    // past the last row
+    CheckpointIndex.Checkpoint end = query.seek(10);
+    assertThat(end.getOffset(), is(5));
+    assertThat(query.listAtOffset(10, 2).size(), is(0));
+
+    // without checkpoints every seek starts from the first row
+    assertThat(new CarQuery(ofy.query(Car.class)).orderByVin().listAtOffset(1,
+        1).get(0).vin, is(all.get(1).vin));
+
+    // a kind whose name is a prefix of another keeps its checkpoints
+    store.put("Ca", shape, 2, recorded.get(2));
+    checkpoints.invalidate(kind);
+    assertThat(store.get(kind, shape, java.util.Arrays.asList(2, 4)).isEmpty(),
+        is(true));
+    assertThat(store.get("Ca", shape, java.util.Arrays.asList(2)).get(2),
+        is(recorded.get(2)));
+    store.invalidate("Ca");
+  }
+}
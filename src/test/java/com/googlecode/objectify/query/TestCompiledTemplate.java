@@ -0,0 +1,62 @@
+package com.googlecode.objectify.query;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import com.example.Car;
+import com.example.CarQuery;
+import com.example.Colour;
+import com.google.apphosting.api.ApiProxy;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.query.shared.ListPage;
+
+/** Tests of the templates compiled from generated queries. */
+public class TestCompiledTemplate extends CarQueryFixture {
+
+  @Test
+  public void testCompiledTemplate() throws Exception {
+    Key<Colour> red = new Key(Colour.class, "red");
+    final CarQuery.Template template = new CarQuery(
+        ObjectifyService.begin().query(Car.class)).filterByColour(red).filterByDoors(
+        ">=", 2).orderByDoorsDescending().orderByVinDescending().compile();
+
+    // the workers make datastore calls as part of this test's request
+    final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      java.util.List<java.util.concurrent.Future<ListPage<Car>>> pages = new java.util.ArrayList<java.util.concurrent.Future<ListPage<Car>>>();
+      for (int i = 0; i < 8; i++) {
+        pages.add(executor.submit(new java.util.concurrent.Callable<ListPage<Car>>() {
+          public ListPage<Car> call() {
+            ApiProxy.setEnvironmentForCurrentThread(environment);
+            try {
+              return template.list(ObjectifyService.begin(), null, 2);
+            } finally {
+              ApiProxy.clearEnvironmentForCurrentThread();
+            }
+          }
+        }));
+      }
+      for (java.util.concurrent.Future<ListPage<Car>> page : pages) {
+        assertThat(page.get().size(), is(equalTo(2)));
+        assertThat(page.get().get(0).vin, is("MNO123"));
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    Objectify ofy = ObjectifyService.begin();
+    ListPage<Car> first = template.list(ofy, null, 3);
+    ListPage<Car> rest = template.list(ofy, first.getCursor(), 3);
+    assertThat(first.size() + rest.size(), is(equalTo(5)));
+    assertThat(rest.more(), is(false));
+    assertThat(template.count(ofy), is(equalTo(5)));
+    assertThat(template.listKeys(ofy, null, 1).get(0).getName(), is("MNO123"));
+  }
+}
@@ -0,0 +1,52 @@
+package com.googlecode.objectify.query;
+
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import com.example.Car;
+import com.example.CarQuery;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.query.util.ExportReader;
+
+/** Tests of the export and import of generated queries. */
+public class TestExport extends CarQueryFixture {
+
+  @Test
+  public void testExportAndImport() throws Exception {
+    Objectify ofy = ObjectifyService.begin();
+    java.io.File file = java.io.File.createTempFile("cars", ".export");
+    try {
+      assertThat(new CarQuery(ofy.query(Car.class)).exportTo(file, 2), is(5L));
+      // a complete export is left as it is, rows after its last checkpoint included
+      assertThat(new CarQuery(ofy.query(Car.class)).exportTo(file, 2), is(5L));
+
+      // cut the end record and part of the last entity
+      java.io.RandomAccessFile cut = new java.io.RandomAccessFile(file, "rw");
+      cut.setLength(cut.length() - 10);
+      cut.close();
+      assertThat(new CarQuery(ofy.query(Car.class)).exportTo(file, 2), is(5L));
+
+      ofy.delete(ofy.query(Car.class).listKeys());
+      java.nio.channels.FileChannel channel = new java.io.FileInputStream(
+          file).getChannel();
+      try {
+        ExportReader reader = new ExportReader(channel);
+        assertThat(reader.getKind(), is(ObjectifyService.factory().getKind(
+            Car.class)));
+        assertThat(reader.importTo(
+            com.google.appengine.api.datastore.DatastoreServiceFactory.getAsyncDatastoreService(),
+            2), is(5L));
+        assertThat(reader.isComplete(), is(true));
+      } finally {
+        channel.close();
+      }
+      assertThat(new CarQuery(ofy.query(Car.class)).filterByVin("MNO123").list(
+          null, 1).get(0).doors, is(4));
+      assertThat(new CarQuery(ofy.query(Car.class)).count(), is(5));
+    } finally {
+      file.delete();
+    }
+  }
+}
@@ -0,0 +1,74 @@
+package com.googlecode.objectify.query;
+
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import com.example.Car;
+import com.example.CarQuery;
+import com.example.Manufacturer;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.query.shared.ListPage;
+import com.googlecode.objectify.query.util.RawQuery;
+
+/** Tests of the <code>in</code> filters of generated queries. */
+public class TestFilterIn extends CarQueryFixture {
+
+  @Test
+  public void testFilterInMergesSubQueries() {
+    Objectify ofy = ObjectifyService.begin();
+
+    // page through two concurrent sub-queries with the composite cursor
+    java.util.List<String> vins = new java.util.ArrayList<String>();
+    String cursor = null;
+    ListPage<Car> page;
+    do {
+      page = new CarQuery(ofy.query(Car.class)).filterByDoorsIn(
+          java.util.Arrays.asList(4, 2)).list(cursor, 2);
+      assertThat(page.size(), is(lessThanOrEqualTo(2)));
+      for (Car car : page) {
+        vins.add(car.vin);
+      }
+      cursor = page.getCursor();
+    } while (page.more());
+    assertThat(vins, is(equalTo(java.util.Arrays.asList("ABC123", "DEF123",
+        "GHI123", "JKL123", "MNO123"))));
+
+    // merged in the sort order of the query
+    CarQuery sorted = new CarQuery(ofy.query(Car.class)).filterByMadeByIn(
+        ofy.query(Manufacturer.class).listKeys());
+    sorted.order("-vin");
+    ListPage<Key<Car>> keys = sorted.listKeys(null, 10);
+    assertThat(keys.size(), is(equalTo(5)));
+    assertThat(keys.get(0).getName(), is(equalTo("MNO123")));
+    assertThat(keys.get(4).getName(), is(equalTo("ABC123")));
+    assertThat(keys.more(), is(false));
+
+    // != runs as both sides of the value, in the order of the property
+    ListPage<Car> notTwo = new CarQuery(ofy.query(Car.class)).filterByDoors(
+        "!=", 2).list(null, 10);
+    assertThat(notTwo.size(), is(equalTo(1)));
+    assertThat(notTwo.get(0).vin, is("MNO123"));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testFilterInRejectsCursors() {
+    Objectify ofy = ObjectifyService.begin();
+
+    new CarQuery(ofy.query(Car.class)).filterByDoorsIn(
+        java.util.Arrays.asList(4, 2)).listManufacturers(null, 2);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testFilterInLimitsSubQueries() {
+    Objectify ofy = ObjectifyService.begin();
+
+    java.util.List<String> vins = new java.util.ArrayList<String>();
+    for (int i = 0; i <= RawQuery.MAX_FAN_OUT; i++) {
+      vins.add("VIN" + i);
+    }
+    new CarQuery(ofy.query(Car.class)).filterByVinIn(vins);
+  }
+}
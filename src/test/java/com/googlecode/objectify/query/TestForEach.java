@@ -0,0 +1,105 @@
+package com.googlecode.objectify.query;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import com.example.Car;
+import com.example.CarQuery;
+import com.example.Manufacturer;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.query.util.BatchCallback;
+import com.googlecode.objectify.query.util.Shard;
+import com.googlecode.objectify.query.util.ShardCallback;
+
+/** Tests of the streaming and sharded scans of generated queries. */
+public class TestForEach extends CarQueryFixture {
+
+  @Test
+  public void testForEachStreamsBatches() {
+    Objectify ofy = ObjectifyService.begin();
+
+    final java.util.List<Integer> sizes = new java.util.ArrayList<Integer>();
+    final java.util.List<String> cursors = new java.util.ArrayList<String>();
+    CarQuery query = new CarQuery(ofy.query(Car.class));
+    query.forEachKey(null, 2, new BatchCallback<Key<Car>>() {
+      public boolean batch(java.util.List<Key<Car>> batch, String cursor) {
+        sizes.add(batch.size());
+        cursors.add(cursor);
+        return true;
+      }
+    });
+    assertThat(sizes.size(), is(equalTo(3)));
+    assertThat(sizes.get(0), is(equalTo(2)));
+    assertThat(sizes.get(2), is(equalTo(1)));
+
+    // resume after the first batch and stop after one more
+    final java.util.List<String> names = new java.util.ArrayList<String>();
+    CarQuery query2 = new CarQuery(ofy.query(Car.class));
+    query2.forEachManufacturers(cursors.get(0), 2, new BatchCallback<Manufacturer>() {
+      public boolean batch(java.util.List<Manufacturer> batch, String cursor) {
+        for (Manufacturer manufacturer : batch) {
+          names.add(manufacturer.name);
+        }
+        return false;
+      }
+    });
+    assertThat(names.size(), is(equalTo(2)));
+    assertThat(names.get(0), is("toyota"));
+    assertThat(names.get(1), is("toyota"));
+  }
+
+  @Test
+  public void testForEachKeySharded() throws InterruptedException {
+    Objectify ofy = ObjectifyService.begin();
+
+    CarQuery query = new CarQuery(ofy.query(Car.class));
+    java.util.List<Shard> shards = query.shards(java.util.Arrays.asList(
+        new Key<Car>(Car.class, "DEF123"), new Key<Car>(Car.class, "JKL123")));
+    assertThat(shards.size(), is(equalTo(3)));
+
+    final java.util.List<Key<Car>> keys = java.util.Collections.synchronizedList(new java.util.ArrayList<Key<Car>>());
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      java.util.List<Shard> unfinished = query.forEachKeySharded(shards, 2,
+          executor, new ShardCallback<Key<Car>>() {
+            public boolean batch(Shard shard, java.util.List<Key<Car>> batch,
+                String cursor) {
+              keys.addAll(batch);
+              return true;
+            }
+          });
+      assertThat(unfinished.isEmpty(), is(true));
+    } finally {
+      executor.shutdown();
+      executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+    assertThat(keys.size(), is(equalTo(5)));
+    assertThat(new java.util.HashSet<Key<Car>>(keys).size(), is(equalTo(5)));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testForEachKeyShardedRejectsIn() {
+    Objectify ofy = ObjectifyService.begin();
+
+    CarQuery query = new CarQuery(ofy.query(Car.class)).filterByDoorsIn(java.util.Arrays.asList(2, 4));
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      query.forEachKeySharded(query.shards(java.util.Collections.<Key<Car>> emptyList()), 2,
+          executor, new ShardCallback<Key<Car>>() {
+            public boolean batch(Shard shard, java.util.List<Key<Car>> batch,
+                String cursor) {
+              return true;
+            }
+          });
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,54 @@
+package com.googlecode.objectify.query;
+
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import com.example.Car;
+import com.example.CarQuery;
+import com.example.Colour;
+import com.example.Manufacturer;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.query.shared.KeyPage;
+import com.googlecode.objectify.query.shared.ListPage;
+
+/** Tests of <code>KeyPage</code>. */
+public class TestKeyPage extends CarQueryFixture {
+
+  @Test
+  public void testKeyPage() {
+    Objectify ofy = ObjectifyService.begin();
+
+    KeyPage<Car> cars = (KeyPage<Car>) new CarQuery(ofy.query(Car.class)).listKeys(null, 4);
+    assertThat(cars.getKind(), is("Car"));
+    assertThat(cars.getNames(), is(new String[] {"ABC123", "DEF123",
+        "GHI123", "JKL123"}));
+    assertThat(cars.get(3), is(equalTo(new Key<Car>(Car.class, "JKL123"))));
+
+    KeyPage<Manufacturer> makers = (KeyPage<Manufacturer>) new CarQuery(ofy.query(Car.class)).listMadeByKeys(
+        null, 5);
+    assertThat(makers.getIds().length, is(equalTo(5)));
+    assertThat(makers.get(4).getId(), is(equalTo(makers.getIds()[4])));
+
+    // keys with a parent are held as keys
+    KeyPage.Builder<Car> builder = new KeyPage.Builder<Car>();
+    builder.add(new Key<Car>(Car.class, "ABC123"));
+    builder.add(new Key<Car>(new Key<Colour>(Colour.class, "red"), Car.class,
+        "XYZ123"));
+    KeyPage<Car> mixed = builder.build(null, false);
+    assertThat(mixed.getKind(), is(nullValue()));
+    assertThat(mixed.size(), is(equalTo(2)));
+    assertThat(mixed.get(0).getName(), is("ABC123"));
+    assertThat(mixed.get(1).getParent(), is(notNullValue()));
+
+    // equal to a plain page of the same keys
+    ListPage<Key<Car>> plain = new ListPage<Key<Car>>(
+        new java.util.ArrayList<Key<Car>>(cars.subList(0, 4)), cars.getCursor(),
+        cars.more());
+    assertThat((Object) plain, is(equalTo((Object) cars)));
+    assertThat((Object) cars, is(equalTo((Object) plain)));
+    assertThat(plain.hashCode(), is(equalTo(cars.hashCode())));
+  }
+}
@@ -0,0 +1,50 @@
+package com.googlecode.objectify.query;
+
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import com.example.Car;
+import com.example.CarQuery;
+import com.example.Colour;
+import com.example.Manufacturer;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.query.cache.NearCache;
+import com.googlecode.objectify.query.metrics.HistogramQueryMetrics;
+import com.googlecode.objectify.query.shared.ListPage;
+
+/** Tests of the near cache of related entities. */
+public class TestNearCache extends CarQueryFixture {
+
+  @Test
+  public void testNearCache() {
+    Objectify ofy = ObjectifyService.begin();
+    Key<Colour> red = new Key(Colour.class, "red");
+    NearCache cache = new NearCache().cache(Manufacturer.class, 10, 60000);
+
+    ListPage<Manufacturer> first = new CarQuery(ofy.query(Car.class)).useNearCache(
+        cache).filterByColour(red).listManufacturers(null, 20);
+    assertThat(first.size(), is(equalTo(2)));
+    assertThat(cache.getStats(Manufacturer.class).getMisses(), is(equalTo(2L)));
+    assertThat(cache.size(Manufacturer.class), is(equalTo(2)));
+
+    HistogramQueryMetrics metrics = new HistogramQueryMetrics();
+    ListPage<Manufacturer> second = new CarQuery(ofy.query(Car.class)).useNearCache(
+        cache).useMetrics(metrics).filterByColour(red).listManufacturers(null,
+        20);
+    assertThat(second.size(), is(equalTo(2)));
+    assertThat(second.get(0).name, is(first.get(0).name));
+    assertThat(cache.getStats(Manufacturer.class).getHits(), is(equalTo(2L)));
+    assertThat(metrics.getStats().values().iterator().next().batchGetKeys.getSum(),
+        is(equalTo(0L)));
+
+    // colours are not cached
+    new CarQuery(ofy.query(Car.class)).useNearCache(cache).listColours(null, 20);
+    assertThat(cache.getStats(Colour.class), is(nullValue()));
+
+    cache.invalidate(Manufacturer.class);
+    assertThat(cache.size(Manufacturer.class), is(equalTo(0)));
+  }
+}
@@ -0,0 +1,92 @@
+package com.googlecode.objectify.query;
+
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import com.example.Car;
+import com.example.CarQuery;
+import com.example.Manufacturer;
+import com.example.ManufacturerQuery;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.ObjectifyService;
+import com.google.gwt.user.client.rpc.SerializationStreamReader;
+import com.google.gwt.user.client.rpc.SerializationStreamWriter;
+import com.googlecode.objectify.query.shared.KeyPage;
+import com.googlecode.objectify.query.shared.KeyPage_CustomFieldSerializer;
+import com.googlecode.objectify.query.shared.ListPage;
+import com.googlecode.objectify.query.shared.ListPage_CustomFieldSerializer;
+
+/** Tests of the GWT serializers of pages. */
+public class TestPageSerializers extends CarQueryFixture {
+
+  @Test
+  public void testListPageSerializer() throws Exception {
+    Objectify ofy = ObjectifyService.begin();
+
+    // a page of id keys travels as kind plus packed ids
+    ManufacturerQuery mq = new ManufacturerQuery(ofy.query(Manufacturer.class));
+    KeyPage<Manufacturer> keys = (KeyPage<Manufacturer>) mq.listKeys(null, 1);
+    assertThat(keys.getCursor(), is(notNullValue()));
+    ValueStream stream = new ValueStream();
+    KeyPage_CustomFieldSerializer.serialize(stream, keys);
+    for (Object value : stream.values) {
+      assertThat(value, is(not(instanceOf(Key.class))));
+    }
+    assertThat(KeyPage_CustomFieldSerializer.instantiate(stream),
+        is(equalTo((Object) keys)));
+
+    ListPage<Key<Manufacturer>> listed = new ListPage<Key<Manufacturer>>(
+        new java.util.ArrayList<Key<Manufacturer>>(keys.subList(0,
+            keys.size())), keys.getCursor(), keys.more());
+    ListPage_CustomFieldSerializer.serialize(stream, listed);
+    for (Object value : stream.values) {
+      assertThat(value, is(not(instanceOf(Key.class))));
+    }
+    assertThat(ListPage_CustomFieldSerializer.instantiate(stream),
+        is(equalTo((Object) listed)));
+
+    // named keys travel as names
+    CarQuery query = new CarQuery(ofy.query(Car.class));
+    KeyPage<Car> carKeys = (KeyPage<Car>) query.listKeys(null, 3);
+    KeyPage_CustomFieldSerializer.serialize(stream, carKeys);
+    assertThat(KeyPage_CustomFieldSerializer.instantiate(stream),
+        is(equalTo((Object) carKeys)));
+
+    // entities are sent element by element
+    ListPage<Car> cars = query.list(carKeys.getCursor(), 20);
+    ListPage_CustomFieldSerializer.serialize(stream, cars);
+    assertThat(ListPage_CustomFieldSerializer.instantiate(stream),
+        is(equalTo((Object) cars)));
+  }
+
+  /** Hands the written values straight back to the reader. */
+  private static class ValueStream implements SerializationStreamWriter,
+      SerializationStreamReader {
+
+    final java.util.LinkedList<Object> values = new java.util.LinkedList<Object>();
+
+    public void writeBoolean(boolean value) { this.values.add(value); }
+    public void writeByte(byte value) { this.values.add(value); }
+    public void writeChar(char value) { this.values.add(value); }
+    public void writeDouble(double value) { this.values.add(value); }
+    public void writeFloat(float value) { this.values.add(value); }
+    public void writeInt(int value) { this.values.add(value); }
+    public void writeLong(long value) { this.values.add(value); }
+    public void writeObject(Object value) { this.values.add(value); }
+    public void writeShort(short value) { this.values.add(value); }
+    public void writeString(String value) { this.values.add(value); }
+
+    public boolean readBoolean() { return (Boolean) this.values.remove(); }
+    public byte readByte() { return (Byte) this.values.remove(); }
+    public char readChar() { return (Character) this.values.remove(); }
+    public double readDouble() { return (Double) this.values.remove(); }
+    public float readFloat() { return (Float) this.values.remove(); }
+    public int readInt() { return (Integer) this.values.remove(); }
+    public long readLong() { return (Long) this.values.remove(); }
+    public Object readObject() { return this.values.remove(); }
+    public short readShort() { return (Short) this.values.remove(); }
+    public String readString() { return (String) this.values.remove(); }
+  }
+}
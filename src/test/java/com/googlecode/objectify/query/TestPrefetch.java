@@ -0,0 +1,60 @@
+package com.googlecode.objectify.query;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import com.example.Car;
+import com.example.CarQuery;
+import com.example.Colour;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.query.cache.PagePrefetcher;
+import com.googlecode.objectify.query.shared.ListPage;
+
+/** Tests of the page prefetcher. */
+public class TestPrefetch extends CarQueryFixture {
+
+  @Test
+  public void testPrefetch() throws Exception {
+    Objectify ofy = ObjectifyService.begin();
+    Key<Colour> red = new Key(Colour.class, "red");
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      PagePrefetcher prefetcher = new PagePrefetcher(executor, 10, 2);
+      ListPage<Car> first = new CarQuery(ofy.query(Car.class)).usePrefetch(
+          prefetcher).filterByColour(red).list(null, 2);
+      assertThat(first.size(), is(2));
+      assertThat(prefetcher.getStats().getMisses(), is(1L));
+
+      // served by the prefetch, which starts the next one
+      ListPage<Car> second = new CarQuery(ofy.query(Car.class)).usePrefetch(
+          prefetcher).filterByColour(red).list(first.getCursor(), 2);
+      assertThat(second.size(), is(2));
+      assertThat(second.get(0).vin, is(not(first.get(0).vin)));
+      assertThat(prefetcher.getStats().getHits(), is(1L));
+
+      // another page size is another entry
+      new CarQuery(ofy.query(Car.class)).usePrefetch(prefetcher).filterByColour(
+          red).list(second.getCursor(), 3);
+      assertThat(prefetcher.getStats().getMisses(), is(2L));
+      assertThat(prefetcher.getStats().getHitRate(), is(closeTo(1 / 3.0, 0.001)));
+
+      // pages larger than the prefetcher are not held
+      PagePrefetcher small = new PagePrefetcher(executor, 1, 1);
+      new CarQuery(ofy.query(Car.class)).usePrefetch(small).list(null, 2);
+      assertThat(small.getStats().getSkipped(), is(1L));
+      assertThat(small.size(), is(0));
+
+      prefetcher.invalidate(ObjectifyService.factory().getKind(Car.class));
+      assertThat(prefetcher.size(), is(0));
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
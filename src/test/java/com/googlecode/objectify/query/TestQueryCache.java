@@ -0,0 +1,71 @@
+package com.googlecode.objectify.query;
+
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import com.example.Car;
+import com.example.CarQuery;
+import com.example.Colour;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.query.cache.LocalQueryCache;
+import com.googlecode.objectify.query.cache.MemcacheQueryCache;
+import com.googlecode.objectify.query.cache.QueryCache;
+import com.googlecode.objectify.query.metrics.HistogramQueryMetrics;
+import com.googlecode.objectify.query.shared.ListPage;
+
+/** Tests of the query caches. */
+public class TestQueryCache extends CarQueryFixture {
+
+  @Test
+  public void testQueryCache() {
+    checkQueryCache(new LocalQueryCache(100, 60000));
+    checkQueryCache(new MemcacheQueryCache(60000));
+  }
+
+  private void checkQueryCache(QueryCache cache) {
+    Objectify ofy = ObjectifyService.begin();
+    String kind = ObjectifyService.factory().getKind(Car.class);
+    Key<Colour> red = new Key<Colour>(Colour.class, "red");
+
+    ListPage<Car> cars = new CarQuery(ofy.query(Car.class)).useCache(cache).filterByDoors(
+        2).filterByColour(red).list(null, 20);
+
+    Car car = new Car();
+    car.vin = "ZZZ999";
+    car.doors = 2;
+    car.colour = red;
+    ofy.put(car);
+
+    // same shape with the filters applied in the other order
+    ListPage<Car> cached = new CarQuery(ofy.query(Car.class)).useCache(cache).filterByColour(
+        red).filterByDoors(2).list(null, 20);
+    assertThat(cached.size(), is(equalTo(cars.size())));
+
+    // a different page size is a different entry
+    ListPage<Key<Car>> other = new CarQuery(ofy.query(Car.class)).useCache(cache).filterByColour(
+        red).filterByDoors(2).listKeys(null, 19);
+    assertThat(other.size(), is(equalTo(cars.size() + 1)));
+
+    cache.invalidate(kind);
+    ListPage<Car> fresh = new CarQuery(ofy.query(Car.class)).useCache(cache).filterByColour(
+        red).filterByDoors(2).list(null, 20);
+    assertThat(fresh.size(), is(equalTo(cars.size() + 1)));
+
+    // a query filtered before it was wrapped is listed directly, not through
+    // the key cache
+    HistogramQueryMetrics metrics = new HistogramQueryMetrics();
+    ListPage<Car> unmirrored = new CarQuery(ofy.query(Car.class).filter("doors", 2).filter(
+        "colour", red)).useCache(cache).useMetrics(metrics).list(null, 20);
+    assertThat(unmirrored.size(), is(equalTo(cars.size() + 1)));
+    assertThat(metrics.getStats().size(), is(equalTo(1)));
+    assertThat(metrics.getStats().keySet().iterator().next(), startsWith("list "));
+    assertThat(metrics.getStats().values().iterator().next().batchGetKeys.getSum(),
+        is(equalTo(0L)));
+
+    ofy.delete(car);
+    cache.invalidate(kind);
+  }
+}
@@ -0,0 +1,41 @@
+package com.googlecode.objectify.query;
+
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import com.example.Car;
+import com.example.CarQuery;
+import com.example.Manufacturer;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.query.metrics.HistogramQueryMetrics;
+import com.googlecode.objectify.query.shared.ListPage;
+
+/** Tests of the metrics recorded by generated queries. */
+public class TestQueryMetrics extends CarQueryFixture {
+
+  @Test
+  public void testQueryMetrics() {
+    Objectify ofy = ObjectifyService.begin();
+    HistogramQueryMetrics metrics = new HistogramQueryMetrics();
+
+    ListPage<Manufacturer> page = new CarQuery(ofy.query(Car.class)).useMetrics(
+        metrics).listManufacturers(null, 3);
+    assertThat(page.size(), is(equalTo(2)));
+
+    HistogramQueryMetrics.Stats stats = metrics.getStats("listManufacturers",
+        "Car where [] order []");
+    assertThat(stats, is(notNullValue()));
+    assertThat(stats.totalNanos.getCount(), is(equalTo(1L)));
+    // three rows plus the look-ahead row, made by honda, honda and toyota
+    assertThat(stats.entities.getSum(), is(equalTo(4L)));
+    assertThat(stats.discarded.getSum(), is(equalTo(1L)));
+    assertThat(stats.batchGetKeys.getSum(), is(equalTo(2L)));
+    assertThat(stats.roundTrips.getSum(), is(equalTo(2L)));
+
+    new CarQuery(ofy.query(Car.class)).useMetrics(metrics).filterByDoors(2).countUpTo(10);
+    assertThat(metrics.getStats("count", "Car where [doors =] order []"),
+        is(notNullValue()));
+  }
+}
@@ -0,0 +1,534 @@
+package com.googlecode.objectify.query;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import com.example.Car;
+import com.example.CarQuery;
+import com.example.Colour;
+import com.example.Manufacturer;
+import com.example.Wheel;
+import com.example.WheelQuery;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.query.shared.ListPage;
+import com.googlecode.objectify.query.util.BatchCallback;
+import com.googlecode.objectify.query.util.Hydrator;
+
+/**
+ * Walks every listing method of the generated queries across all pages of a
+ * large data set, checking the rows and the datastore calls of each page,
+ * and reporting the heap held per page.
+ * <p/>
+ * The number of entities is set by the <code>objectify.query.scale</code>
+ * system property: <code>small</code> (the default, for CI) seeds 10,000,
+ * <code>full</code> seeds 1,000,000, and a number seeds that many.  Run the
+ * full size with <code>mvn test -Pscale</code>.
+ */
+public class TestQueryScale {
+
+  public static final String SCALE_PROPERTY = "objectify.query.scale";
+
+  private static final int SMALL = 10000;
+  private static final int FULL = 1000000;
+
+  private static final int WHEELS_PER_CAR = 4;
+  private static final int MANUFACTURERS = 50;
+  private static final int COLOURS = 20;
+  private static final int PAGE_SIZE = 500;
+  private static final int PUT_BATCH_SIZE = 500;
+
+  /** the scan, a continuation and the batch get of a page */
+  private static final int MAX_CALLS_PER_PAGE = 3;
+  /** the parents of a page of wheels take one batch get per hydrator batch */
+  private static final int MAX_CALLS_PER_PARENT_PAGE = MAX_CALLS_PER_PAGE - 1
+      + (PAGE_SIZE / WHEELS_PER_CAR + Hydrator.DEFAULT_BATCH_SIZE - 1)
+      / Hydrator.DEFAULT_BATCH_SIZE;
+
+  /** pages held at a time when measuring the heap they keep */
+  private static final int HELD_PAGES = 8;
+  /** windows of held pages measured per walk, each costs full collections */
+  private static final int HEAP_SAMPLES = 4;
+
+  static {
+    ObjectifyService.register(Car.class);
+    ObjectifyService.register(Colour.class);
+    ObjectifyService.register(Manufacturer.class);
+    ObjectifyService.register(Wheel.class);
+  }
+
+  private static LocalServiceTestHelper helper;
+  private static DatastoreCalls calls;
+  private static int cars;
+  private static List<Key<Colour>> colours;
+  private static List<Key<Manufacturer>> manufacturers;
+
+  /** Checks a page that starts at row <code>offset</code>. */
+  private interface PageCheck<T> {
+    void check(ListPage<T> page, long offset);
+  }
+
+  private interface Lister<T> {
+    ListPage<T> list(String cursor, int pageSize);
+  }
+
+  @BeforeClass
+  public static void seed() {
+    helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+    helper.setUp();
+    Objectify ofy = ObjectifyService.begin();
+
+    colours = new ArrayList<Key<Colour>>();
+    for (int i = 0; i < COLOURS; i++) {
+      Colour colour = new Colour();
+      colour.id = "colour" + i;
+      colours.add(ofy.put(colour));
+    }
+    manufacturers = new ArrayList<Key<Manufacturer>>();
+    for (int i = 0; i < MANUFACTURERS; i++) {
+      Manufacturer manufacturer = new Manufacturer();
+      manufacturer.name = "manufacturer" + i;
+      manufacturers.add(ofy.put(manufacturer));
+    }
+
+    cars = scale() / (1 + WHEELS_PER_CAR);
+    ArrayList<Object> batch = new ArrayList<Object>(PUT_BATCH_SIZE);
+    for (int i = 0; i < cars; i++) {
+      Car car = new Car();
+      car.vin = vin(i);
+      car.colour = colours.get(i % COLOURS);
+      car.doors = 2 + i % 3;
+      car.madeBy = manufacturers.get(i % MANUFACTURERS);
+      batch.add(car);
+      for (int position = 0; position < WHEELS_PER_CAR; position++) {
+        Wheel wheel = new Wheel();
+        wheel.car = new Key<Car>(Car.class, car.vin);
+        wheel.position = position;
+        batch.add(wheel);
+      }
+      if (batch.size() >= PUT_BATCH_SIZE) {
+        ofy.put(batch);
+        batch.clear();
+      }
+    }
+    if (!batch.isEmpty()) {
+      ofy.put(batch);
+    }
+
+    calls = DatastoreCalls.install();
+  }
+
+  @AfterClass
+  public static void releaseLocalServices() {
+    calls.uninstall();
+    helper.tearDown();
+  }
+
+  @Test
+  public void testListCars() {
+    long rows = walk(new Lister<Car>() {
+      public ListPage<Car> list(String cursor, int pageSize) {
+        return carQuery().list(cursor, pageSize);
+      }
+    }, new PageCheck<Car>() {
+      public void check(ListPage<Car> page, long offset) {
+        for (int i = 0; i < page.size(); i++) {
+          Car car = page.get(i);
+          assertThat(car.vin, is(equalTo(vin(offset + i))));
+          assertThat(car.madeBy, is(equalTo(manufacturers.get(
+              (int) ((offset + i) % MANUFACTURERS)))));
+        }
+      }
+    });
+    assertThat(rows, is(equalTo((long) cars)));
+  }
+
+  @Test
+  public void testListCarKeys() {
+    long rows = walk(new Lister<Key<Car>>() {
+      public ListPage<Key<Car>> list(String cursor, int pageSize) {
+        return carQuery().listKeys(cursor, pageSize);
+      }
+    }, new PageCheck<Key<Car>>() {
+      public void check(ListPage<Key<Car>> page, long offset) {
+        for (int i = 0; i < page.size(); i++) {
+          assertThat(page.get(i).getName(), is(equalTo(vin(offset + i))));
+        }
+      }
+    });
+    assertThat(rows, is(equalTo((long) cars)));
+  }
+
+  @Test
+  public void testListManufacturersKeepsEveryRow() {
+    long rows = walk(new Lister<Manufacturer>() {
+      public ListPage<Manufacturer> list(String cursor, int pageSize) {
+        return carQuery().listManufacturers(cursor, pageSize, false);
+      }
+    }, new PageCheck<Manufacturer>() {
+      public void check(ListPage<Manufacturer> page, long offset) {
+        for (int i = 0; i < page.size(); i++) {
+          assertThat(page.get(i).id, is(equalTo(manufacturers.get(
+              (int) ((offset + i) % MANUFACTURERS)).getId())));
+        }
+      }
+    });
+    assertThat(rows, is(equalTo((long) cars)));
+  }
+
+  @Test
+  public void testListDistinctManufacturers() {
+    walk(new Lister<Manufacturer>() {
+      public ListPage<Manufacturer> list(String cursor, int pageSize) {
+        return carQuery().listManufacturers(cursor, pageSize, true);
+      }
+    }, new PageCheck<Manufacturer>() {
+      public void check(ListPage<Manufacturer> page, long offset) {
+        Set<Long> ids = new HashSet<Long>();
+        for (Manufacturer manufacturer : page) {
+          assertThat(ids.add(manufacturer.id), is(true));
+        }
+        assertThat(ids.size(), is(lessThanOrEqualTo(MANUFACTURERS)));
+      }
+    });
+  }
+
+  @Test
+  public void testListMadeByKeys() {
+    long rows = walk(new Lister<Key<Manufacturer>>() {
+      public ListPage<Key<Manufacturer>> list(String cursor, int pageSize) {
+        return carQuery().listMadeByKeys(cursor, pageSize);
+      }
+    }, new PageCheck<Key<Manufacturer>>() {
+      public void check(ListPage<Key<Manufacturer>> page, long offset) {
+        for (int i = 0; i < page.size(); i++) {
+          assertThat(page.get(i), is(equalTo(manufacturers.get(
+              (int) ((offset + i) % MANUFACTURERS)))));
+        }
+      }
+    });
+    assertThat(rows, is(equalTo((long) cars)));
+  }
+
+  @Test
+  public void testListColours() {
+    long rows = walk(new Lister<Colour>() {
+      public ListPage<Colour> list(String cursor, int pageSize) {
+        return carQuery().listColours(cursor, pageSize, false);
+      }
+    }, new PageCheck<Colour>() {
+      public void check(ListPage<Colour> page, long offset) {
+        for (int i = 0; i < page.size(); i++) {
+          assertThat(page.get(i).id, is(equalTo("colour"
+              + (offset + i) % COLOURS)));
+        }
+      }
+    });
+    assertThat(rows, is(equalTo((long) cars)));
+
+    long keys = walk(new Lister<Key<Colour>>() {
+      public ListPage<Key<Colour>> list(String cursor, int pageSize) {
+        return carQuery().listColourKeys(cursor, pageSize);
+      }
+    }, new PageCheck<Key<Colour>>() {
+      public void check(ListPage<Key<Colour>> page, long offset) {
+        for (int i = 0; i < page.size(); i++) {
+          assertThat(page.get(i), is(equalTo(colours.get(
+              (int) ((offset + i) % COLOURS)))));
+        }
+      }
+    });
+    assertThat(keys, is(equalTo((long) cars)));
+  }
+
+  @Test
+  public void testListCarsWithRelations() {
+    long rows = walk(new Lister<CarQuery.Row>() {
+      public ListPage<CarQuery.Row> list(String cursor, int pageSize) {
+        return carQuery().listWithRelations(cursor, pageSize);
+      }
+    }, new PageCheck<CarQuery.Row>() {
+      public void check(ListPage<CarQuery.Row> page, long offset) {
+        for (int i = 0; i < page.size(); i++) {
+          CarQuery.Row row = page.get(i);
+          assertThat(row.getEntity().vin, is(equalTo(vin(offset + i))));
+          assertThat(row.getMadeBy().id, is(equalTo(row.getEntity().madeBy.getId())));
+          assertThat(row.getColour().id, is(equalTo(row.getEntity().colour.getName())));
+        }
+      }
+    });
+    assertThat(rows, is(equalTo((long) cars)));
+  }
+
+  @Test
+  public void testListWheels() {
+    long rows = walk(new Lister<Wheel>() {
+      public ListPage<Wheel> list(String cursor, int pageSize) {
+        return wheelQuery().list(cursor, pageSize);
+      }
+    }, new PageCheck<Wheel>() {
+      public void check(ListPage<Wheel> page, long offset) {
+        for (int i = 0; i < page.size(); i++) {
+          assertThat(page.get(i).car.getName(), is(equalTo(vin((offset + i)
+              / WHEELS_PER_CAR))));
+        }
+      }
+    });
+    assertThat(rows, is(equalTo((long) cars * WHEELS_PER_CAR)));
+
+    long keys = walk(new Lister<Key<Wheel>>() {
+      public ListPage<Key<Wheel>> list(String cursor, int pageSize) {
+        return wheelQuery().listKeys(cursor, pageSize);
+      }
+    }, new PageCheck<Key<Wheel>>() {
+      public void check(ListPage<Key<Wheel>> page, long offset) {
+        for (int i = 0; i < page.size(); i++) {
+          assertThat(page.get(i).getParent().getName(), is(equalTo(vin(
+              (offset + i) / WHEELS_PER_CAR))));
+        }
+      }
+    });
+    assertThat(keys, is(equalTo((long) cars * WHEELS_PER_CAR)));
+  }
+
+  @Test
+  public void testListParents() {
+    long rows = walk(new Lister<Car>() {
+      public ListPage<Car> list(String cursor, int pageSize) {
+        return wheelQuery().listParents(cursor, pageSize, false);
+      }
+    }, MAX_CALLS_PER_PARENT_PAGE, new PageCheck<Car>() {
+      public void check(ListPage<Car> page, long offset) {
+        for (int i = 0; i < page.size(); i++) {
+          assertThat(page.get(i).vin, is(equalTo(vin((offset + i)
+              / WHEELS_PER_CAR))));
+        }
+      }
+    });
+    assertThat(rows, is(equalTo((long) cars * WHEELS_PER_CAR)));
+
+    // each car once per page, and once overall as pages hold whole cars
+    final Set<String> vins = new HashSet<String>();
+    walk(new Lister<Car>() {
+      public ListPage<Car> list(String cursor, int pageSize) {
+        return wheelQuery().listParents(cursor, pageSize, true);
+      }
+    }, MAX_CALLS_PER_PARENT_PAGE, new PageCheck<Car>() {
+      public void check(ListPage<Car> page, long offset) {
+        for (Car car : page) {
+          assertThat(vins.add(car.vin), is(true));
+        }
+      }
+    });
+    assertThat(vins.size(), is(equalTo(cars)));
+  }
+
+  @Test
+  public void testListParentKeys() {
+    long rows = walk(new Lister<Key<Car>>() {
+      public ListPage<Key<Car>> list(String cursor, int pageSize) {
+        return wheelQuery().listParentKeys(cursor, pageSize);
+      }
+    }, new PageCheck<Key<Car>>() {
+      public void check(ListPage<Key<Car>> page, long offset) {
+        for (int i = 0; i < page.size(); i++) {
+          assertThat(page.get(i), is(equalTo(new Key<Car>(Car.class, vin(
+              (offset + i) / WHEELS_PER_CAR)))));
+        }
+      }
+    });
+    assertThat(rows, is(equalTo((long) cars * WHEELS_PER_CAR)));
+  }
+
+  @Test
+  public void testListWheelsWithRelations() {
+    long rows = walk(new Lister<WheelQuery.Row>() {
+      public ListPage<WheelQuery.Row> list(String cursor, int pageSize) {
+        return wheelQuery().listWithRelations(cursor, pageSize);
+      }
+    }, MAX_CALLS_PER_PARENT_PAGE, new PageCheck<WheelQuery.Row>() {
+      public void check(ListPage<WheelQuery.Row> page, long offset) {
+        for (int i = 0; i < page.size(); i++) {
+          assertThat(page.get(i).getParent().vin, is(equalTo(vin((offset + i)
+              / WHEELS_PER_CAR))));
+        }
+      }
+    });
+    assertThat(rows, is(equalTo((long) cars * WHEELS_PER_CAR)));
+  }
+
+  @Test
+  public void testStreamsAndCounts() {
+    final long[] rows = new long[1];
+    final int[] batches = new int[1];
+    calls.reset();
+    carQuery().forEach(null, PAGE_SIZE, new BatchCallback<Car>() {
+      public boolean batch(List<Car> batch, String cursor) {
+        assertThat(batch.size(), is(lessThanOrEqualTo(PAGE_SIZE)));
+        rows[0] += batch.size();
+        batches[0]++;
+        return true;
+      }
+    });
+    assertThat(rows[0], is(equalTo((long) cars)));
+    // one round trip per batch, plus the one that finds the end
+    assertThat(calls.get(), is(lessThanOrEqualTo(batches[0] + 1)));
+
+    calls.reset();
+    assertThat(wheelQuery().count(), is(equalTo(cars * WHEELS_PER_CAR)));
+    assertThat(calls.get(), is(lessThanOrEqualTo(cars * WHEELS_PER_CAR
+        / com.googlecode.objectify.query.util.RawQuery.COUNT_BATCH_SIZE + 2)));
+  }
+
+  /**
+   * Lists every page, checking the size and the datastore calls of each
+   * page, and reports the heap held by a few windows of pages.
+   *
+   * @return the number of rows.
+   */
+  private <T> long walk(Lister<T> lister, PageCheck<T> check) {
+    return walk(lister, MAX_CALLS_PER_PAGE, check);
+  }
+
+  /** Walks with up to <code>maxCalls</code> datastore calls per page. */
+  private <T> long walk(Lister<T> lister, int maxCalls, PageCheck<T> check) {
+    ArrayList<ListPage<T>> held = new ArrayList<ListPage<T>>(HELD_PAGES);
+    int samples = 0;
+    long rows = 0;
+    String cursor = null;
+    boolean more = true;
+    while (more) {
+      calls.reset();
+      ListPage<T> page = lister.list(cursor, PAGE_SIZE);
+      assertThat(calls.get(), is(lessThanOrEqualTo(maxCalls)));
+      assertThat(page.size(), is(lessThanOrEqualTo(PAGE_SIZE)));
+
+      check.check(page, rows);
+      rows += page.size();
+      cursor = page.getCursor();
+      more = page.more();
+
+      if (samples < HEAP_SAMPLES) {
+        held.add(page);
+        if (held.size() == HELD_PAGES || !more) {
+          reportHeldHeap(held);
+          samples++;
+        }
+      }
+    }
+    return rows;
+  }
+
+  /**
+   * Reports the heap kept by <code>held</code> by releasing the pages, so
+   * what the local datastore keeps for its queries is there both times.
+   * The readings depend on the collector, so they are only printed.
+   */
+  private static <T> void reportHeldHeap(List<ListPage<T>> held) {
+    long heldRows = 0;
+    for (ListPage<T> page : held) {
+      heldRows += page.size();
+    }
+    long holding = usedHeap();
+    held.clear();
+    long bytes = holding - usedHeap();
+    if (heldRows > 0) {
+      System.out.println("held " + heldRows + " rows in " + bytes + " bytes, "
+          + (bytes / heldRows) + " per row");
+    }
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    long used = Long.MAX_VALUE;
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+    }
+    return used;
+  }
+
+  private static CarQuery carQuery() {
+    return new CarQuery(ObjectifyService.begin().query(Car.class));
+  }
+
+  private static WheelQuery wheelQuery() {
+    return new WheelQuery(ObjectifyService.begin().query(Wheel.class));
+  }
+
+  private static int scale() {
+    String scale = System.getProperty(SCALE_PROPERTY, "small");
+    if (scale.equals("small")) {
+      return SMALL;
+    } else if (scale.equals("full")) {
+      return FULL;
+    }
+    return Integer.parseInt(scale);
+  }
+
+  /** vins sort in the order the cars were made */
+  private static String vin(long index) {
+    return String.format("V%08d", index);
+  }
+
+  /** Counts the datastore calls made through the API proxy. */
+  private static class DatastoreCalls implements InvocationHandler {
+    private final ApiProxy.Delegate<?> delegate;
+    private final AtomicInteger count = new AtomicInteger();
+
+    DatastoreCalls(ApiProxy.Delegate<?> delegate) {
+      this.delegate = delegate;
+    }
+
+    static DatastoreCalls install() {
+      DatastoreCalls calls = new DatastoreCalls(ApiProxy.getDelegate());
+      ApiProxy.setDelegate((ApiProxy.Delegate<?>) Proxy.newProxyInstance(
+          ApiProxy.Delegate.class.getClassLoader(),
+          new Class<?>[] {ApiProxy.Delegate.class}, calls));
+      return calls;
+    }
+
+    /** Puts the counted delegate back, for the helper to tear down. */
+    void uninstall() {
+      ApiProxy.setDelegate(this.delegate);
+    }
+
+    int get() {
+      return this.count.get();
+    }
+
+    void reset() {
+      this.count.set(0);
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args)
+        throws Throwable {
+      if (method.getName().startsWith("make") && args.length > 1
+          && "datastore_v3".equals(args[1])) {
+        this.count.incrementAndGet();
+      }
+      try {
+        return method.invoke(this.delegate, args);
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+    }
+  }
+}
@@ -0,0 +1,64 @@
+package com.googlecode.objectify.query;
+
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import com.example.Colour;
+import com.example.ColourQuery;
+import com.example.Manufacturer;
+import com.example.ManufacturerQuery;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.query.cache.SnapshotStore;
+import com.googlecode.objectify.query.shared.ListPage;
+import com.googlecode.objectify.query.util.IndexedSnapshot;
+
+/** Tests of the snapshots of small kinds. */
+public class TestSnapshot extends CarQueryFixture {
+
+  @Test
+  public void testSnapshot() {
+    Objectify ofy = ObjectifyService.begin();
+    SnapshotStore store = ManufacturerQuery.snapshotStore();
+
+    ListPage<Manufacturer> hondas = new ManufacturerQuery(ofy.query(Manufacturer.class)).filterByName(
+        "honda").list(null, 20);
+    assertThat(hondas.size(), is(equalTo(1)));
+    assertThat(hondas.get(0).name, is("honda"));
+    long loads = store.getStats().getLoads();
+
+    ListPage<Manufacturer> first = new ManufacturerQuery(ofy.query(Manufacturer.class)).orderByNameDescending().list(
+        null, 1);
+    assertThat(first.get(0).name, is("toyota"));
+    assertThat(first.more(), is(true));
+    assertThat(first.getCursor(), startsWith(IndexedSnapshot.CURSOR_PREFIX));
+    ListPage<Manufacturer> second = new ManufacturerQuery(ofy.query(Manufacturer.class)).orderByNameDescending().list(
+        first.getCursor(), 1);
+    assertThat(second.get(0).name, is("honda"));
+    assertThat(second.more(), is(false));
+    assertThat(new ManufacturerQuery(ofy.query(Manufacturer.class)).filterByNameIn(
+        java.util.Arrays.asList("honda", "toyota", "kia")).countUpTo(10), is(equalTo(2)));
+    assertThat(new ColourQuery(ofy.query(Colour.class)).filterById("red").countUpTo(10),
+        is(equalTo(1)));
+    assertThat(store.getStats().getLoads(), is(equalTo(loads)));
+
+    // a write is seen once invalidated, and old cursors continue in the new snapshot
+    Manufacturer kia = new Manufacturer();
+    kia.name = "kia";
+    ofy.put(kia);
+    assertThat(new ManufacturerQuery(ofy.query(Manufacturer.class)).countUpTo(10),
+        is(equalTo(2)));
+    store.invalidate();
+    ListPage<Manufacturer> rest = new ManufacturerQuery(ofy.query(Manufacturer.class)).orderByNameDescending().list(
+        first.getCursor(), 20);
+    assertThat(rest.size(), is(equalTo(2)));
+    assertThat(rest.get(0).name, is("kia"));
+    assertThat(store.getStats().getLoads(), is(equalTo(loads + 1)));
+
+    ListPage<Manufacturer> stored = new ManufacturerQuery(ofy.query(Manufacturer.class)).useSnapshot(
+        null).list(null, 20);
+    assertThat(stored.size(), is(equalTo(3)));
+    assertThat(stored.getCursor(), not(startsWith(IndexedSnapshot.CURSOR_PREFIX)));
+  }
+}
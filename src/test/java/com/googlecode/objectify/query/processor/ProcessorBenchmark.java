@@ -0,0 +1,123 @@
+package com.googlecode.objectify.query.processor;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.element.TypeElement;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/**
+ * Compiles a synthetic model of entities with the EntityProcessor and reports
+ * the time the processor spends in each round.
+ * <p/>
+ * Not a unit test.  Run <code>main</code> with the test classpath, optionally
+ * passing the number of entities (default 300) and of runs (default 5).
+ */
+public class ProcessorBenchmark {
+
+  public static void main(String[] args) throws IOException {
+    int entityCount = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+    int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+    File dir = File.createTempFile("objectify-query-benchmark", "");
+    dir.delete();
+    File sourceDir = new File(dir, "src/bench");
+    File outputDir = new File(dir, "out");
+    sourceDir.mkdirs();
+    outputDir.mkdirs();
+
+    List<File> sources = new ArrayList<File>();
+    for (int i = 0; i < entityCount; i++) {
+      sources.add(writeEntity(sourceDir, i));
+    }
+
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    StandardJavaFileManager fileManager = compiler.getStandardFileManager(
+        null, null, null);
+    List<String> options = Arrays.asList("-proc:only", "-s",
+        outputDir.getPath(), "-classpath", System.getProperty("java.class.path"));
+
+    for (int run = 1; run <= runs; run++) {
+      TimingProcessor processor = new TimingProcessor();
+      DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+      JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager,
+          diagnostics, options, null,
+          fileManager.getJavaFileObjectsFromFiles(sources));
+      task.setProcessors(Arrays.asList(processor));
+
+      long start = System.nanoTime();
+      boolean success = task.call();
+      long total = System.nanoTime() - start;
+
+      System.out.println("run " + run + ": " + entityCount + " entities, "
+          + (success ? "ok" : "FAILED") + ", compile " + total / 1000000
+          + " ms, processor " + processor.rounds + " ms per round");
+    }
+    fileManager.close();
+  }
+
+  private static File writeEntity(File dir, int i) throws IOException {
+    File file = new File(dir, "Entity" + i + ".java");
+    PrintWriter out = new PrintWriter(new FileWriter(file));
+    try {
+      out.println("package bench;");
+      out.println();
+      out.println("import javax.persistence.Id;");
+      out.println("import com.googlecode.objectify.Key;");
+      out.println("import com.googlecode.objectify.annotation.*;");
+      out.println("import com.googlecode.objectify.query.annotation.List;");
+      out.println();
+      out.println("@Entity");
+      out.println("public class Entity" + i + " {");
+      out.println("  public @Id Long id;");
+      if (i > 0 && i % 5 == 0) {
+        out.println("  public @Parent Key<Entity" + (i - 1) + "> parent;");
+      }
+      for (int field = 0; field < 10; field++) {
+        out.println("  public String text" + field + ";");
+        out.println("  public long number" + field + ";");
+      }
+      out.println("  public @Unindexed String notes;");
+      out.println("  public Key<Entity" + (i / 2) + "> related;");
+      out.println();
+      out.println("  @List(singularName = \"Related\", pluralName = \"Relateds\", property = \"related\")");
+      out.println("  public Key<Entity" + (i / 2) + "> getRelated() {");
+      out.println("    return this.related;");
+      out.println("  }");
+      out.println("}");
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+
+  @SupportedAnnotationTypes({
+      "com.googlecode.objectify.annotation.Entity", "javax.persistence.Entity"})
+  static class TimingProcessor extends EntityProcessor {
+
+    final List<Long> rounds = new ArrayList<Long>();
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations,
+        RoundEnvironment roundEnv) {
+      long start = System.nanoTime();
+      try {
+        return super.process(annotations, roundEnv);
+      } finally {
+        this.rounds.add((System.nanoTime() - start) / 1000000);
+      }
+    }
+  }
+}
@@ -0,0 +1,146 @@
+package com.googlecode.objectify.query.processor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Scanner;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class TestDatastoreIndexes {
+
+  private static final String HEADER = "package check;\n"
+      + "import javax.persistence.Id;\n"
+      + "import com.googlecode.objectify.Key;\n"
+      + "import com.googlecode.objectify.annotation.*;\n"
+      + "import com.googlecode.objectify.query.annotation.*;\n";
+
+  private static final String FIELDS = "  @Id Long id;\n"
+      + "  @Parent Key<Object> parent;\n" + "  String owner;\n"
+      + "  int size;\n" + "  long created;\n" + "}\n";
+
+  @Test
+  public void testIndexes() throws IOException {
+    File output = process(null, HEADER + "@Entity(name = \"B\")\n"
+        + "@QueryIndexes({\n"
+        + "  @QueryIndex(filter = {\"owner\", \"size >=\"}, order = {\"size\", \"-created\"}),\n"
+        + "  @QueryIndex(filter = {\"parent\", \"size\"}),\n"
+        + "  @QueryIndex(filter = {\"owner\", \"size\"}),\n"
+        + "  @QueryIndex(filter = {\"size\", \"owner\"}, order = \"size\"),\n"
+        + "  @QueryIndex(filter = \"size >\", order = \"size\"),\n"
+        + "  @QueryIndex(filter = \"owner\", order = \"id\"),\n"
+        + "  @QueryIndex(order = \"-id\")})\n" + "public class Box {\n"
+        + FIELDS);
+
+    assertThat(read(new File(output, "datastore-indexes.xml")), is(
+        "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n"
+            + "<!-- generated by objectify-query from @QueryIndex declarations -->\n"
+            + "<datastore-indexes autoGenerate=\"true\">\n"
+            + "    <datastore-index kind=\"B\" ancestor=\"false\">\n"
+            + "        <property name=\"__key__\" direction=\"desc\" />\n"
+            + "    </datastore-index>\n"
+            + "    <datastore-index kind=\"B\" ancestor=\"false\">\n"
+            + "        <property name=\"owner\" direction=\"asc\" />\n"
+            + "        <property name=\"size\" direction=\"asc\" />\n"
+            + "        <property name=\"created\" direction=\"desc\" />\n"
+            + "    </datastore-index>\n"
+            + "    <datastore-index kind=\"B\" ancestor=\"false\">\n"
+            + "        <property name=\"owner\" direction=\"asc\" />\n"
+            + "        <property name=\"size\" direction=\"asc\" />\n"
+            + "    </datastore-index>\n"
+            + "    <datastore-index kind=\"B\" ancestor=\"true\">\n"
+            + "        <property name=\"size\" direction=\"asc\" />\n"
+            + "    </datastore-index>\n" + "</datastore-indexes>\n"));
+  }
+
+  @Test
+  public void testRejectedQueries() throws IOException {
+    DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+    process(diagnostics, HEADER + "@Entity\n" + "@QueryIndexes({\n"
+        + "  @QueryIndex(filter = {\"owner >\", \"size <\"}),\n"
+        + "  @QueryIndex(filter = \"size >\", order = \"created\"),\n"
+        + "  @QueryIndex(filter = \"owner in\", order = \"size\"),\n"
+        + "  @QueryIndex(filter = \"notes\")})\n" + "public class Box {\n"
+        + FIELDS);
+
+    int errors = 0;
+    int warnings = 0;
+    for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+      if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+        errors++;
+      } else if (diagnostic.getKind() == Diagnostic.Kind.WARNING
+          && diagnostic.getMessage(null).contains("in memory")) {
+        warnings++;
+      }
+    }
+    assertThat(errors, is(3));
+    assertThat(warnings, is(1));
+  }
+
+  @Test
+  public void testRejectedAggregates() throws IOException {
+    DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+    process(diagnostics, HEADER + "@Entity\n" + "public class Box {\n"
+        + "  @Id Long id;\n" + "  String owner;\n"
+        + "  @Aggregate(groupBy = \"owner\") int size;\n"
+        + "  @Aggregate @Unindexed String notes;\n"
+        + "  @Aggregate java.util.List<String> tags;\n" + "}\n");
+
+    int errors = 0;
+    for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+      if (diagnostic.getKind() == Diagnostic.Kind.ERROR
+          && diagnostic.getMessage(null).contains("@Aggregate")) {
+        errors++;
+      }
+    }
+    assertThat(errors, is(3));
+  }
+
+  /** @return the class output directory */
+  private static File process(DiagnosticCollector<JavaFileObject> diagnostics,
+      final String source) throws IOException {
+    File dir = File.createTempFile("objectify-query-indexes", "");
+    dir.delete();
+    dir.mkdirs();
+
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    List<String> options = Arrays.asList("-proc:only", "-s", dir.getPath(),
+        "-d", dir.getPath(), "-classpath",
+        System.getProperty("java.class.path"), "-A"
+            + EntityProcessor.INDEXES_OPTION + "=datastore-indexes.xml");
+    JavaFileObject file = new SimpleJavaFileObject(
+        URI.create("string:///check/Box.java"), JavaFileObject.Kind.SOURCE) {
+      @Override
+      public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+        return source;
+      }
+    };
+    JavaCompiler.CompilationTask task = compiler.getTask(null, null,
+        diagnostics, options, null, Arrays.asList(file));
+    task.setProcessors(Arrays.asList(new EntityProcessor()));
+    task.call();
+    return dir;
+  }
+
+  private static String read(File file) throws IOException {
+    InputStream in = new java.io.FileInputStream(file);
+    try {
+      Scanner scanner = new Scanner(in, "UTF-8").useDelimiter("\\A");
+      return scanner.hasNext() ? scanner.next() : "";
+    } finally {
+      in.close();
+    }
+  }
+}